@@ -0,0 +1,65 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Drawing names at several group sizes. teamSize sets the constraint density: everyone is in a
+// couple, and nobody may buy for anyone else on their team of teamSize.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssignmentBenchmark {
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    @Param({"2", "8", "32"})
+    public int teamSize;
+
+    private ParticipantRoster roster;
+    private AssignmentEngine engine;
+    private LambdaHandler handler;
+    private Map<String, Object> request;
+
+    @Setup
+    public void setup() {
+        this.roster = new ParticipantRoster(AssignmentEngineTests.makePeople(this.size, this.teamSize));
+        this.engine = new AssignmentEngine(new Random(42), AssignmentEngine.DEFAULT_MAX_STEPS, AssignmentEngine.DEFAULT_RESTARTS);
+
+        this.handler = new LambdaHandler(
+                BenchmarkFixtures.loadParticipants(this.size, this.teamSize),
+                new BenchmarkFixtures.StubSecretsManagerClient());
+        this.request = BenchmarkFixtures.text(BenchmarkFixtures.ADMIN_PHONE, LambdaHandler.ASSIGN_GIFTS_COMMAND);
+    }
+
+    // The engine alone
+    @Benchmark
+    public Optional<List<SecretSnowmanState>> assign() {
+        return this.engine.assign(this.roster);
+    }
+
+    // The whole "assign gifts" command: scan, draw, commit and text everyone
+    @Benchmark
+    public String assignGifts() {
+        return this.handler.handleRequest(this.request, (Context) null);
+    }
+}
@@ -0,0 +1,78 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.type.PhoneNumber;
+
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Stub clients and data shared by the benchmarks. Everything runs in memory, so the numbers
+// measure the handler's own cost rather than network round trips.
+final class BenchmarkFixtures {
+    static final String TABLE = "test-table";
+    static final String ADMIN_PHONE = "+15555550000";
+
+    private BenchmarkFixtures() {
+    }
+
+    static class StubSecretsManagerClient implements SecretsManagerClient {
+        private final GetSecretValueResponse response = GetSecretValueResponse.builder()
+                .versionId("benchmark")
+                .secretString("{ \"TwilioAccountSID\":\"foo\", " +
+                        "\"TwilioAccountSecret\":\"bar\", " +
+                        "\"StateDynamoTable\":\"" + TABLE + "\", " +
+                        "\"AdminPhoneNumber\":\"" + ADMIN_PHONE + "\", " +
+                        "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
+                .build();
+
+        @Override
+        public GetSecretValueResponse getSecretValue(final GetSecretValueRequest request) {
+            return this.response;
+        }
+
+        @Override
+        public String serviceName() {
+            return "secretsmanager";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Loads count participants into the fake, already assigned around one cycle. Every teamSize
+    // consecutive people (and every couple) cannot buy for each other, as in AssignmentEngineTests.
+    static FakeDynamoDbClient loadParticipants(final int count, final int teamSize) {
+        final FakeDynamoDbClient dbc = new FakeDynamoDbClient();
+        int i = 0;
+        for(final SecretSnowmanState person : AssignmentEngineTests.makePeople(count, teamSize)) {
+            dbc.put(TABLE, LambdaTests.makeItem(
+                    person.name(),
+                    person.phone().toString(),
+                    person.address(),
+                    person.cannot().stream().map(PhoneNumber::toString).collect(Collectors.toList()),
+                    AssignmentEngineTests.phone((i + 1) % count),
+                    i % 3 == 0));
+            i++;
+        }
+        return dbc;
+    }
+
+    // The form-encoded request Twilio posts for an incoming text
+    static Map<String, Object> text(final String from, final String body) {
+        try {
+            final Map<String, Object> request = new HashMap<>();
+            request.put("From", URLEncoder.encode(from, "UTF-8"));
+            request.put("Body", URLEncoder.encode(body, "UTF-8"));
+            return request;
+        } catch(final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Startup cost, measured once per freshly forked JVM so every class is loaded for the first time.
+// Each fork is one simulated cold start; the score is the mean over the forks.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class ColdStartBenchmark {
+    private FakeDynamoDbClient dynamoDbClient;
+    private Map<String, Object> request;
+
+    @Setup
+    public void setup() {
+        this.dynamoDbClient = BenchmarkFixtures.loadParticipants(10, 2);
+        this.request = BenchmarkFixtures.text(AssignmentEngineTests.phone(0), LambdaHandler.INTRO_COMMAND);
+    }
+
+    // What the Lambda runtime does during init: build the handler and its AWS clients
+    @Benchmark
+    public LambdaHandler constructHandler() {
+        return new LambdaHandler();
+    }
+
+    // Time to the first reply, from an empty JVM, with the table and secrets stubbed in memory
+    @Benchmark
+    public String firstResponse() {
+        return new LambdaHandler(this.dynamoDbClient, new BenchmarkFixtures.StubSecretsManagerClient())
+                .handleRequest(this.request, (Context) null);
+    }
+}
@@ -0,0 +1,73 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.type.PhoneNumber;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A batch of texts sent one after another, as the handler used to, against the same batch through
+// SmsDispatcher. Each send sleeps latencyMillis in place of the round trip to Twilio.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"32"})
+    public int count;
+
+    @Param({"100"})
+    public long latencyMillis;
+
+    private final PhoneNumber secretSnowmanPhoneNumber = new PhoneNumber("+15555550001");
+    private List<SecretSnowmanState> people;
+    private List<SecretSnowmanState> assignments;
+    private LambdaHandler.SendSMS sendSMS;
+    private SmsDispatcher dispatcher;
+
+    @Setup
+    public void setup() {
+        this.people = AssignmentEngineTests.makePeople(this.count, 4);
+        this.assignments = new ArrayList<>(this.people.subList(1, this.people.size()));
+        this.assignments.add(this.people.get(0));
+
+        final long latencyMillis = this.latencyMillis;
+        this.sendSMS = (ph, format, person, assignment) -> {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "SID-" + person.phone();
+        };
+        this.dispatcher = new SmsDispatcher(this.sendSMS, SmsDispatcher.DEFAULT_PARALLELISM, Double.MAX_VALUE, 3, 10);
+    }
+
+    @Benchmark
+    public List<String> sequential() {
+        final List<String> sids = new ArrayList<>(this.count);
+        for(int i = 0; i < this.count; i++) {
+            sids.add(this.sendSMS.send(this.secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, this.people.get(i), this.assignments.get(i)));
+        }
+        return sids;
+    }
+
+    @Benchmark
+    public List<SmsDispatcher.Delivery> dispatcher() {
+        return this.dispatcher.dispatch(this.secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, this.people, this.assignments);
+    }
+}
@@ -0,0 +1,68 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Per-invocation cost of handleRequest for every command, with the table, secrets and SMS stubbed
+// out in memory. Admin commands come from the admin number, the rest from a participant.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+    private static final Set<String> ADMIN_COMMANDS = Set.of(
+            LambdaHandler.CHECK_NO_GIFT_COMMAND,
+            LambdaHandler.CHECK_GIFTED_COMMAND,
+            LambdaHandler.ASSIGN_GIFTS_COMMAND,
+            LambdaHandler.REMIND_COMMAND,
+            LambdaHandler.BACKFILL_COMMAND,
+            LambdaHandler.RESEND_COMMAND);
+
+    @Param({"intro", "menu", "assignment", "gifted", "reset", "unknown",
+            "no gifts", "gifts", "assign gifts", "remind", "backfill", "resend"})
+    public String command;
+
+    @Param({"100"})
+    public int participants;
+
+    private LambdaHandler handler;
+    private Map<String, Object> request;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.handler = new LambdaHandler(
+                BenchmarkFixtures.loadParticipants(this.participants, 4),
+                new BenchmarkFixtures.StubSecretsManagerClient());
+
+        final String body = LambdaHandler.RESEND_COMMAND.equals(this.command)
+                ? this.command + " " + AssignmentEngineTests.phone(1)
+                : this.command;
+        final String from = ADMIN_COMMANDS.contains(this.command)
+                ? BenchmarkFixtures.ADMIN_PHONE
+                : AssignmentEngineTests.phone(0);
+        this.request = BenchmarkFixtures.text(from, body);
+    }
+
+    @Benchmark
+    public String handleRequest() {
+        return this.handler.handleRequest(this.request, (Context) null);
+    }
+}
@@ -0,0 +1,160 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+// Fires simulated Twilio webhooks at handleRequest from many threads at once and reports throughput
+// and latency percentiles. Each thread stands in for one Lambda container with its own handler, and
+// all of them share one in-memory table that can be given latency and a throughput limit, so a
+// traffic spike can be tried out before December brings one:
+//   mvn -B -P benchmarks test-compile exec:exec@load -Dload.args="requests=20000 concurrency=200 latency=8 capacity=3000"
+// With server=virtual or server=pool the texts are posted over HTTP to a SecretSnowmanServer
+// instead, one shared handler running each request on a virtual thread or on a pool of pool threads.
+public final class LoadDriver {
+    // Participant texts as they arrive in December, by weight. A few are Twilio retrying a text.
+    private static final String[] COMMANDS = { "assignment", "intro", "gifted", "reset", "menu" };
+    private static final int[] WEIGHTS = { 40, 20, 20, 10, 10 };
+    private static final double RETRY_RATE = 0.01;
+
+    private LoadDriver() {
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Map<String, String> options = new HashMap<>();
+        options.put("requests", "10000");
+        options.put("concurrency", "64");
+        options.put("participants", "500");
+        options.put("latency", "5");
+        options.put("capacity", "0");
+        options.put("server", "none");
+        options.put("pool", String.valueOf(SecretSnowmanServer.DEFAULT_POOL_SIZE));
+        for(final String arg : args) {
+            final String[] option = arg.split("=", 2);
+            if(option.length != 2 || !options.containsKey(option[0])) {
+                throw new IllegalArgumentException("unknown option " + arg + ", expected one of " + options.keySet());
+            }
+            options.put(option[0], option[1]);
+        }
+
+        final int requests = Integer.parseInt(options.get("requests"));
+        final int concurrency = Integer.parseInt(options.get("concurrency"));
+        final int participants = Integer.parseInt(options.get("participants"));
+        final long latencyMillis = Long.parseLong(options.get("latency"));
+        final double capacity = Double.parseDouble(options.get("capacity"));
+
+        final FakeDynamoDbClient dbc = BenchmarkFixtures.loadParticipants(participants, 4);
+        dbc.simulate(latencyMillis, capacity);
+        final BenchmarkFixtures.StubSecretsManagerClient smc = new BenchmarkFixtures.StubSecretsManagerClient();
+        final ThreadLocal<LambdaHandler> containers = ThreadLocal.withInitial(() -> new LambdaHandler(dbc, smc));
+        final String serverMode = options.get("server");
+        final SecretSnowmanServer server = serverMode.equals("none") ? null : new SecretSnowmanServer(
+                new LambdaHandler(dbc, smc),
+                SecretSnowmanServer.executor(serverMode, Integer.parseInt(options.get("pool"))),
+                new ConcurrencyLimiter(SecretSnowmanServer.MIN_IN_FLIGHT, SecretSnowmanServer.DEFAULT_MAX_IN_FLIGHT),
+                SecretSnowmanServer.DEFAULT_QUEUE_MILLIS,
+                new InetSocketAddress("127.0.0.1", 0));
+        final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        if(server != null) {
+            server.start();
+        }
+
+        final long[] latencies = new long[requests];
+        final Map<String, AtomicInteger> errors = new ConcurrentHashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final long started = System.nanoTime();
+        for(int i = 0; i < requests; i++) {
+            final int request = i;
+            executor.execute(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final Map<String, Object> text = BenchmarkFixtures.text(
+                        AssignmentEngineTests.phone(random.nextInt(participants)), command(random.nextInt(100)));
+                // A retry reuses the MessageSid of an earlier text
+                final int sid = random.nextDouble() < RETRY_RATE && request > 0 ? random.nextInt(request) : request;
+                text.put(LambdaHandler.MESSAGE_SID, String.format("SM%032d", sid));
+
+                final long start = System.nanoTime();
+                try {
+                    if(server == null) {
+                        containers.get().handleRequest(text, (Context) null);
+                    } else {
+                        final int status = post(client, server.port(), text);
+                        if(status != 200) {
+                            errors.computeIfAbsent("HTTP " + status, n -> new AtomicInteger()).incrementAndGet();
+                        }
+                    }
+                } catch(final RuntimeException | IOException e) {
+                    errors.computeIfAbsent(e.getClass().getSimpleName(), n -> new AtomicInteger()).incrementAndGet();
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latencies[request] = System.nanoTime() - start;
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        final long elapsed = System.nanoTime() - started;
+        if(server != null) {
+            server.stop(0);
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("%d requests, %d threads, %d participants, %d ms latency, %s capacity, server %s%n",
+                requests, concurrency, participants, latencyMillis, capacity > 0 ? capacity + "/s" : "unlimited",
+                server == null ? "none" : serverMode.equals(SecretSnowmanServer.POOL_EXECUTOR) ? "pool of " + options.get("pool") : serverMode);
+        System.out.printf("throughput %.1f requests/s over %.2f s%n", requests / (elapsed / 1e9), elapsed / 1e9);
+        System.out.printf("latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), latencies[requests - 1] / 1e6);
+        System.out.printf("errors %s%n", new TreeMap<>(errors));
+        System.out.printf("DynamoDB calls %d (%d items read)%n", dbc.totalCalls(), dbc.itemsRead());
+    }
+
+    // Posts a text the way Twilio does; the values are already form-encoded
+    private static int post(final HttpClient client, final int port, final Map<String, Object> text)
+            throws IOException, InterruptedException {
+
+        final String form = text.entrySet().stream()
+                .map(e -> e.getKey() + '=' + e.getValue())
+                .collect(Collectors.joining("&"));
+        return client.send(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + SecretSnowmanServer.WEBHOOK_PATH))
+                        .header("Content-Type", "application/x-www-form-urlencoded")
+                        .POST(HttpRequest.BodyPublishers.ofString(form))
+                        .build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static String command(final int roll) {
+        int total = 0;
+        for(int i = 0; i < COMMANDS.length; i++) {
+            total += WEIGHTS[i];
+            if(roll < total) {
+                return COMMANDS[i];
+            }
+        }
+        return COMMANDS[COMMANDS.length - 1];
+    }
+
+    // Nearest-rank percentile of sorted nanosecond latencies, in milliseconds
+    static double percentile(final long[] sorted, final double percent) {
+        final int rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+}
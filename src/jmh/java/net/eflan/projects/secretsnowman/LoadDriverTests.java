@@ -0,0 +1,47 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+
+// Runs with the benchmarks profile, which compiles the driver: mvn -B -P benchmarks test
+public class LoadDriverTests {
+    private static final double DELTA = 1e-9;
+
+    // 1ms through 10ms, in nanoseconds
+    private static final long[] TEN = { 1_000_000, 2_000_000, 3_000_000, 4_000_000, 5_000_000,
+            6_000_000, 7_000_000, 8_000_000, 9_000_000, 10_000_000 };
+
+    @Test
+    public void testNearestRank() {
+        Assert.assertEquals(5.0, LoadDriver.percentile(TEN, 50), DELTA);
+        Assert.assertEquals(9.0, LoadDriver.percentile(TEN, 90), DELTA);
+        // Rank 9.9 rounds up, never down to the 9th value
+        Assert.assertEquals(10.0, LoadDriver.percentile(TEN, 99), DELTA);
+        Assert.assertEquals(10.0, LoadDriver.percentile(TEN, 100), DELTA);
+        Assert.assertEquals(6.0, LoadDriver.percentile(TEN, 51), DELTA);
+    }
+
+    @Test
+    public void testLowPercentilesAreTheFastestRequest() {
+        Assert.assertEquals(1.0, LoadDriver.percentile(TEN, 0), DELTA);
+        Assert.assertEquals(1.0, LoadDriver.percentile(TEN, 10), DELTA);
+        Assert.assertEquals(2.0, LoadDriver.percentile(TEN, 10.5), DELTA);
+    }
+
+    @Test
+    public void testSingleRequest() {
+        final long[] one = { 1_500_000 };
+        for(final double percent : new double[] { 0, 50, 99, 100 }) {
+            Assert.assertEquals(1.5, LoadDriver.percentile(one, percent), DELTA);
+        }
+    }
+
+    @Test
+    public void testConvertsToMilliseconds() {
+        final long[] sorted = new long[1000];
+        for(int i = 0; i < sorted.length; i++) {
+            sorted[i] = (i + 1) * 1_000L;
+        }
+        Assert.assertEquals(0.5, LoadDriver.percentile(sorted, 50), DELTA);
+        Assert.assertEquals(0.99, LoadDriver.percentile(sorted, 99), DELTA);
+    }
+}
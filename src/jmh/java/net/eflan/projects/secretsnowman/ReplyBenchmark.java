@@ -0,0 +1,44 @@
+package net.eflan.projects.secretsnowman;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// The intro reply rendered three ways: formatted and serialized by the Twilio SDK as before,
+// formatted and escaped by ReplyRenderer, and straight from the precompiled template. Run with the
+// default -prof gc to compare allocation per reply.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyBenchmark {
+    private final ReplyRenderer.Template intro = ReplyRenderer.Template.compile(LambdaHandler.INTRO_FORMAT);
+    private final String name = "unit test name";
+    private final String recipient = "Bob & Alice";
+    private final String address = "123 Snowy Lane <North Pole>";
+
+    @Benchmark
+    public String sdk() {
+        return ReplyRenderer.sdkTWIML(String.format(LambdaHandler.INTRO_FORMAT, this.name, this.recipient, this.address));
+    }
+
+    @Benchmark
+    public String renderer() {
+        return ReplyRenderer.render(String.format(LambdaHandler.INTRO_FORMAT, this.name, this.recipient, this.address));
+    }
+
+    @Benchmark
+    public String template() {
+        return this.intro.render(this.name, this.recipient, this.address);
+    }
+}
@@ -0,0 +1,46 @@
+package net.eflan.projects.secretsnowman;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Finding everybody's recipient for the reminders: a stream filter over everyone per person, as
+// before, against the phone index in ParticipantRoster
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RosterLookupBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int size;
+
+    private List<SecretSnowmanState> people;
+
+    @Setup
+    public void setup() {
+        this.people = ParticipantRosterTests.cycle(this.size);
+    }
+
+    @Benchmark
+    public List<SecretSnowmanState> stream() {
+        return ParticipantRosterTests.streamLookup(this.people);
+    }
+
+    @Benchmark
+    public List<SecretSnowmanState> roster() {
+        return ParticipantRosterTests.rosterLookup(this.people);
+    }
+}
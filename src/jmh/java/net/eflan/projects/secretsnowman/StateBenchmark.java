@@ -0,0 +1,61 @@
+package net.eflan.projects.secretsnowman;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Parsing a participant row and rendering a reply, the two steps every text goes through
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+    @Param({"0", "4", "16"})
+    public int cannotMatch;
+
+    private Map<String, AttributeValue> item;
+    private String intro;
+
+    @Setup
+    public void setup() {
+        final List<String> cannot = new ArrayList<>();
+        for(int i = 0; i < this.cannotMatch; i++) {
+            cannot.add(AssignmentEngineTests.phone(i + 10));
+        }
+
+        this.item = LambdaTests.makeItem(
+                "unit test name",
+                AssignmentEngineTests.phone(1),
+                "123 Snowy Lane, North Pole",
+                cannot,
+                AssignmentEngineTests.phone(2),
+                false);
+        this.intro = String.format(LambdaHandler.INTRO_FORMAT, "unit test name", "recipient name", "123 Snowy Lane, North Pole");
+    }
+
+    @Benchmark
+    public SecretSnowmanState parseState() {
+        return SecretSnowmanState.from(this.item);
+    }
+
+    @Benchmark
+    public String renderTwiml() {
+        return LambdaHandler.toTWIML(this.intro);
+    }
+}
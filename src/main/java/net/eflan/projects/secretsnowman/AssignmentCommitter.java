@@ -0,0 +1,365 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.Delete;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.RequestLimitExceededException;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+import software.amazon.awssdk.services.dynamodb.model.TransactionInProgressException;
+import software.amazon.awssdk.services.dynamodb.model.Update;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// Writes a whole draw to DynamoDB in chunks of TransactWriteItems, running a few chunks at a time.
+// Each chunk is atomic on its own; if any chunk still fails after retrying, the chunks that did
+// commit are rolled back to the previous assignments so a draw is never left half-written. Should a
+// rollback fail too, a PartialCommitException says the table holds part of the draw.
+// Each row is only written if it is still at the version the draw was worked out from; when one
+// isn't, the draw is rolled back the same way and a ConflictException tells the caller to read again.
+public class AssignmentCommitter {
+    public static final int MAX_TRANSACTION_ITEMS = 100;
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long BASE_BACKOFF_MILLIS = 50;
+    // Passed as the expected version of a write that goes in whatever the row's version is
+    static final long ANY_VERSION = -1;
+
+    // Some row changed after it was read, so the draw was rolled back rather than written over it
+    public static class ConflictException extends RuntimeException {
+        public ConflictException(final String message) {
+            super(message);
+        }
+    }
+
+    // A write failed and some chunks that had committed could not be put back either
+    public static class PartialCommitException extends RuntimeException {
+        public PartialCommitException(final String message) {
+            super(message);
+        }
+    }
+
+    private enum Outcome { COMMITTED, CONFLICT, FAILED }
+
+    private final DynamoDbClient dbc;
+    private final ExecutorService executor;
+    private final int maxAttempts;
+
+    public AssignmentCommitter(final DynamoDbClient dbc) {
+        this(dbc, DEFAULT_PARALLELISM, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public AssignmentCommitter(final DynamoDbClient dbc, final int parallelism, final int maxAttempts) {
+        this.dbc = dbc;
+        this.maxAttempts = maxAttempts;
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread t = new Thread(r, "assignment-committer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // people.get(i) is assigned assignments.get(i). Returns false, with the table left as it was, on
+    // failure, and throws ConflictException, also with the table as it was, if a row had changed.
+    // Throws PartialCommitException when the table couldn't be put back as it was.
+    public boolean commit(
+            final String secretSnowmanTable,
+            final List<SecretSnowmanState> people,
+            final List<SecretSnowmanState> assignments) {
+
+        final List<List<TransactWriteItem>> chunks = new ArrayList<>();
+        final List<List<TransactWriteItem>> rollbacks = new ArrayList<>();
+        for(int start = 0; start < people.size(); start += MAX_TRANSACTION_ITEMS) {
+            final int end = Math.min(people.size(), start + MAX_TRANSACTION_ITEMS);
+            final List<TransactWriteItem> chunk = new ArrayList<>(end - start);
+            final List<TransactWriteItem> rollback = new ArrayList<>(end - start);
+
+            for(int i = start; i < end; i++) {
+                final SecretSnowmanState person = people.get(i);
+                final SecretSnowmanState assignment = assignments.get(i);
+                final String phoneNumber = person.phone().toString();
+
+                chunk.add(updateAssigned(
+                        secretSnowmanTable,
+                        person.group(),
+                        phoneNumber,
+                        assignment.phone().toString(),
+                        assignment.name(),
+                        assignment.address(),
+                        person.version()));
+                rollback.add(person.hasAssignment()
+                        ? updateAssigned(
+                                secretSnowmanTable,
+                                person.group(),
+                                phoneNumber,
+                                person.assigned().toString(),
+                                person.assignedName(),
+                                person.assignedAddress(),
+                                ANY_VERSION)
+                        : removeAssigned(secretSnowmanTable, person.group(), phoneNumber));
+            }
+
+            chunks.add(chunk);
+            rollbacks.add(rollback);
+        }
+
+        final List<Future<Outcome>> results = new ArrayList<>(chunks.size());
+        for(final List<TransactWriteItem> chunk : chunks) {
+            results.add(this.executor.submit(() -> write(chunk)));
+        }
+
+        final List<Integer> committed = new ArrayList<>();
+        boolean conflict = false;
+        for(int i = 0; i < results.size(); i++) {
+            final Outcome outcome = outcome(results.get(i));
+            if(outcome == Outcome.COMMITTED) {
+                committed.add(i);
+            }
+            conflict |= outcome == Outcome.CONFLICT;
+        }
+
+        if(committed.size() == chunks.size()) {
+            return true;
+        }
+
+        // Put back whatever did make it in so the draw is all-or-nothing
+        final List<Future<Outcome>> undone = new ArrayList<>(committed.size());
+        for(final int i : committed) {
+            undone.add(this.executor.submit(() -> write(rollbacks.get(i))));
+        }
+        int stuck = 0;
+        for(final Future<Outcome> u : undone) {
+            if(outcome(u) != Outcome.COMMITTED) {
+                stuck++;
+            }
+        }
+
+        if(stuck > 0) {
+            throw new PartialCommitException(stuck + " of " + chunks.size() + " chunks could not be rolled back");
+        }
+        if(conflict) {
+            throw new ConflictException("A participant's row changed while the assignments were being worked out");
+        }
+        return false;
+    }
+
+    // A splice changes a handful of rows, and a leave also deletes the leaver's row. All of it goes in
+    // one transaction, each row only if it is still at the version read, so a join or a gift marked
+    // in between makes the caller read the group again instead of losing either write. Returns false
+    // with nothing written on failure, and throws ConflictException if a row had changed.
+    public boolean commitSplice(
+            final String secretSnowmanTable,
+            final List<SecretSnowmanState> givers,
+            final List<SecretSnowmanState> recipients,
+            final List<SecretSnowmanState> removed) {
+
+        if(givers.size() + removed.size() > MAX_TRANSACTION_ITEMS) {
+            throw new IllegalArgumentException("A splice of " + (givers.size() + removed.size()) + " rows doesn't fit one transaction");
+        }
+
+        final List<TransactWriteItem> items = new ArrayList<>(givers.size() + removed.size());
+        for(int i = 0; i < givers.size(); i++) {
+            final SecretSnowmanState giver = givers.get(i);
+            final SecretSnowmanState recipient = recipients.get(i);
+            items.add(updateAssigned(
+                    secretSnowmanTable,
+                    giver.group(),
+                    giver.phone().toString(),
+                    recipient.phone().toString(),
+                    recipient.name(),
+                    recipient.address(),
+                    giver.version()));
+        }
+        for(final SecretSnowmanState person : removed) {
+            items.add(delete(secretSnowmanTable, person.group(), person.phone().toString(), person.version()));
+        }
+
+        final Outcome outcome = outcome(this.executor.submit(() -> write(items)));
+        if(outcome == Outcome.CONFLICT) {
+            throw new ConflictException("A participant's row changed while the splice was being worked out");
+        }
+        return outcome == Outcome.COMMITTED;
+    }
+
+    private static Outcome outcome(final Future<Outcome> result) {
+        try {
+            return result.get();
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.FAILED;
+        } catch(final ExecutionException e) {
+            return Outcome.FAILED;
+        }
+    }
+
+    // Stores the recipient's name and address next to assigned so replies need only the giver's row.
+    // A null name or address removes the snapshot, which is how a rollback restores an older row.
+    // The write bumps the row's version, and unless expectedVersion is ANY_VERSION it only goes in
+    // while the row is still at that version. It never goes in for a row that has been deleted, since
+    // an update would otherwise put it back holding nothing but the assignment.
+    static TransactWriteItem updateAssigned(
+            final String secretSnowmanTable,
+            final String group,
+            final String phoneNumber,
+            final String assignmentPhoneNumber,
+            final String assignmentName,
+            final String assignmentAddress,
+            final long expectedVersion) {
+
+        final Map<String, AttributeValue> key = SecretSnowmanState.key(group, phoneNumber);
+
+        final Map<String, String> names = new HashMap<>();
+        names.put("#an", SecretSnowmanState.ASSIGNED_NAME_KEY);
+        names.put("#aa", SecretSnowmanState.ASSIGNED_ADDRESS_KEY);
+        names.put("#ver", SecretSnowmanState.VERSION_KEY);
+        names.put("#phoneNumber", SecretSnowmanState.PHONE_NUMBER_KEY);
+
+        final Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":pn", AttributeValue.builder().s(assignmentPhoneNumber).build());
+        values.put(":zero", AttributeValue.builder().n("0").build());
+        values.put(":one", AttributeValue.builder().n("1").build());
+
+        final String updateExpression;
+        if(assignmentName != null && assignmentAddress != null) {
+            values.put(":an", AttributeValue.builder().s(assignmentName).build());
+            values.put(":aa", AttributeValue.builder().s(assignmentAddress).build());
+            updateExpression = "set assigned = :pn, #an = :an, #aa = :aa, #ver = if_not_exists(#ver, :zero) + :one";
+        } else {
+            updateExpression = "set assigned = :pn, #ver = if_not_exists(#ver, :zero) + :one remove #an, #aa";
+        }
+
+        final Update.Builder update = Update.builder()
+                .tableName(secretSnowmanTable)
+                .key(key)
+                .updateExpression(updateExpression)
+                .expressionAttributeNames(names);
+
+        // Written out in full for each disjunct; AND binds tighter than OR
+        if(expectedVersion == 0) {
+            update.conditionExpression(
+                    "attribute_exists(#phoneNumber) AND attribute_not_exists(#ver) OR attribute_exists(#phoneNumber) AND #ver = :zero");
+        } else if(expectedVersion != ANY_VERSION) {
+            values.put(":expected", AttributeValue.builder().n(Long.toString(expectedVersion)).build());
+            update.conditionExpression("#ver = :expected");
+        } else {
+            update.conditionExpression("attribute_exists(#phoneNumber)");
+        }
+
+        return TransactWriteItem.builder().update(update.expressionAttributeValues(values).build()).build();
+    }
+
+    // Deletes a row that is still at expectedVersion
+    static TransactWriteItem delete(
+            final String secretSnowmanTable,
+            final String group,
+            final String phoneNumber,
+            final long expectedVersion) {
+
+        final Delete.Builder delete = Delete.builder()
+                .tableName(secretSnowmanTable)
+                .key(SecretSnowmanState.key(group, phoneNumber))
+                .expressionAttributeNames(Map.of(
+                        "#ver", SecretSnowmanState.VERSION_KEY,
+                        "#phoneNumber", SecretSnowmanState.PHONE_NUMBER_KEY));
+
+        if(expectedVersion == 0) {
+            delete.conditionExpression(
+                    "attribute_exists(#phoneNumber) AND attribute_not_exists(#ver) OR attribute_exists(#phoneNumber) AND #ver = :zero")
+                    .expressionAttributeValues(Map.of(":zero", AttributeValue.builder().n("0").build()));
+        } else {
+            delete.conditionExpression("#ver = :expected")
+                    .expressionAttributeValues(Map.of(":expected", AttributeValue.builder().n(Long.toString(expectedVersion)).build()));
+        }
+
+        return TransactWriteItem.builder().delete(delete.build()).build();
+    }
+
+    // Puts back a row that had never been drawn, if the row is still there. Version bumped as updateAssigned does.
+    static TransactWriteItem removeAssigned(
+            final String secretSnowmanTable,
+            final String group,
+            final String phoneNumber) {
+
+        final Map<String, String> names = new HashMap<>();
+        names.put("#assigned", SecretSnowmanState.ASSIGNED_KEY);
+        names.put("#an", SecretSnowmanState.ASSIGNED_NAME_KEY);
+        names.put("#aa", SecretSnowmanState.ASSIGNED_ADDRESS_KEY);
+        names.put("#ver", SecretSnowmanState.VERSION_KEY);
+        names.put("#phoneNumber", SecretSnowmanState.PHONE_NUMBER_KEY);
+
+        final Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":zero", AttributeValue.builder().n("0").build());
+        values.put(":one", AttributeValue.builder().n("1").build());
+
+        return TransactWriteItem.builder().update(Update.builder()
+                .tableName(secretSnowmanTable)
+                .key(SecretSnowmanState.key(group, phoneNumber))
+                .updateExpression("set #ver = if_not_exists(#ver, :zero) + :one remove #assigned, #an, #aa")
+                .conditionExpression("attribute_exists(#phoneNumber)")
+                .expressionAttributeNames(names)
+                .expressionAttributeValues(values)
+                .build()).build();
+    }
+
+    // Retries throttled or conflicting transactions with exponential backoff. The client request
+    // token makes a retry of a transaction that actually went through a no-op. A failed version
+    // check isn't retried, since the row will be at the same version next time too.
+    private Outcome write(final List<TransactWriteItem> items) throws InterruptedException {
+        final TransactWriteItemsRequest request = TransactWriteItemsRequest.builder()
+                .transactItems(items)
+                .clientRequestToken(UUID.randomUUID().toString())
+                .build();
+
+        for(int attempt = 0; attempt < this.maxAttempts; attempt++) {
+            try {
+                this.dbc.transactWriteItems(request);
+                return Outcome.COMMITTED;
+            } catch(final TransactionCanceledException e) {
+                if(hasReason(e, "ConditionalCheckFailed")) {
+                    return Outcome.CONFLICT;
+                }
+                if(!hasReason(e, "TransactionConflict", "ThrottlingError", "ProvisionedThroughputExceeded")) {
+                    return Outcome.FAILED;
+                }
+            } catch(final ProvisionedThroughputExceededException
+                    | RequestLimitExceededException
+                    | TransactionInProgressException e) {
+                // fall through to backoff
+            }
+
+            if(attempt + 1 < this.maxAttempts) {
+                Thread.sleep(BASE_BACKOFF_MILLIS << attempt);
+            }
+        }
+
+        return Outcome.FAILED;
+    }
+
+    private static boolean hasReason(final TransactionCanceledException e, final String... codes) {
+        if(e.cancellationReasons() == null) {
+            return false;
+        }
+
+        for(final CancellationReason reason : e.cancellationReasons()) {
+            for(final String code : codes) {
+                if(code.equals(reason.code())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,222 @@
+package net.eflan.projects.secretsnowman;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+public class AssignmentEngine {
+    public static final long DEFAULT_MAX_STEPS = 2_000_000L;
+    public static final int DEFAULT_RESTARTS = 8;
+
+    private final Random random;
+    private final long maxSteps;
+    private final int restarts;
+    // Search steps the last assign() took over all its attempts
+    private volatile long lastSteps = 0;
+
+    public AssignmentEngine() {
+        this(new Random(), DEFAULT_MAX_STEPS, DEFAULT_RESTARTS);
+    }
+
+    public AssignmentEngine(final Random random, final long maxSteps, final int restarts) {
+        this.random = random;
+        this.maxSteps = maxSteps;
+        this.restarts = restarts;
+    }
+
+    public long lastSteps() {
+        return this.lastSteps;
+    }
+
+    // Builds the allowed-giving graph: canGive[i] has bit j set when person i may buy for person j.
+    static BitSet[] allowedGraph(final ParticipantRoster roster) {
+        final int n = roster.size();
+        final BitSet[] canGive = new BitSet[n];
+        for(int i = 0; i < n; i++) {
+            canGive[i] = new BitSet(n);
+            canGive[i].set(0, n);
+            canGive[i].clear(i);
+
+            for(final String cannot : roster.cannot(i)) {
+                final int j = roster.indexOf(cannot);
+                if(j >= 0) {
+                    canGive[i].clear(j);
+                }
+            }
+        }
+
+        return canGive;
+    }
+
+    // Finds a single gift-giving cycle through everybody such that nobody buys for themselves or for
+    // anyone on their cannot-match list. The result is aligned with people (the i-th element is whom
+    // people.get(i) buys for), or empty if no cycle exists or none was found within the step budget.
+    public Optional<List<SecretSnowmanState>> assign(final List<SecretSnowmanState> people) {
+        return assign(new ParticipantRoster(people));
+    }
+
+    public Optional<List<SecretSnowmanState>> assign(final ParticipantRoster roster) {
+        final List<SecretSnowmanState> people = roster.people();
+        final int n = people.size();
+        this.lastSteps = 0;
+        if(n < 2) {
+            return Optional.empty();
+        }
+
+        final BitSet[] canGive = allowedGraph(roster);
+        final BitSet[] canReceive = new BitSet[n];
+        for(int j = 0; j < n; j++) {
+            canReceive[j] = new BitSet(n);
+        }
+        for(int i = 0; i < n; i++) {
+            for(int j = canGive[i].nextSetBit(0); j >= 0; j = canGive[i].nextSetBit(j + 1)) {
+                canReceive[j].set(i);
+            }
+        }
+
+        // Somebody with nobody to buy for, or nobody to buy for them, can never be placed.
+        for(int i = 0; i < n; i++) {
+            if(canGive[i].isEmpty() || canReceive[i].isEmpty()) {
+                return Optional.empty();
+            }
+        }
+
+        final long stepsPerAttempt = Math.max(1, this.maxSteps / Math.max(1, this.restarts));
+        final long[] steps = { 0 };
+        for(int attempt = 0; attempt < this.restarts; attempt++) {
+            final int[] next = findCycle(canGive, canReceive, stepsPerAttempt, steps);
+            this.lastSteps = steps[0];
+            if(next != null) {
+                final List<SecretSnowmanState> assignments = new ArrayList<>(n);
+                for(int i = 0; i < n; i++) {
+                    assignments.add(people.get(next[i]));
+                }
+                return Optional.of(assignments);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    // Randomized depth-first search for a Hamiltonian cycle. Candidates are tried in order of
+    // fewest remaining options first (ties broken randomly), and a branch is abandoned as soon as
+    // nobody left unvisited could still close the cycle back to the start.
+    private int[] findCycle(final BitSet[] canGive, final BitSet[] canReceive, final long maxSteps, final long[] totalSteps) {
+        final int n = canGive.length;
+        final int start = this.random.nextInt(n);
+
+        final int[] path = new int[n];
+        final List<int[]> candidates = new ArrayList<>(n);
+        final int[] cursor = new int[n];
+        final BitSet visited = new BitSet(n);
+        final BitSet unvisitedClosers = (BitSet) canReceive[start].clone();
+
+        path[0] = start;
+        visited.set(start);
+        candidates.add(orderedCandidates(canGive, start, visited));
+        cursor[0] = 0;
+        int depth = 0;
+        long steps = 0;
+
+        while(depth >= 0) {
+            totalSteps[0]++;
+            if(++steps > maxSteps) {
+                return null;
+            }
+
+            final int current = path[depth];
+            if(depth == n - 1) {
+                if(canGive[current].get(start)) {
+                    final int[] next = new int[n];
+                    for(int i = 0; i < n - 1; i++) {
+                        next[path[i]] = path[i + 1];
+                    }
+                    next[path[n - 1]] = start;
+                    return next;
+                }
+                depth = backtrack(path, candidates, visited, unvisitedClosers, canReceive, start, depth);
+                continue;
+            }
+
+            final int[] options = candidates.get(depth);
+            if(cursor[depth] >= options.length) {
+                depth = backtrack(path, candidates, visited, unvisitedClosers, canReceive, start, depth);
+                continue;
+            }
+
+            final int candidate = options[cursor[depth]++];
+            if(visited.get(candidate)) {
+                continue;
+            }
+
+            visited.set(candidate);
+            unvisitedClosers.clear(candidate);
+
+            // Unless the candidate is the last person, someone still unvisited has to be able to buy for start.
+            final boolean last = depth + 1 == n - 1;
+            if(!last && unvisitedClosers.isEmpty()) {
+                visited.clear(candidate);
+                if(canReceive[start].get(candidate)) {
+                    unvisitedClosers.set(candidate);
+                }
+                continue;
+            }
+
+            depth++;
+            path[depth] = candidate;
+            cursor[depth] = 0;
+            if(candidates.size() > depth) {
+                candidates.set(depth, orderedCandidates(canGive, candidate, visited));
+            } else {
+                candidates.add(orderedCandidates(canGive, candidate, visited));
+            }
+        }
+
+        return null;
+    }
+
+    private static int backtrack(
+            final int[] path,
+            final List<int[]> candidates,
+            final BitSet visited,
+            final BitSet unvisitedClosers,
+            final BitSet[] canReceive,
+            final int start,
+            final int depth) {
+
+        final int node = path[depth];
+        if(node != start) {
+            visited.clear(node);
+            if(canReceive[start].get(node)) {
+                unvisitedClosers.set(node);
+            }
+        }
+        candidates.set(depth, null);
+        return depth - 1;
+    }
+
+    private int[] orderedCandidates(final BitSet[] canGive, final int from, final BitSet visited) {
+        final BitSet open = (BitSet) canGive[from].clone();
+        open.andNot(visited);
+
+        final List<int[]> scored = new ArrayList<>(open.cardinality());
+        for(int j = open.nextSetBit(0); j >= 0; j = open.nextSetBit(j + 1)) {
+            final BitSet onward = (BitSet) canGive[j].clone();
+            onward.andNot(visited);
+            onward.clear(j);
+            scored.add(new int[] { j, onward.cardinality() });
+        }
+
+        Collections.shuffle(scored, this.random);
+        scored.sort((a, b) -> Integer.compare(a[1], b[1]));
+
+        final int[] ordered = new int[scored.size()];
+        for(int i = 0; i < ordered.length; i++) {
+            ordered[i] = scored.get(i)[0];
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,152 @@
+package net.eflan.projects.secretsnowman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+// Adds a person to, or takes one out of, the gift-giving cycle of a draw that has already gone out,
+// changing as few assignments as possible instead of redrawing everybody. Nobody who has already
+// bought their gift is moved, unless their recipient is the one leaving.
+public class AssignmentSplicer {
+    private final Random random;
+
+    public AssignmentSplicer() {
+        this(new Random());
+    }
+
+    public AssignmentSplicer(final Random random) {
+        this.random = random;
+    }
+
+    // The assignments a splice changes: givers().get(i) now buys for recipients().get(i)
+    public static final class Splice {
+        private final List<SecretSnowmanState> givers;
+        private final List<SecretSnowmanState> recipients;
+
+        Splice(final List<SecretSnowmanState> givers, final List<SecretSnowmanState> recipients) {
+            this.givers = Collections.unmodifiableList(givers);
+            this.recipients = Collections.unmodifiableList(recipients);
+        }
+
+        public List<SecretSnowmanState> givers() { return this.givers; }
+        public List<SecretSnowmanState> recipients() { return this.recipients; }
+    }
+
+    // Puts joiner between a giver and their recipient: giver -> joiner -> old recipient. Two rows
+    // change. Empty if no giver who hasn't bought yet can take the joiner under the cannot-match lists.
+    public Optional<Splice> join(final ParticipantRoster roster, final int joiner) {
+        int chosen = -1;
+        int seen = 0;
+        for(int giver = 0; giver < roster.size(); giver++) {
+            final int recipient = recipientOf(roster, giver);
+            if(giver == joiner
+                    || recipient < 0
+                    || recipient == joiner
+                    || roster.get(giver).purchased()
+                    || !roster.canGive(giver, joiner)
+                    || !roster.canGive(joiner, recipient)) {
+                continue;
+            }
+
+            // Pick uniformly among the places the joiner fits, so where they land says nothing
+            if(this.random.nextInt(++seen) == 0) {
+                chosen = giver;
+            }
+        }
+
+        if(chosen < 0) {
+            return Optional.empty();
+        }
+
+        return Optional.of(splice(roster,
+                chosen, joiner,
+                joiner, recipientOf(roster, chosen)));
+    }
+
+    // Closes the gap the leaver leaves behind. Their giver takes over the leaver's recipient when
+    // allowed (one row). Otherwise the rest of the cycle is cut in two more places and the three
+    // pieces rejoined in a different order (three rows). Empty if neither works, or if too few
+    // people would be left. A leaver nobody is buying for changes nothing.
+    public Optional<Splice> leave(final ParticipantRoster roster, final int leaver) {
+        final int next = recipientOf(roster, leaver);
+        int giver = -1;
+        for(int i = 0; i < roster.size(); i++) {
+            if(i != leaver && recipientOf(roster, i) == leaver) {
+                giver = i;
+                break;
+            }
+        }
+
+        if(giver < 0) {
+            return Optional.of(new Splice(new ArrayList<>(), new ArrayList<>()));
+        }
+        if(next < 0 || next == leaver || next == giver) {
+            return Optional.empty();
+        }
+        if(roster.canGive(giver, next)) {
+            return Optional.of(splice(roster, giver, next));
+        }
+
+        // The rest of the cycle as a path from the leaver's recipient round to their giver
+        final List<Integer> path = new ArrayList<>();
+        for(int i = next; i != giver; i = recipientOf(roster, i)) {
+            if(i < 0 || i == leaver || path.size() >= roster.size()) {
+                return Optional.empty();
+            }
+            path.add(i);
+        }
+        path.add(giver);
+
+        // next..a, b..c, d..giver becomes next..a, d..giver, b..c: a -> d, giver -> b, c -> next
+        final int k = path.size() - 1;
+        int[] chosen = null;
+        int seen = 0;
+        for(int i = 0; i + 1 < k; i++) {
+            final int a = path.get(i);
+            final int b = path.get(i + 1);
+            if(roster.get(a).purchased() || !roster.canGive(giver, b)) {
+                continue;
+            }
+
+            for(int j = i + 1; j < k; j++) {
+                final int c = path.get(j);
+                final int d = path.get(j + 1);
+                if(roster.get(c).purchased() || !roster.canGive(a, d) || !roster.canGive(c, next)) {
+                    continue;
+                }
+
+                if(this.random.nextInt(++seen) == 0) {
+                    chosen = new int[] { a, b, c, d };
+                }
+            }
+        }
+
+        if(chosen == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(splice(roster,
+                chosen[0], chosen[3],
+                giver, chosen[1],
+                chosen[2], next));
+    }
+
+    // Position of whom i buys for, or -1 if that isn't anybody in the roster
+    private static int recipientOf(final ParticipantRoster roster, final int i) {
+        final SecretSnowmanState recipient = roster.recipientOf(i);
+        return recipient == null ? -1 : roster.indexOf(ParticipantRoster.e164(recipient.phone()));
+    }
+
+    // Pairs of giver and new recipient positions
+    private static Splice splice(final ParticipantRoster roster, final int... pairs) {
+        final List<SecretSnowmanState> givers = new ArrayList<>(pairs.length / 2);
+        final List<SecretSnowmanState> recipients = new ArrayList<>(pairs.length / 2);
+        for(int i = 0; i < pairs.length; i += 2) {
+            givers.add(roster.get(pairs[i]));
+            recipients.add(roster.get(pairs[i + 1]));
+        }
+        return new Splice(givers, recipients);
+    }
+}
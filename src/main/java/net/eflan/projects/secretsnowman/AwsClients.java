@@ -0,0 +1,54 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProviderChain;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+
+// Builds the AWS clients for a cold Lambda container. Lambda hands us credentials and the region as
+// environment variables, so those are tried before the rest of the default chains, which stay
+// behind them for the server, the importer and anything else run outside Lambda (a profile, an
+// instance or task role). Both clients share the SDK's HttpURLConnection client rather than
+// starting the Apache one. The interceptor sees every call a client makes.
+public final class AwsClients {
+    private static final SdkHttpClient HTTP_CLIENT = UrlConnectionHttpClient.builder().build();
+
+    private static final AwsCredentialsProvider CREDENTIALS = AwsCredentialsProviderChain.builder()
+            .credentialsProviders(EnvironmentVariableCredentialsProvider.create(), DefaultCredentialsProvider.create())
+            .build();
+
+    private AwsClients() {
+    }
+
+    public static DynamoDbClient dynamoDb(final ExecutionInterceptor interceptor) {
+        return configure(DynamoDbClient.builder(), interceptor)
+                .httpClient(HTTP_CLIENT)
+                .build();
+    }
+
+    public static SecretsManagerClient secretsManager(final ExecutionInterceptor interceptor) {
+        return configure(SecretsManagerClient.builder(), interceptor)
+                .httpClient(HTTP_CLIENT)
+                .build();
+    }
+
+    // Without AWS_REGION the builder walks the default region chain, and fails if nothing names one
+    private static <B extends AwsClientBuilder<B, ?>> B configure(final B builder, final ExecutionInterceptor interceptor) {
+        final String region = System.getenv("AWS_REGION");
+        if(region != null && !region.isEmpty()) {
+            builder.region(Region.of(region));
+        }
+
+        return builder
+                .credentialsProvider(CREDENTIALS)
+                .overrideConfiguration(ClientOverrideConfiguration.builder().addExecutionInterceptor(interceptor).build());
+    }
+}
@@ -0,0 +1,136 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// The commands a text can carry, each registered with who may run it and what it reads from the
+// table. The handler looks a text up here once and fetches only what that command declared, so
+// adding a command is one register call rather than another branch in every chain.
+public class CommandRegistry {
+    public enum Permission { ADMIN, PARTICIPANT }
+
+    // What a participant command reads before it runs. RECIPIENT reads the sender too.
+    public enum Needs { NOTHING, RECIPIENT }
+
+    public interface AdminHandler {
+        String handle(String group, String arguments) throws IOException;
+    }
+
+    // sender and recipient are null unless the command declared it needs them
+    public interface ParticipantHandler {
+        String handle(String command, SecretSnowmanState sender, SecretSnowmanState recipient);
+    }
+
+    // A write to the sender's row that doesn't depend on what the command reads, so it can be in
+    // flight together with the reads
+    public interface SenderUpdate {
+        UpdateItemRequest build(String secretSnowmanTable, String group, String phoneNumber);
+    }
+
+    public static final class Command {
+        private final String name;
+        private final Permission permission;
+        private final Needs needs;
+        private final boolean takesArguments;
+        private final AdminHandler admin;
+        private final ParticipantHandler participant;
+        private final SenderUpdate senderUpdate;
+
+        private Command(
+                final String name,
+                final Permission permission,
+                final Needs needs,
+                final boolean takesArguments,
+                final AdminHandler admin,
+                final ParticipantHandler participant,
+                final SenderUpdate senderUpdate) {
+
+            this.name = name;
+            this.permission = permission;
+            this.needs = needs;
+            this.takesArguments = takesArguments;
+            this.admin = admin;
+            this.participant = participant;
+            this.senderUpdate = senderUpdate;
+        }
+
+        public String name() { return this.name; }
+        public Permission permission() { return this.permission; }
+        public Needs needs() { return this.needs; }
+        public boolean takesArguments() { return this.takesArguments; }
+        public AdminHandler admin() { return this.admin; }
+        public ParticipantHandler participant() { return this.participant; }
+        public SenderUpdate senderUpdate() { return this.senderUpdate; }
+    }
+
+    public static final class Match {
+        private final Command command;
+        private final String arguments;
+
+        Match(final Command command, final String arguments) {
+            this.command = command;
+            this.arguments = arguments;
+        }
+
+        public Command command() { return this.command; }
+        public String arguments() { return this.arguments; }
+    }
+
+    private final Map<String, Command> commands = new HashMap<>();
+
+    public CommandRegistry admin(final String name, final boolean takesArguments, final AdminHandler handler) {
+        return add(new Command(name, Permission.ADMIN, Needs.NOTHING, takesArguments, handler, null, null));
+    }
+
+    public CommandRegistry participant(
+            final String name,
+            final Needs needs,
+            final SenderUpdate senderUpdate,
+            final ParticipantHandler handler) {
+
+        return add(new Command(name, Permission.PARTICIPANT, needs, false, null, handler, senderUpdate));
+    }
+
+    private CommandRegistry add(final Command command) {
+        if(this.commands.putIfAbsent(command.name(), command) != null) {
+            throw new IllegalArgumentException("Command registered twice: " + command.name());
+        }
+        return this;
+    }
+
+    // The command the whole text names, or null
+    public Command get(final String text) {
+        return this.commands.get(text);
+    }
+
+    // The command the text starts with, and what follows it. The whole text is looked up first, then
+    // each shorter run of whole words, and last the leading letters, for a command whose argument
+    // runs straight on (as in "resend+15555550003").
+    public Match match(final String text) {
+        final Command exact = this.commands.get(text);
+        if(exact != null) {
+            return new Match(exact, "");
+        }
+
+        for(int space = text.lastIndexOf(' '); space > 0; space = text.lastIndexOf(' ', space - 1)) {
+            final Command command = this.commands.get(text.substring(0, space));
+            if(command != null) {
+                return new Match(command, text.substring(space + 1).trim());
+            }
+        }
+
+        int letters = 0;
+        while(letters < text.length() && Character.isLetter(text.charAt(letters))) {
+            letters++;
+        }
+        final Command command = this.commands.get(text.substring(0, letters));
+        if(command != null && command.takesArguments()) {
+            return new Match(command, text.substring(letters).trim());
+        }
+
+        return null;
+    }
+}
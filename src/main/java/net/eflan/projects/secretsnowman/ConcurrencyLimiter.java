@@ -0,0 +1,78 @@
+package net.eflan.projects.secretsnowman;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Caps the number of requests in flight, and adapts the cap to what DynamoDB and Twilio can take:
+// it is halved whenever a request comes back throttled and grows back by one for every limit's
+// worth of requests that don't. Requests over the cap wait for a slot rather than piling more
+// calls onto a throttled table. A lock and condition rather than a monitor, so a virtual thread
+// waiting here gives up its carrier.
+public class ConcurrencyLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = this.lock.newCondition();
+
+    private double limit;
+    private int inFlight = 0;
+
+    public ConcurrencyLimiter(final int minLimit, final int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    // Waits up to timeoutMillis for a slot; false if none came free
+    public boolean acquire(final long timeoutMillis) throws InterruptedException {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.lock.lock();
+        try {
+            while(this.inFlight >= (int) this.limit) {
+                if(remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = this.released.awaitNanos(remainingNanos);
+            }
+            this.inFlight++;
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Gives back a slot taken by acquire, saying whether a downstream call was throttled
+    public void release(final boolean throttled) {
+        this.lock.lock();
+        try {
+            this.inFlight--;
+            if(throttled) {
+                this.limit = Math.max(this.minLimit, this.limit / 2);
+            } else {
+                this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+            }
+            this.released.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int limit() {
+        this.lock.lock();
+        try {
+            return (int) this.limit;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        this.lock.lock();
+        try {
+            return this.inFlight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
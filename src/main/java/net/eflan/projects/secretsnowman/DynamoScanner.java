@@ -0,0 +1,208 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Streams the items of a scan or query lazily, one page at a time, following LastEvaluatedKey until
+// the table is exhausted. With more than one segment, the segments of a scan are scanned in parallel.
+public class DynamoScanner {
+    public static final int DEFAULT_TOTAL_SEGMENTS = 1;
+
+    // Only the attributes SecretSnowmanState.from reads
+    public static final String STATE_PROJECTION = "#gid, #pn, #as, #an, #aa, #cm, #gn, #gp, #ad, #ver";
+    public static final Map<String, String> STATE_PROJECTION_NAMES = Map.of(
+            "#gid", SecretSnowmanState.GROUP_KEY,
+            "#pn", SecretSnowmanState.PHONE_NUMBER_KEY,
+            "#as", SecretSnowmanState.ASSIGNED_KEY,
+            "#an", SecretSnowmanState.ASSIGNED_NAME_KEY,
+            "#aa", SecretSnowmanState.ASSIGNED_ADDRESS_KEY,
+            "#cm", SecretSnowmanState.CANNOT_MATCH_KEY,
+            "#gn", SecretSnowmanState.GIFT_GIVER_NAME_KEY,
+            "#gp", SecretSnowmanState.GIFT_PURCHASE_KEY,
+            "#ad", SecretSnowmanState.ADDRESS_KEY,
+            "#ver", SecretSnowmanState.VERSION_KEY);
+
+    private DynamoScanner() {
+    }
+
+    public static int totalSegmentsFromEnvironment() {
+        final String segments = System.getenv("SCAN_SEGMENTS");
+        return segments == null ? DEFAULT_TOTAL_SEGMENTS : Integer.parseInt(segments);
+    }
+
+    // A strongly consistent scan of the table that reads only the participant attributes
+    public static ScanRequest.Builder stateScan(final String secretSnowmanTable) {
+        return ScanRequest.builder()
+                .consistentRead(true)
+                .tableName(secretSnowmanTable)
+                .projectionExpression(STATE_PROJECTION)
+                .expressionAttributeNames(STATE_PROJECTION_NAMES);
+    }
+
+    // Adds a filter to a state scan, merging its attribute names with the projection's
+    public static ScanRequest.Builder stateScan(
+            final String secretSnowmanTable,
+            final String filterExpression,
+            final Map<String, String> filterNames,
+            final Map<String, AttributeValue> filterValues) {
+
+        final Map<String, String> names = new HashMap<>(STATE_PROJECTION_NAMES);
+        names.putAll(filterNames);
+
+        return stateScan(secretSnowmanTable)
+                .filterExpression(filterExpression)
+                .expressionAttributeNames(names)
+                .expressionAttributeValues(filterValues);
+    }
+
+    // A strongly consistent query for every participant in one group
+    public static QueryRequest.Builder groupQuery(final String secretSnowmanTable, final String group) {
+        return QueryRequest.builder()
+                .consistentRead(true)
+                .tableName(secretSnowmanTable)
+                .keyConditionExpression("#gid = :gid")
+                .projectionExpression(STATE_PROJECTION)
+                .expressionAttributeNames(STATE_PROJECTION_NAMES)
+                .expressionAttributeValues(Map.of(":gid", AttributeValue.builder().s(group).build()));
+    }
+
+    // Adds a filter to a group query, merging its attribute names and values with the query's
+    public static QueryRequest.Builder groupQuery(
+            final String secretSnowmanTable,
+            final String group,
+            final String filterExpression,
+            final Map<String, String> filterNames,
+            final Map<String, AttributeValue> filterValues) {
+
+        final Map<String, String> names = new HashMap<>(STATE_PROJECTION_NAMES);
+        names.putAll(filterNames);
+
+        final Map<String, AttributeValue> values = new HashMap<>(filterValues);
+        values.put(":gid", AttributeValue.builder().s(group).build());
+
+        return groupQuery(secretSnowmanTable, group)
+                .filterExpression(filterExpression)
+                .expressionAttributeNames(names)
+                .expressionAttributeValues(values);
+    }
+
+    // Everyone in a group (or a single-game table) who has or hasn't bought their gift, read from the
+    // gift status index. Only the matching rows are read, and only the attributes a report lists.
+    public static QueryRequest.Builder giftStatusQuery(
+            final String secretSnowmanTable,
+            final String indexName,
+            final String group,
+            final boolean giftPurchased) {
+
+        return QueryRequest.builder()
+                .tableName(secretSnowmanTable)
+                .indexName(indexName)
+                .keyConditionExpression("#gs = :gs")
+                .projectionExpression("#gid, #pn, #gn, #gp")
+                .expressionAttributeNames(Map.of(
+                        "#gs", SecretSnowmanState.GIFT_STATUS_KEY,
+                        "#gid", SecretSnowmanState.GROUP_KEY,
+                        "#pn", SecretSnowmanState.PHONE_NUMBER_KEY,
+                        "#gn", SecretSnowmanState.GIFT_GIVER_NAME_KEY,
+                        "#gp", SecretSnowmanState.GIFT_PURCHASE_KEY))
+                .expressionAttributeValues(Map.of(
+                        ":gs", AttributeValue.builder().s(SecretSnowmanState.giftStatus(group, giftPurchased)).build()));
+    }
+
+    public static Stream<Map<String, AttributeValue>> items(final DynamoDbClient dbc, final QueryRequest request) {
+        return pages(dbc, request).flatMap(List::stream);
+    }
+
+    public static Stream<Map<String, AttributeValue>> items(final DynamoDbClient dbc, final ScanRequest request) {
+        return items(dbc, request, 1);
+    }
+
+    public static Stream<Map<String, AttributeValue>> items(
+            final DynamoDbClient dbc,
+            final ScanRequest request,
+            final int totalSegments) {
+
+        if(totalSegments <= 1) {
+            return pages(dbc, request).flatMap(List::stream);
+        }
+
+        return IntStream.range(0, totalSegments)
+                .boxed()
+                .parallel()
+                .flatMap(segment -> pages(
+                        dbc,
+                        request.toBuilder().segment(segment).totalSegments(totalSegments).build())
+                        .flatMap(List::stream));
+    }
+
+    static Stream<List<Map<String, AttributeValue>>> pages(final DynamoDbClient dbc, final ScanRequest request) {
+        return pages(startKey -> {
+            final ScanResponse response = dbc.scan(
+                    startKey == null ? request : request.toBuilder().exclusiveStartKey(startKey).build());
+            return new Page(response.items(), response.lastEvaluatedKey());
+        });
+    }
+
+    static Stream<List<Map<String, AttributeValue>>> pages(final DynamoDbClient dbc, final QueryRequest request) {
+        return pages(startKey -> {
+            final QueryResponse response = dbc.query(
+                    startKey == null ? request : request.toBuilder().exclusiveStartKey(startKey).build());
+            return new Page(response.items(), response.lastEvaluatedKey());
+        });
+    }
+
+    private static class Page {
+        final List<Map<String, AttributeValue>> items;
+        final Map<String, AttributeValue> lastEvaluatedKey;
+
+        Page(final List<Map<String, AttributeValue>> items, final Map<String, AttributeValue> lastEvaluatedKey) {
+            this.items = items;
+            this.lastEvaluatedKey = lastEvaluatedKey;
+        }
+    }
+
+    // Pages are only requested as the stream is consumed
+    private static Stream<List<Map<String, AttributeValue>>> pages(final Function<Map<String, AttributeValue>, Page> fetch) {
+        final Iterator<List<Map<String, AttributeValue>>> pages = new Iterator<List<Map<String, AttributeValue>>>() {
+            private Map<String, AttributeValue> startKey = null;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                return !this.done;
+            }
+
+            @Override
+            public List<Map<String, AttributeValue>> next() {
+                if(this.done) {
+                    throw new NoSuchElementException();
+                }
+
+                final Page page = fetch.apply(this.startKey);
+                this.startKey = page.lastEvaluatedKey;
+                this.done = this.startKey == null || this.startKey.isEmpty();
+
+                return page.items == null ? Collections.emptyList() : page.items;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED), false);
+    }
+}
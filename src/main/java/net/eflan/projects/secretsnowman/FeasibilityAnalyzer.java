@@ -0,0 +1,393 @@
+package net.eflan.projects.secretsnowman;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+// Checks, before a draw, whether the cannot-match lists leave any way to draw at all, and if not
+// says who is in the way. A single gift-giving cycle needs everybody to have somebody to buy for
+// and somebody to buy for them, a way for everybody to buy for a different person at once (a
+// perfect matching between givers and recipients), and every person reachable from every other
+// (one strongly connected component). These are necessary rather than sufficient, since finding
+// the cycle is the engine's job, but together they catch every impossible draw that comes from
+// somebody or some group being shut out.
+public class FeasibilityAnalyzer {
+    public enum Problem { NONE, TOO_FEW, NOBODY_TO_BUY_FOR, NOBODY_TO_BUY_FROM, NOT_ENOUGH_RECIPIENTS, SPLIT }
+
+    public static final class Diagnosis {
+        private final Problem problem;
+        private final List<SecretSnowmanState> blocking;
+        private final List<SecretSnowmanState> only;
+
+        Diagnosis(final Problem problem, final List<SecretSnowmanState> blocking, final List<SecretSnowmanState> only) {
+            this.problem = problem;
+            this.blocking = Collections.unmodifiableList(blocking);
+            this.only = Collections.unmodifiableList(only);
+        }
+
+        public boolean feasible() { return this.problem == Problem.NONE; }
+        public Problem problem() { return this.problem; }
+        // The people the problem is about
+        public List<SecretSnowmanState> blocking() { return this.blocking; }
+        // For NOT_ENOUGH_RECIPIENTS, everybody the blocking people may buy for between them
+        public List<SecretSnowmanState> only() { return this.only; }
+    }
+
+    private FeasibilityAnalyzer() {
+    }
+
+    public static Diagnosis analyze(final ParticipantRoster roster) {
+        final int n = roster.size();
+        if(n < 2) {
+            return diagnosis(roster, Problem.TOO_FEW, allOf(n), new BitSet());
+        }
+
+        final BitSet[] canGive = AssignmentEngine.allowedGraph(roster);
+        final BitSet[] canReceive = reverse(canGive);
+
+        for(int i = 0; i < n; i++) {
+            if(canGive[i].isEmpty()) {
+                return diagnosis(roster, Problem.NOBODY_TO_BUY_FOR, single(i), new BitSet());
+            }
+        }
+        for(int i = 0; i < n; i++) {
+            if(canReceive[i].isEmpty()) {
+                return diagnosis(roster, Problem.NOBODY_TO_BUY_FROM, single(i), new BitSet());
+            }
+        }
+
+        final int[] matchOfGiver = maximumMatching(canGive, n);
+        for(int giver = 0; giver < n; giver++) {
+            if(matchOfGiver[giver] < 0) {
+                return hallViolation(roster, canGive, matchOfGiver, giver);
+            }
+        }
+
+        final int[] component = components(canGive, n);
+        int components = 0;
+        for(final int c : component) {
+            components = Math.max(components, c + 1);
+        }
+        if(components > 1) {
+            return split(roster, canGive, component, components);
+        }
+
+        return new Diagnosis(Problem.NONE, Collections.emptyList(), Collections.emptyList());
+    }
+
+    // The reply an admin gets for a diagnosis
+    public static String describe(final Diagnosis diagnosis, final int participants) {
+        switch(diagnosis.problem()) {
+            case NONE:
+                return String.format("\u2744A draw is possible for all %d participants.\u2744", participants);
+            case TOO_FEW:
+                return "\u2744No draw is possible: it takes at least 2 participants.\u2744";
+            case NOBODY_TO_BUY_FOR:
+                return String.format("\u2744No draw is possible: %s can't buy for anybody.\u2744", names(diagnosis.blocking()));
+            case NOBODY_TO_BUY_FROM:
+                return String.format("\u2744No draw is possible: nobody can buy for %s.\u2744", names(diagnosis.blocking()));
+            case NOT_ENOUGH_RECIPIENTS:
+                return String.format("\u2744No draw is possible: %s can only buy for %s between them.\u2744",
+                        names(diagnosis.blocking()), names(diagnosis.only()));
+            default:
+                return String.format("\u2744No draw is possible: %s can't be joined into one circle with everybody else.\u2744",
+                        names(diagnosis.blocking()));
+        }
+    }
+
+    private static String names(final List<SecretSnowmanState> people) {
+        final StringBuilder names = new StringBuilder();
+        for(int i = 0; i < people.size(); i++) {
+            if(i > 0) {
+                names.append(i == people.size() - 1 ? " and " : ", ");
+            }
+            names.append(people.get(i).name());
+        }
+        return names.length() == 0 ? "nobody" : names.toString();
+    }
+
+    private static BitSet[] reverse(final BitSet[] graph) {
+        final BitSet[] reversed = new BitSet[graph.length];
+        for(int j = 0; j < graph.length; j++) {
+            reversed[j] = new BitSet(graph.length);
+        }
+        for(int i = 0; i < graph.length; i++) {
+            for(int j = graph[i].nextSetBit(0); j >= 0; j = graph[i].nextSetBit(j + 1)) {
+                reversed[j].set(i);
+            }
+        }
+        return reversed;
+    }
+
+    // Hopcroft-Karp: recipients matched to each giver, -1 where the maximum matching leaves a giver out
+    static int[] maximumMatching(final BitSet[] canGive, final int n) {
+        final int[] matchOfGiver = new int[n];
+        final int[] matchOfRecipient = new int[n];
+        Arrays.fill(matchOfGiver, -1);
+        Arrays.fill(matchOfRecipient, -1);
+        final int[] distance = new int[n];
+
+        while(layer(canGive, matchOfGiver, matchOfRecipient, distance)) {
+            for(int giver = 0; giver < n; giver++) {
+                if(matchOfGiver[giver] < 0) {
+                    augment(canGive, matchOfGiver, matchOfRecipient, distance, giver);
+                }
+            }
+        }
+
+        return matchOfGiver;
+    }
+
+    // Breadth-first layering from the free givers; true if some free recipient can be reached
+    private static boolean layer(
+            final BitSet[] canGive,
+            final int[] matchOfGiver,
+            final int[] matchOfRecipient,
+            final int[] distance) {
+
+        final Deque<Integer> queue = new ArrayDeque<>();
+        for(int giver = 0; giver < canGive.length; giver++) {
+            if(matchOfGiver[giver] < 0) {
+                distance[giver] = 0;
+                queue.add(giver);
+            } else {
+                distance[giver] = Integer.MAX_VALUE;
+            }
+        }
+
+        boolean found = false;
+        while(!queue.isEmpty()) {
+            final int giver = queue.poll();
+            for(int r = canGive[giver].nextSetBit(0); r >= 0; r = canGive[giver].nextSetBit(r + 1)) {
+                final int next = matchOfRecipient[r];
+                if(next < 0) {
+                    found = true;
+                } else if(distance[next] == Integer.MAX_VALUE) {
+                    distance[next] = distance[giver] + 1;
+                    queue.add(next);
+                }
+            }
+        }
+        return found;
+    }
+
+    // Depth-first search for an augmenting path along the layers, kept iterative so a long path
+    // can't overflow the stack
+    private static boolean augment(
+            final BitSet[] canGive,
+            final int[] matchOfGiver,
+            final int[] matchOfRecipient,
+            final int[] distance,
+            final int start) {
+
+        final int[] givers = new int[canGive.length + 1];
+        final int[] cursor = new int[canGive.length + 1];
+        int depth = 0;
+        givers[0] = start;
+        cursor[0] = canGive[start].nextSetBit(0);
+
+        while(depth >= 0) {
+            final int giver = givers[depth];
+            final int r = cursor[depth];
+            if(r < 0) {
+                // Dead end, so nobody looks here again this phase
+                distance[giver] = Integer.MAX_VALUE;
+                depth--;
+                continue;
+            }
+            cursor[depth] = canGive[giver].nextSetBit(r + 1);
+
+            final int next = matchOfRecipient[r];
+            if(next < 0) {
+                // Flip the path: each giver on it takes the recipient it reached the next one through
+                int recipient = r;
+                for(int d = depth; d >= 0; d--) {
+                    final int g = givers[d];
+                    final int previous = matchOfGiver[g];
+                    matchOfGiver[g] = recipient;
+                    matchOfRecipient[recipient] = g;
+                    recipient = previous;
+                }
+                return true;
+            }
+
+            if(distance[next] == distance[giver] + 1) {
+                depth++;
+                givers[depth] = next;
+                cursor[depth] = canGive[next].nextSetBit(0);
+            }
+        }
+        return false;
+    }
+
+    // Hall's theorem: the givers reachable from an unmatched giver along alternating paths have
+    // fewer allowed recipients between them than there are of them
+    private static Diagnosis hallViolation(
+            final ParticipantRoster roster,
+            final BitSet[] canGive,
+            final int[] matchOfGiver,
+            final int unmatched) {
+
+        final int n = canGive.length;
+        final int[] matchOfRecipient = new int[n];
+        Arrays.fill(matchOfRecipient, -1);
+        for(int giver = 0; giver < n; giver++) {
+            if(matchOfGiver[giver] >= 0) {
+                matchOfRecipient[matchOfGiver[giver]] = giver;
+            }
+        }
+
+        final BitSet givers = new BitSet(n);
+        final BitSet recipients = new BitSet(n);
+        final Deque<Integer> queue = new ArrayDeque<>();
+        givers.set(unmatched);
+        queue.add(unmatched);
+        while(!queue.isEmpty()) {
+            final int giver = queue.poll();
+            for(int r = canGive[giver].nextSetBit(0); r >= 0; r = canGive[giver].nextSetBit(r + 1)) {
+                if(!recipients.get(r)) {
+                    recipients.set(r);
+                    final int next = matchOfRecipient[r];
+                    if(next >= 0 && !givers.get(next)) {
+                        givers.set(next);
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+
+        return diagnosis(roster, Problem.NOT_ENOUGH_RECIPIENTS, givers, recipients);
+    }
+
+    // Kosaraju: component of each person, numbered in topological order of the condensation
+    static int[] components(final BitSet[] canGive, final int n) {
+        final BitSet[] canReceive = reverse(canGive);
+        final int[] order = new int[n];
+        int ordered = 0;
+        final BitSet visited = new BitSet(n);
+        final int[] stack = new int[n];
+        final int[] cursor = new int[n];
+
+        for(int root = 0; root < n; root++) {
+            if(visited.get(root)) {
+                continue;
+            }
+            int depth = 0;
+            stack[0] = root;
+            cursor[0] = canGive[root].nextSetBit(0);
+            visited.set(root);
+            while(depth >= 0) {
+                final int node = stack[depth];
+                int next = cursor[depth];
+                while(next >= 0 && visited.get(next)) {
+                    next = canGive[node].nextSetBit(next + 1);
+                }
+                if(next < 0) {
+                    order[ordered++] = node;
+                    depth--;
+                    continue;
+                }
+                cursor[depth] = canGive[node].nextSetBit(next + 1);
+                visited.set(next);
+                depth++;
+                stack[depth] = next;
+                cursor[depth] = canGive[next].nextSetBit(0);
+            }
+        }
+
+        final int[] component = new int[n];
+        Arrays.fill(component, -1);
+        int count = 0;
+        for(int i = n - 1; i >= 0; i--) {
+            final int root = order[i];
+            if(component[root] >= 0) {
+                continue;
+            }
+            final Deque<Integer> pending = new ArrayDeque<>();
+            pending.push(root);
+            component[root] = count;
+            while(!pending.isEmpty()) {
+                final int node = pending.pop();
+                for(int j = canReceive[node].nextSetBit(0); j >= 0; j = canReceive[node].nextSetBit(j + 1)) {
+                    if(component[j] < 0) {
+                        component[j] = count;
+                        pending.push(j);
+                    }
+                }
+            }
+            count++;
+        }
+
+        return component;
+    }
+
+    // Names the smallest group that is cut off: either nobody outside it can buy for them, or none
+    // of them can buy for anybody outside it
+    private static Diagnosis split(
+            final ParticipantRoster roster,
+            final BitSet[] canGive,
+            final int[] component,
+            final int components) {
+
+        final boolean[] givesOut = new boolean[components];
+        final boolean[] receivesIn = new boolean[components];
+        final int[] size = new int[components];
+        for(int i = 0; i < canGive.length; i++) {
+            size[component[i]]++;
+            for(int j = canGive[i].nextSetBit(0); j >= 0; j = canGive[i].nextSetBit(j + 1)) {
+                if(component[i] != component[j]) {
+                    givesOut[component[i]] = true;
+                    receivesIn[component[j]] = true;
+                }
+            }
+        }
+
+        int smallest = -1;
+        for(int c = 0; c < components; c++) {
+            if((!givesOut[c] || !receivesIn[c]) && (smallest < 0 || size[c] < size[smallest])) {
+                smallest = c;
+            }
+        }
+
+        final BitSet blocking = new BitSet(canGive.length);
+        for(int i = 0; i < canGive.length; i++) {
+            if(component[i] == smallest) {
+                blocking.set(i);
+            }
+        }
+        return diagnosis(roster, Problem.SPLIT, blocking, new BitSet());
+    }
+
+    private static BitSet single(final int i) {
+        final BitSet set = new BitSet();
+        set.set(i);
+        return set;
+    }
+
+    private static BitSet allOf(final int n) {
+        final BitSet set = new BitSet(n);
+        set.set(0, n);
+        return set;
+    }
+
+    private static Diagnosis diagnosis(
+            final ParticipantRoster roster,
+            final Problem problem,
+            final BitSet blocking,
+            final BitSet only) {
+
+        final List<SecretSnowmanState> blockingPeople = new ArrayList<>(blocking.cardinality());
+        for(int i = blocking.nextSetBit(0); i >= 0; i = blocking.nextSetBit(i + 1)) {
+            blockingPeople.add(roster.get(i));
+        }
+        final List<SecretSnowmanState> onlyPeople = new ArrayList<>(only.cardinality());
+        for(int i = only.nextSetBit(0); i >= 0; i = only.nextSetBit(i + 1)) {
+            onlyPeople.add(roster.get(i));
+        }
+        return new Diagnosis(problem, blockingPeople, onlyPeople);
+    }
+}
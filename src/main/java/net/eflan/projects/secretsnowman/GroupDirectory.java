@@ -0,0 +1,89 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+// Finds the groups a phone number plays in, through a global secondary index keyed on phone number
+// (phone-number-index, projecting the table keys). Membership only changes when the roster is
+// edited, so answers are cached for the participant cache's TTL.
+public class GroupDirectory {
+    public static final String PHONE_INDEX = "phone-number-index";
+    public static final int DEFAULT_MAX_ENTRIES = 2000;
+
+    private static class Entry {
+        final List<String> groups;
+        final long loadedAt;
+
+        Entry(final List<String> groups, final long loadedAt) {
+            this.groups = groups;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final DynamoDbClient dbc;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries;
+
+    public GroupDirectory(final DynamoDbClient dbc) {
+        this(dbc, DEFAULT_MAX_ENTRIES, ParticipantCache.ttlFromEnvironment(), System::currentTimeMillis);
+    }
+
+    public GroupDirectory(final DynamoDbClient dbc, final int maxEntries, final long ttlMillis, final LongSupplier clock) {
+        this.dbc = dbc;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // The groups this number belongs to, sorted, or an empty list for a stranger
+    public List<String> groupsOf(final String secretSnowmanTable, final String phoneNumber) {
+        final long now = this.clock.getAsLong();
+        synchronized(this) {
+            final Entry entry = this.entries.get(phoneNumber);
+            if(entry != null && now - entry.loadedAt < this.ttlMillis) {
+                return entry.groups;
+            }
+        }
+
+        // Index reads are always eventually consistent
+        final QueryRequest query = QueryRequest.builder()
+                .tableName(secretSnowmanTable)
+                .indexName(PHONE_INDEX)
+                .keyConditionExpression("#pn = :pn")
+                .projectionExpression("#gid")
+                .expressionAttributeNames(Map.of(
+                        "#pn", SecretSnowmanState.PHONE_NUMBER_KEY,
+                        "#gid", SecretSnowmanState.GROUP_KEY))
+                .expressionAttributeValues(Map.of(":pn", AttributeValue.builder().s(phoneNumber).build()))
+                .build();
+
+        final List<String> groups = Collections.unmodifiableList(DynamoScanner.items(this.dbc, query)
+                .filter(item -> item.containsKey(SecretSnowmanState.GROUP_KEY))
+                .map(item -> item.get(SecretSnowmanState.GROUP_KEY).s())
+                .sorted()
+                .collect(Collectors.toList()));
+
+        synchronized(this) {
+            this.entries.put(phoneNumber, new Entry(groups, now));
+        }
+        return groups;
+    }
+
+    public synchronized void invalidateAll() {
+        this.entries.clear();
+    }
+}
@@ -3,28 +3,22 @@ package net.eflan.projects.secretsnowman;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 
-import com.twilio.Twilio;
-import com.twilio.twiml.messaging.Body;
-import com.twilio.twiml.messaging.Message;
+import com.twilio.exception.ApiException;
 import com.twilio.twiml.MessagingResponse;
 import com.twilio.type.PhoneNumber;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
-import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
-import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
-import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
-import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
@@ -33,6 +27,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -65,235 +61,417 @@ public class LambdaHandler implements RequestHandler<Map<String, Object>, String
     public static final String ASSIGN_GIFTS_COMMAND = "assign gifts";
     public static final String REMIND_COMMAND = "remind";
     public static final String RESEND_COMMAND = "resend";
+    public static final String BACKFILL_COMMAND = "backfill";
+    public static final String JOIN_COMMAND = "join";
+    public static final String LEAVE_COMMAND = "leave";
+    public static final String CHECK_COMMAND = "check";
+    public static final String NOT_PARTICIPANT_FORMAT = "\u2744%s isn't in the table.\u2744";
+    public static final String ALREADY_DRAWN_FORMAT = "\u2744%s is already in the draw.\u2744";
+    public static final String NO_SPLICE_MESSAGE = "\u2744Nobody can be moved without breaking a cannot-match list or a purchased gift. Text \"assign gifts\" to redraw everybody.\u2744";
+    public static final String LEFT_FORMAT = "\u2744%s has left the draw.\u2744\n";
+    public static final String BACKFILL_FORMAT = "\u2744Stored recipient snapshots for %d participants.\u2744";
+    public static final String NO_ASSIGNMENT_MESSAGE = "\u2744No valid assignment exists for the current cannot-match lists.\u2744";
+    public static final String ASSIGNMENT_FAILED_MESSAGE = "\u2744Assignments could not be saved. Nothing was changed, please try again.\u2744";
+    public static final String ASSIGNMENT_PARTIAL_MESSAGE = "\u2744Assignments could not be saved, and some of them could not be undone either. Nobody was texted. Text \"assign gifts\" to redraw everybody.\u2744";
+    public static final String UNRECOGNIZED_MESSAGE = "\u2744\u2744\u2744Sorry, I don't recognize your phone number. Are you sure you're participating in Secret Snowman?\u2603";
+    public static final String CHOOSE_GROUP_FORMAT = "\u2603 You're in more than one Secret Snowman group (%s).\nPlease add the group to your text, like \"%s %s\".\u2744";
+    public static final String ADMIN_GROUP_FORMAT = "\u2744Please add the group to the command, one of: %s\u2744";
+    public static final String NOT_YOUR_GROUP_FORMAT = "\u2744You don't run a group called \"%s\". Your groups: %s\u2744";
     public static final String REMINDER_FORMAT = "\u2603 Secret Snowman here!\u2744 %s, you still need to buy a gift for %s.\uD83C\uDF81";
-
-    private final Map<String, String> twimlMap =  Map.of(
-            INTRO_COMMAND, INTRO_FORMAT,
-            MENU_COMMAND, MENU_FORMAT,
-            GIFTED_COMMAND, GIFTED_FORMAT,
-            ASSIGNMENT_COMMAND, ASSIGNMENT_FORMAT,
-            RESET_COMMAND, RESET_FORMAT,
-            UNKNOWN_COMMAND, UNKNOWN_FORMAT);
+    // Reads of the group a draw or splice gets before giving up on rows that keep changing under it
+    public static final int MAX_CONFLICT_ATTEMPTS = 3;
+
+    // Compiled once per container, so a reply is escaped straight into a buffer
+    private static final Map<String, ReplyRenderer.Template> REPLY_TEMPLATES = Map.of(
+            INTRO_COMMAND, ReplyRenderer.Template.compile(INTRO_FORMAT),
+            MENU_COMMAND, ReplyRenderer.Template.compile(MENU_FORMAT),
+            GIFTED_COMMAND, ReplyRenderer.Template.compile(GIFTED_FORMAT),
+            ASSIGNMENT_COMMAND, ReplyRenderer.Template.compile(ASSIGNMENT_FORMAT),
+            RESET_COMMAND, ReplyRenderer.Template.compile(RESET_FORMAT),
+            UNKNOWN_COMMAND, ReplyRenderer.Template.compile(UNKNOWN_FORMAT));
 
     final static String BODY = "Body";
     final static String FROM = "From";
+    final static String MESSAGE_SID = "MessageSid";
 
     public static String toTWIML(final String text) {
-        final Body body = new Body.Builder(text).build();
-        final Message message = new Message.Builder().body(body).build();
-        final MessagingResponse response = new MessagingResponse.Builder().message(message).build();
-        return response.toXml();
+        return ReplyRenderer.render(text);
     }
 
-    private String secretSnowmanTable = null;
-    private PhoneNumber adminPhoneNumber = null;
-    private PhoneNumber secretSnowmanPhoneNumber = null;
+    // The config each request read when it started. SecretSnowmanServer runs many requests at once
+    // through one handler, so each keeps its own rather than sharing fields a rotation could change
+    // halfway through another request.
+    private final ThreadLocal<SecretSnowmanConfig> requestConfig = new ThreadLocal<>();
 
-    private String twilioAccountSID = null;
-    private String twilioAccountSecret = null;
+    private final SecretsCache secretsCache;
+    // The config the latest request read, for texts sent from SmsDispatcher's threads
+    private volatile SecretSnowmanConfig twilioConfig = null;
     private SendSMS sendSMS = (ph, s, p, a) -> "SID";
-    private boolean isTwilioInitialized = false;
+    private final AssignmentEngine assignmentEngine = new AssignmentEngine();
+    private final AssignmentSplicer assignmentSplicer = new AssignmentSplicer();
+    private final AssignmentCommitter assignmentCommitter;
+    private final SmsDispatcher smsDispatcher;
+    private final int scanSegments = DynamoScanner.totalSegmentsFromEnvironment();
+    private final ParticipantCache participantCache;
+    private final GroupDirectory groupDirectory;
+    private final RequestDeduplicator requestDeduplicator;
+    private final RosterSnapshot rosterSnapshot;
+    private final CommandRegistry commands = registerCommands();
+    private final Metrics metrics;
+    // The first request a container handles pays for its cold start
+    private final AtomicBoolean warm = new AtomicBoolean();
 
     public LambdaHandler() {
-        this.ddb = DynamoDbClient.builder()
-                .region(Region.US_WEST_2)
-                .build();
-
-        this.smc = SecretsManagerClient.builder()
-                .region(Region.US_WEST_2)
-                .build();
-
-        this.sendSMS = LambdaHandler::sendSMSviaTwilio;
+        this.metrics = new Metrics();
+        this.ddb = AwsClients.dynamoDb(this.metrics.interceptor());
+        this.smc = AwsClients.secretsManager(this.metrics.interceptor());
+
+        this.secretsCache = new SecretsCache(this.smc, this.metrics);
+        this.assignmentCommitter = new AssignmentCommitter(this.ddb);
+        this.participantCache = new ParticipantCache(this.ddb, this.metrics);
+        this.groupDirectory = new GroupDirectory(this.ddb);
+        this.requestDeduplicator = new RequestDeduplicator(this.ddb, this.metrics);
+        this.rosterSnapshot = new RosterSnapshot(this.ddb);
+        this.sendSMS = timed(new TwilioSender(() -> this.twilioConfig));
+        this.smsDispatcher = new SmsDispatcher(this.sendSMS);
     }
 
+    // Metrics are dropped unless a test asks for them
     public LambdaHandler(final DynamoDbClient dynamoDbClient, final SecretsManagerClient secretsManagerClient) {
+        this(dynamoDbClient, secretsManagerClient, new Metrics(line -> {}, System::currentTimeMillis));
+    }
+
+    public LambdaHandler(final DynamoDbClient dynamoDbClient, final SecretsManagerClient secretsManagerClient, final Metrics metrics) {
+        this.metrics = metrics;
+        this.sendSMS = timed(this.sendSMS);
         this.ddb = dynamoDbClient;
         this.smc = secretsManagerClient;
-        // Use default implementation of sendSMS
-        // Don't attempt to initialize Twilio SDK
-        this.isTwilioInitialized = true;
+        this.secretsCache = new SecretsCache(this.smc, this.metrics);
+        this.assignmentCommitter = new AssignmentCommitter(this.ddb);
+        this.participantCache = new ParticipantCache(this.ddb, this.metrics);
+        this.groupDirectory = new GroupDirectory(this.ddb);
+        this.requestDeduplicator = new RequestDeduplicator(this.ddb, this.metrics);
+        this.rosterSnapshot = new RosterSnapshot(this.ddb);
+        // Use default implementation of sendSMS, which has no messaging service throughput to respect
+        this.smsDispatcher = new SmsDispatcher(
+                this.sendSMS,
+                SmsDispatcher.DEFAULT_PARALLELISM,
+                Double.MAX_VALUE,
+                SmsDispatcher.DEFAULT_MAX_ATTEMPTS,
+                SmsDispatcher.BASE_BACKOFF_MILLIS);
     }
 
     public void getSecrets() throws java.io.IOException {
+        final SecretSnowmanConfig config = this.secretsCache.get();
 
-        final GetSecretValueRequest getSecretValueRequest = GetSecretValueRequest.builder()
-                .secretId("SecretSnowmanSecrets")
-                .build();
+        this.requestConfig.set(config);
+        this.twilioConfig = config;
+    }
 
-        final GetSecretValueResponse secrets = this.smc.getSecretValue(getSecretValueRequest);
+    private SecretSnowmanConfig config() {
+        return this.requestConfig.get();
+    }
 
-        // Parse the JSON blob into a map of (String -> String)
-        final ObjectMapper mapper = new ObjectMapper();
-        final Map<String, String> secretKeysAndValues = mapper.readValue(
-                secrets.secretString(),
-                new TypeReference<Map<String, String>>(){});
+    // Rows written by a draw carry a snapshot of the recipient; older rows need a second read
+    private static SecretSnowmanState recipient(
+            final ParticipantCache participants,
+            final String secretSnowmanTable,
+            final SecretSnowmanState state) {
 
-        this.secretSnowmanTable = secretKeysAndValues.get("StateDynamoTable");
-        this.adminPhoneNumber = new PhoneNumber(secretKeysAndValues.get("AdminPhoneNumber"));
-        this.secretSnowmanPhoneNumber = new PhoneNumber(secretKeysAndValues.get("SecretSnowmanPhoneNumber"));
-        this.twilioAccountSID = secretKeysAndValues.get("TwilioAccountSID");
-        this.twilioAccountSecret = secretKeysAndValues.get("TwilioAccountSecret");
+        return state.recipient().orElseGet(
+                () -> participants.lookup(secretSnowmanTable, state.group(), state.assigned().toString()));
     }
 
-    private static String createResponse(
-            final DynamoDbClient ddb,
-            final String secretSnowmanTable,
-            final Map<String, String> twimlMap,
-            final SecretSnowmanState state,
-            final String key) {
 
-        final SecretSnowmanState recipient = dynamoLookup(
-                ddb,
-                secretSnowmanTable,
-                state.assigned().toString());
+    // With a gift status index only the matching rows are read. Without one, a group is read with a
+    // query on its partition and a table without groups holds one game and is scanned.
+    private static Stream<SecretSnowmanState> dynamoScanGifts(
+            final DynamoDbClient dbc,
+            final String secretSnowmanTable,
+            final String giftStatusIndex,
+            final int totalSegments,
+            final String group,
+            final boolean giftGiven) {
 
-        String text = null;
-        if(INTRO_COMMAND.equals(key)) {
-            text = String.format(twimlMap.get(key), state.name(), recipient.name(), recipient.address());
-        }
-        else if(MENU_COMMAND.equals(key)) {
-            text = twimlMap.get(key);
-        }
-        else if(UNKNOWN_COMMAND.equals(key)) {
-            text = String.format(twimlMap.get(key), key);
+        if(giftStatusIndex != null) {
+            final QueryRequest query = DynamoScanner.giftStatusQuery(secretSnowmanTable, giftStatusIndex, group, giftGiven).build();
+            return DynamoScanner.items(dbc, query).map(SecretSnowmanState::from);
         }
-        else {
-            text = String.format(twimlMap.get(key), recipient.name());
+
+        final Map<String, AttributeValue> value =
+                singletonMap(":tf", AttributeValue.builder().bool(giftGiven).build());
+        final Map<String, String> name = singletonMap("#giftPurchased", "gift-purchased");
+
+        final Stream<Map<String, AttributeValue>> items;
+        if(group == null) {
+            final ScanRequest scan = DynamoScanner.stateScan(secretSnowmanTable, "#giftPurchased = :tf", name, value).build();
+            items = DynamoScanner.items(dbc, scan, totalSegments);
+        } else {
+            final QueryRequest query = DynamoScanner.groupQuery(secretSnowmanTable, group, "#giftPurchased = :tf", name, value).build();
+            items = DynamoScanner.items(dbc, query);
         }
 
-        return toTWIML(text);
+        return items.map(SecretSnowmanState::from);
     }
 
-    private static SecretSnowmanState dynamoLookup(
+    private static ParticipantRoster dynamoScanAll(
             final DynamoDbClient dbc,
             final String secretSnowmanTable,
-            final String phoneNumber) {
+            final int totalSegments,
+            final String group) {
 
-        final Map<String, AttributeValue> key =
-                singletonMap("phone-number", AttributeValue.builder().s(phoneNumber).build());
-
-        final GetItemRequest get = GetItemRequest.builder()
-                .consistentRead(true)
-                .tableName(secretSnowmanTable)
-                .key(key)
-                .build();
+        final Stream<Map<String, AttributeValue>> items = group == null
+                ? DynamoScanner.items(dbc, DynamoScanner.stateScan(secretSnowmanTable).build(), totalSegments)
+                : DynamoScanner.items(dbc, DynamoScanner.groupQuery(secretSnowmanTable, group).build());
 
-        final GetItemResponse response = dbc.getItem(get);
-        return SecretSnowmanState.from(response.item());
+        return new ParticipantRoster(items
+                .map(SecretSnowmanState::from)
+                .collect(Collectors.toList()));
     }
 
-    private static List<SecretSnowmanState> dynamoScanGifts(
-            final DynamoDbClient dbc,
-            final String secretSnowmanTable,
-            final boolean giftGiven) {
+    // The group from its snapshot when there is a snapshot table, otherwise read from the table. A
+    // missing or stale snapshot is rebuilt from the read, unless a text patched it in the meantime.
+    private ParticipantRoster roster(final String group) {
+        if(config().snapshotTable() == null) {
+            return dynamoScanAll(this.ddb, config().table(), this.scanSegments, group);
+        }
 
-        final Map<String, AttributeValue> value =
-                singletonMap(":tf", AttributeValue.builder().bool(giftGiven).build());
+        final RosterSnapshot.Read snapshot = this.rosterSnapshot.load(config().snapshotTable(), group);
+        if(snapshot.fresh()) {
+            return new ParticipantRoster(snapshot.people());
+        }
 
-        final ScanRequest scan = ScanRequest.builder()
-                .consistentRead(true)
-                .tableName(secretSnowmanTable)
-                .filterExpression("#giftPurchased = :tf")
-                .expressionAttributeValues(value)
-                .expressionAttributeNames(singletonMap("#giftPurchased", "gift-purchased"))
-                .build();
+        final ParticipantRoster roster = dynamoScanAll(this.ddb, config().table(), this.scanSegments, group);
+        this.rosterSnapshot.store(config().snapshotTable(), group, roster.people(), snapshot.generation());
+        return roster;
+    }
 
-        final ScanResponse response = dbc.scan(scan);
-        final Stream<Map<String, AttributeValue>> s = response.items().stream();
-        return s.map(SecretSnowmanState::from).collect(Collectors.toList());
+    private Stream<SecretSnowmanState> gifts(final String group, final boolean giftGiven) {
+        if(config().snapshotTable() == null) {
+            return dynamoScanGifts(this.ddb, config().table(), config().giftStatusIndex(), this.scanSegments, group, giftGiven);
+        }
+        return roster(group).people().stream().filter(p -> p.gifted() == giftGiven);
     }
 
-    private static List<SecretSnowmanState> dynamoScanAll(
-            final DynamoDbClient dbc,
-            final String secretSnowmanTable) {
-        final ScanRequest scan = ScanRequest.builder()
-                .consistentRead(true)
-                .tableName(secretSnowmanTable)
-                .build();
+    // Draws and splices are worked out from one read of the group and only written over rows still
+    // as they were read. When a participant texted "gifted" in between, say, the group is read again
+    // from the table and the change worked out afresh. The read is always of the table, never the
+    // snapshot, which may be behind the rows a draw is about to write over. Whatever happens, the
+    // snapshot is stale afterwards.
+    private String withFreshRoster(final String group, final Function<ParticipantRoster, String> change) {
+        for(int attempt = 1; ; attempt++) {
+            try {
+                return change.apply(dynamoScanAll(this.ddb, config().table(), this.scanSegments, group));
+            } catch(final AssignmentCommitter.ConflictException e) {
+                this.metrics.count(Metrics.WRITE_CONFLICTS, 1);
+                this.participantCache.invalidateAll();
+                if(attempt >= MAX_CONFLICT_ATTEMPTS) {
+                    return toTWIML(ASSIGNMENT_FAILED_MESSAGE);
+                }
+            } catch(final AssignmentCommitter.PartialCommitException e) {
+                this.metrics.error(e);
+                this.participantCache.invalidateAll();
+                return toTWIML(ASSIGNMENT_PARTIAL_MESSAGE);
+            } finally {
+                if(config().snapshotTable() != null) {
+                    // The change may already be committed, so a failure here mustn't undo the reply
+                    try {
+                        this.rosterSnapshot.invalidate(config().snapshotTable(), group);
+                    } catch(final SdkException e) {
+                        this.metrics.error(e);
+                    }
+                }
+            }
+        }
+    }
 
-        final ScanResponse response = dbc.scan(scan);
-        final Stream<Map<String, AttributeValue>> s = response.items().stream();
-        return s.map(SecretSnowmanState::from).collect(Collectors.toList());
+    private String checkFeasible(final ParticipantRoster roster) {
+        return toTWIML(FeasibilityAnalyzer.describe(FeasibilityAnalyzer.analyze(roster), roster.size()));
     }
 
     private String assignGifts(
             final PhoneNumber secretSnowmanPhoneNumber,
-            final DynamoDbClient dynamoDbClient,
             final String secretSnowmanTable,
-            final List<SecretSnowmanState> people) {
+            final ParticipantRoster roster) {
+
+        final List<SecretSnowmanState> people = roster.people();
 
-        // Shuffle the list of people until every person is aligned with someone they're allowed to be assigned
-        final List<SecretSnowmanState> assignments = new ArrayList<>(people);
-        do {
-            Collections.shuffle(assignments);
-        } while(!constraintsSatisfied(people, assignments));
+        // Say who is in the way rather than letting the engine search a draw that can't exist
+        final FeasibilityAnalyzer.Diagnosis diagnosis = FeasibilityAnalyzer.analyze(roster);
+        if(!diagnosis.feasible()) {
+            return toTWIML(FeasibilityAnalyzer.describe(diagnosis, roster.size()));
+        }
 
-        final Iterator<SecretSnowmanState> peopleIterator = people.iterator();
-        final Iterator<SecretSnowmanState> assignmentsIterator = assignments.iterator();
-        final List<String> messageSIDs = new ArrayList<>();
+        // Find a single gift-giving cycle where every person is aligned with someone they're allowed to be assigned
+        final Optional<List<SecretSnowmanState>> assignmentsO = this.assignmentEngine.assign(roster);
+        this.metrics.count(Metrics.ASSIGNMENT_STEPS, this.assignmentEngine.lastSteps());
+        if(!assignmentsO.isPresent() || !constraintsSatisfied(roster, assignmentsO.get())) {
+            return toTWIML(NO_ASSIGNMENT_MESSAGE);
+        }
+        final List<SecretSnowmanState> assignments = assignmentsO.get();
 
-        // Update assignment in the DynamoDB table and send an intro SMS to the person
-        // letting them know their assignment.
-        while (peopleIterator.hasNext() && assignmentsIterator.hasNext()) {
-            final SecretSnowmanState person = peopleIterator.next();
-            final SecretSnowmanState assignment = assignmentsIterator.next();
+        // Write the whole draw before telling anybody, so a failed write doesn't leave people with stale assignments
+        final boolean committed = this.assignmentCommitter.commit(secretSnowmanTable, people, assignments);
+        this.participantCache.invalidateAll();
+        if(!committed) {
+            return toTWIML(ASSIGNMENT_FAILED_MESSAGE);
+        }
 
-            dynamoUpdateAssigned(
-                    dynamoDbClient,
-                    secretSnowmanTable,
-                    person.phone().toString(),
-                    assignment.phone().toString());
+        // Send an intro SMS to each person letting them know their assignment.
+        final List<SmsDispatcher.Delivery> deliveries =
+                this.smsDispatcher.dispatch(secretSnowmanPhoneNumber, INTRO_FORMAT, people, assignments);
+        invalidateSecretsOnRotation(deliveries);
 
-            messageSIDs.add(
-                    person.name() + ": " +
-                            sendIntroSMS(this.sendSMS, secretSnowmanPhoneNumber, person, assignment) + '\n');
+        return toTWIML(deliveries.stream()
+                .map(d -> d.person().name() + ": " + (d.delivered() ? d.sid() : "failure") + '\n')
+                .collect(Collectors.joining()));
+    }
+
+    // Adds somebody whose row was put in the table after the draw, changing only the assignment of
+    // the giver they are spliced in after. Only the giver and the joiner are texted.
+    private String joinGame(
+            final PhoneNumber secretSnowmanPhoneNumber,
+            final String secretSnowmanTable,
+            final String phoneNumber,
+            final ParticipantRoster roster) {
+
+        final int joiner = roster.indexOf(ParticipantRoster.e164(phoneNumber));
+        if(joiner < 0) {
+            return toTWIML(String.format(NOT_PARTICIPANT_FORMAT, phoneNumber));
         }
 
-        return toTWIML(messageSIDs.stream().collect(Collectors.joining()));
+        for(int i = 0; i < roster.size(); i++) {
+            final SecretSnowmanState recipient = roster.recipientOf(i);
+            if(i != joiner && recipient != null && roster.phone(joiner).equals(ParticipantRoster.e164(recipient.phone()))) {
+                return toTWIML(String.format(ALREADY_DRAWN_FORMAT, phoneNumber));
+            }
+        }
+
+        final Optional<AssignmentSplicer.Splice> splice = this.assignmentSplicer.join(roster, joiner);
+        if(!splice.isPresent()) {
+            return toTWIML(NO_SPLICE_MESSAGE);
+        }
+
+        if(!commitSplice(secretSnowmanTable, splice.get(), Collections.emptyList())) {
+            return toTWIML(ASSIGNMENT_FAILED_MESSAGE);
+        }
+        return introduce(secretSnowmanPhoneNumber, splice.get(), "");
     }
 
-    private static boolean constraintsSatisfied(
-            final List<SecretSnowmanState> people,
-            final List<SecretSnowmanState> assignments) {
+    // Takes somebody out of the draw and deletes their row. Whoever was buying for them gets a new
+    // recipient, and at most two others are moved when the cannot-match lists require it. The delete
+    // goes in with the splice, only over the row as it was read, so a join that has just spliced
+    // somebody in after the leaver makes the leave read the group again rather than orphan them.
+    private String leaveGame(
+            final PhoneNumber secretSnowmanPhoneNumber,
+            final String secretSnowmanTable,
+            final String phoneNumber,
+            final ParticipantRoster roster) {
+
+        final int leaver = roster.indexOf(ParticipantRoster.e164(phoneNumber));
+        if(leaver < 0) {
+            return toTWIML(String.format(NOT_PARTICIPANT_FORMAT, phoneNumber));
+        }
 
-        final Iterator<SecretSnowmanState> peopleIterator = people.iterator();
-        final Iterator<SecretSnowmanState> assignmentsIterator = assignments.iterator();
+        final Optional<AssignmentSplicer.Splice> splice = this.assignmentSplicer.leave(roster, leaver);
+        if(!splice.isPresent()) {
+            return toTWIML(NO_SPLICE_MESSAGE);
+        }
 
-        while (peopleIterator.hasNext() && assignmentsIterator.hasNext()) {
-            final SecretSnowmanState person = peopleIterator.next();
-            final SecretSnowmanState assignment = assignmentsIterator.next();
+        final SecretSnowmanState left = roster.get(leaver);
+        if(!commitSplice(secretSnowmanTable, splice.get(), Collections.singletonList(left))) {
+            return toTWIML(ASSIGNMENT_FAILED_MESSAGE);
+        }
 
-            if(person.phone().equals(assignment.phone()) || person.cannot().contains(assignment.phone())) {
-                return false;
+        return introduce(secretSnowmanPhoneNumber, splice.get(), String.format(LEFT_FORMAT, left.name()));
+    }
+
+    private boolean commitSplice(
+            final String secretSnowmanTable,
+            final AssignmentSplicer.Splice splice,
+            final List<SecretSnowmanState> removed) {
+
+        try {
+            return this.assignmentCommitter.commitSplice(secretSnowmanTable, splice.givers(), splice.recipients(), removed);
+        } finally {
+            for(final SecretSnowmanState giver : splice.givers()) {
+                this.participantCache.invalidate(giver.group(), giver.phone().toString());
+            }
+            for(final SecretSnowmanState person : removed) {
+                this.participantCache.invalidate(person.group(), person.phone().toString());
             }
         }
+    }
 
-        return true;
+    // Texts the new assignment to just the givers a splice moved
+    private String introduce(
+            final PhoneNumber secretSnowmanPhoneNumber,
+            final AssignmentSplicer.Splice splice,
+            final String header) {
+
+        final List<SmsDispatcher.Delivery> deliveries =
+                this.smsDispatcher.dispatch(secretSnowmanPhoneNumber, INTRO_FORMAT, splice.givers(), splice.recipients());
+        invalidateSecretsOnRotation(deliveries);
+
+        return toTWIML(header + deliveries.stream()
+                .map(d -> d.person().name() + ": " + (d.delivered() ? d.sid() : "failure") + '\n')
+                .collect(Collectors.joining()));
+    }
+    // Twilio rejecting our credentials means the secret was most likely rotated. Fetch it again next time.
+    private void invalidateSecretsOnRotation(final List<SmsDispatcher.Delivery> deliveries) {
+        for(final SmsDispatcher.Delivery d : deliveries) {
+            if(d.error() instanceof ApiException
+                    && Integer.valueOf(401).equals(((ApiException) d.error()).getStatusCode())) {
+                this.secretsCache.invalidate();
+                return;
+            }
+        }
     }
 
-    private static void dynamoUpdateAssigned(
-            final DynamoDbClient dbc,
+    // Writes the recipient snapshot onto rows assigned before snapshots existed, and onto rows whose
+    // recipient has changed name or address since the draw.
+    private String backfillRecipients(
             final String secretSnowmanTable,
-            final String phoneNumber,
-            final String assignmentPhoneNumber) {
+            final ParticipantRoster roster) {
+
+        final List<SecretSnowmanState> givers = new ArrayList<>();
+        final List<SecretSnowmanState> recipients = new ArrayList<>();
+        for(int i = 0; i < roster.size(); i++) {
+            final SecretSnowmanState person = roster.get(i);
+            final SecretSnowmanState recipient = roster.recipientOf(i);
+            if(recipient != null
+                    && (!recipient.name().equals(person.assignedName())
+                        || !recipient.address().equals(person.assignedAddress()))) {
+                givers.add(person);
+                recipients.add(recipient);
+            }
+        }
 
-        final Map<String, AttributeValue> key =
-                singletonMap("phone-number", AttributeValue.builder().s(phoneNumber).build());
+        final boolean committed = this.assignmentCommitter.commit(secretSnowmanTable, givers, recipients);
+        this.participantCache.invalidateAll();
+        if(!committed) {
+            return toTWIML(ASSIGNMENT_FAILED_MESSAGE);
+        }
 
-        final Map<String, AttributeValue> assignment =
-                singletonMap(":pn", AttributeValue.builder().s(assignmentPhoneNumber).build());
+        return toTWIML(String.format(BACKFILL_FORMAT, givers.size()));
+    }
 
-        final UpdateItemRequest update = UpdateItemRequest.builder()
-                .tableName(secretSnowmanTable)
-                .key(key)
-                .updateExpression("set assigned = :pn")
-                .expressionAttributeValues(assignment)
-                .build();
+    private static boolean constraintsSatisfied(
+            final ParticipantRoster roster,
+            final List<SecretSnowmanState> assignments) {
+
+        for(int i = 0; i < roster.size() && i < assignments.size(); i++) {
+            final int assignment = roster.indexOf(ParticipantRoster.e164(assignments.get(i).phone()));
 
-        dbc.updateItem(update);
+            if(assignment < 0 || !roster.canGive(i, assignment)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
-    private interface SendSMS {
+    interface SendSMS {
         String send(
                 final PhoneNumber secretSnowmanPhoneNumber,
                 final String format,
@@ -301,19 +479,15 @@ public class LambdaHandler implements RequestHandler<Map<String, Object>, String
                 final SecretSnowmanState assignment);
     }
 
-    private static String sendSMSviaTwilio(
-        final PhoneNumber secretSnowmanPhoneNumber,
-        final String format,
-        final SecretSnowmanState person,
-        final SecretSnowmanState assignment) {
-
-        final com.twilio.rest.api.v2010.account.Message message =
-                com.twilio.rest.api.v2010.account.Message.creator(
-                        person.phone(),
-                        secretSnowmanPhoneNumber,
-                        String.format(format, person.name(), assignment.name(), assignment.address())).create();
-
-        return message.getSid();
+    private SendSMS timed(final SendSMS send) {
+        return (secretSnowmanPhoneNumber, format, person, assignment) -> {
+            final long started = System.nanoTime();
+            try {
+                return send.send(secretSnowmanPhoneNumber, format, person, assignment);
+            } finally {
+                this.metrics.time(Metrics.TWILIO_SEND, started);
+            }
+        };
     }
 
     private static String sendIntroSMS(
@@ -326,156 +500,376 @@ public class LambdaHandler implements RequestHandler<Map<String, Object>, String
     }
 
 
-    private static String sendReminderSMS(
-            final SendSMS sendSmsFunction,
+    private String remindNoGifts(
             final PhoneNumber secretSnowmanPhoneNumber,
-            final SecretSnowmanState person,
-            final SecretSnowmanState assignment) {
+            final ParticipantRoster roster) {
 
-        return sendSmsFunction.send(secretSnowmanPhoneNumber, REMINDER_FORMAT, person, assignment);
-    }
+        final List<SecretSnowmanState> reminded = new ArrayList<>();
+        final List<SecretSnowmanState> assignments = new ArrayList<>();
+        for(int i = 0; i < roster.size(); i++) {
+            final SecretSnowmanState person = roster.get(i);
+            if(!person.gifted()) {
+                reminded.add(person);
+                assignments.add(roster.recipientOf(i));
+            }
+        }
 
-    private static String remindNoGifts(
-            final SendSMS sendSmsFunction,
-            final PhoneNumber secretSnowmanPhoneNumber,
-            final List<SecretSnowmanState> people) {
+        // Only text the people whose assignment could be found
+        final List<SecretSnowmanState> sendTo = new ArrayList<>();
+        final List<SecretSnowmanState> sendAbout = new ArrayList<>();
+        for(int i = 0; i < reminded.size(); i++) {
+            if(assignments.get(i) != null) {
+                sendTo.add(reminded.get(i));
+                sendAbout.add(assignments.get(i));
+            }
+        }
 
-        StringBuilder status = new StringBuilder("");
-        for(final SecretSnowmanState person : people) {
-            if(!person.gifted()) {
-                final Optional<SecretSnowmanState> assignedO =
-                        people.stream().filter(p -> p.phone().equals(person.assigned())).findAny();
+        final List<SmsDispatcher.Delivery> deliveries =
+                this.smsDispatcher.dispatch(secretSnowmanPhoneNumber, REMINDER_FORMAT, sendTo, sendAbout);
+        invalidateSecretsOnRotation(deliveries);
 
-                if(assignedO.isPresent()) {
-                    sendReminderSMS(sendSmsFunction, secretSnowmanPhoneNumber, person, assignedO.get());
-                    status.append(person.name());
-                    status.append(": success\n");
-                }
-                else {
-                    status.append(person.name());
-                    status.append(": failure\n");
-                }
+        final Iterator<SmsDispatcher.Delivery> deliveryIterator = deliveries.iterator();
+        StringBuilder status = new StringBuilder("");
+        for(int i = 0; i < reminded.size(); i++) {
+            status.append(reminded.get(i).name());
+            if(assignments.get(i) != null && deliveryIterator.next().delivered()) {
+                status.append(": success\n");
+            }
+            else {
+                status.append(": failure\n");
             }
         }
 
         return toTWIML(status.toString());
     }
 
-    private static void dynamoUpdateGifted(
-            final DynamoDbClient dbc,
+    private static UpdateItemRequest giftedUpdate(
             final String secretSnowmanTable,
+            final String group,
             final String phoneNumber,
             final boolean giftGiven) {
 
-        final Map<String, AttributeValue> key =
-                singletonMap("phone-number", AttributeValue.builder().s(phoneNumber).build());
-        final Map<String, AttributeValue> gifted =
-                singletonMap(":gifted", AttributeValue.builder().bool(giftGiven).build());
-
-        final UpdateItemRequest update = UpdateItemRequest.builder()
+        final Map<String, AttributeValue> key = SecretSnowmanState.key(group, phoneNumber);
+        final Map<String, AttributeValue> gifted = Map.of(
+                ":gifted", AttributeValue.builder().bool(giftGiven).build(),
+                ":status", AttributeValue.builder().s(SecretSnowmanState.giftStatus(group, giftGiven)).build(),
+                ":zero", AttributeValue.builder().n("0").build(),
+                ":one", AttributeValue.builder().n("1").build());
+
+        // The status moves the row between the gift status index's partitions along with the flag.
+        // Bumping the version makes a splice worked out from the old flag read the group again, and
+        // the condition keeps a number that isn't playing from getting a row of its own.
+        return UpdateItemRequest.builder()
                 .tableName(secretSnowmanTable)
                 .key(key)
-                .updateExpression("set #giftPurchased = :gifted")
+                .updateExpression("set #giftPurchased = :gifted, #giftStatus = :status, #version = if_not_exists(#version, :zero) + :one")
+                .conditionExpression("attribute_exists(#phoneNumber)")
                 .expressionAttributeValues(gifted)
-                .expressionAttributeNames(singletonMap("#giftPurchased", "gift-purchased"))
+                .expressionAttributeNames(Map.of(
+                        "#giftPurchased", SecretSnowmanState.GIFT_PURCHASE_KEY,
+                        "#giftStatus", SecretSnowmanState.GIFT_STATUS_KEY,
+                        "#version", SecretSnowmanState.VERSION_KEY,
+                        "#phoneNumber", SecretSnowmanState.PHONE_NUMBER_KEY))
+                .build();
+    }
+
+    // The command's write to the sender's row hands back the row as written, so the reply is
+    // rendered from exactly what was stored and the sender needs no read of its own
+    private UpdateItemRequest senderUpdate(final CommandRegistry.Command command, final String group, final String phoneNumber) {
+        return command.senderUpdate().build(config().table(), group, phoneNumber).toBuilder()
+                .returnValues(ReturnValue.ALL_NEW)
                 .build();
+    }
+
+    private SecretSnowmanState written(final String group, final String phoneNumber, final Map<String, AttributeValue> item) {
+        final SecretSnowmanState sender = SecretSnowmanState.from(item);
+        this.participantCache.refresh(group, phoneNumber, sender);
+        if(config().snapshotTable() != null) {
+            // The text is already written, so a snapshot table that can't be reached only costs a count
+            try {
+                this.rosterSnapshot.patch(config().snapshotTable(), group, sender);
+            } catch(final SdkException e) {
+                this.metrics.error(e);
+            }
+        }
+        return sender;
+    }
+
+    // Makes the command's write to the sender's row, or reads what the command declared it needs, then runs it
+    private String runParticipant(
+            final CommandRegistry.Command command,
+            final String group,
+            final String phoneNumber,
+            final String key) {
 
-        dbc.updateItem(update);
+        final SecretSnowmanState sender;
+        if(command.senderUpdate() != null) {
+            try {
+                sender = written(group, phoneNumber, this.ddb.updateItem(senderUpdate(command, group, phoneNumber)).attributes());
+            } catch(final ConditionalCheckFailedException e) {
+                return toTWIML(UNRECOGNIZED_MESSAGE);
+            }
+        } else if(command.needs() != CommandRegistry.Needs.NOTHING) {
+            sender = this.participantCache.lookup(config().table(), group, phoneNumber);
+        } else {
+            sender = null;
+        }
+
+        final SecretSnowmanState recipient = command.needs() == CommandRegistry.Needs.RECIPIENT
+                ? recipient(this.participantCache, config().table(), sender)
+                : null;
+
+        return command.participant().handle(key, sender, recipient);
     }
 
-    private static String extractNames(final String prefix, final List<SecretSnowmanState> people) {
-        return prefix + people.stream().map(p -> p.name() + " (" + p.phone() + ")\n").collect(Collectors.joining());
+    private static String extractNames(final String prefix, final Stream<SecretSnowmanState> people) {
+        return prefix + people.map(p -> p.name() + " (" + p.phone() + ")\n").collect(Collectors.joining());
     }
 
     private static String resendIntro(
-            final DynamoDbClient ddb,
+            final ParticipantCache participants,
             final String secretSnowmanTable,
+            final String group,
             final String to,
             final SendSMS sendSMS,
             final PhoneNumber secretSnowmanPhoneNumber) {
 
-        final SecretSnowmanState person = dynamoLookup(ddb, secretSnowmanTable, to);
-        final SecretSnowmanState assignment = dynamoLookup(ddb, secretSnowmanTable, person.assigned().toString());
+        final SecretSnowmanState person = participants.lookup(secretSnowmanTable, group, to);
+        final SecretSnowmanState assignment = person.recipient().orElseGet(
+                () -> participants.lookup(secretSnowmanTable, group, person.assigned().toString()));
         return sendIntroSMS(sendSMS, secretSnowmanPhoneNumber, person, assignment);
     }
 
-    public String handleRequest(final Map<String, Object> req, final Context context) {
-        try {
-            this.getSecrets();
+    // Groups this number runs. A table without groups is one game, which the admin number runs as
+    // the single null group.
+    private List<String> managedGroups(final PhoneNumber from) {
+        if(config().adminGroups().isEmpty()) {
+            return from.equals(config().adminPhoneNumber()) ? Collections.singletonList(null) : Collections.emptyList();
+        }
+
+        if(from.equals(config().adminPhoneNumber())) {
+            return config().adminGroups().values().stream().flatMap(List::stream).distinct().sorted().collect(Collectors.toList());
+        }
+        return config().adminGroups().getOrDefault(ParticipantRoster.e164(from), Collections.emptyList());
+    }
+
+    private CommandRegistry registerCommands() {
+        return new CommandRegistry()
+                .admin(CHECK_NO_GIFT_COMMAND, false, (group, rest) -> toTWIML(
+                        extractNames("No Gift:\n", gifts(group, false))))
+                .admin(CHECK_GIFTED_COMMAND, false, (group, rest) -> toTWIML(
+                        extractNames("Gift:\n", gifts(group, true))))
+                .admin(ASSIGN_GIFTS_COMMAND, false, (group, rest) -> withFreshRoster(group, roster -> assignGifts(
+                        config().secretSnowmanPhoneNumber(),
+                        config().table(),
+                        roster)))
+                .admin(CHECK_COMMAND, false, (group, rest) -> checkFeasible(roster(group)))
+                .admin(REMIND_COMMAND, false, (group, rest) -> remindNoGifts(
+                        config().secretSnowmanPhoneNumber(),
+                        roster(group)))
+                .admin(BACKFILL_COMMAND, false, (group, rest) -> withFreshRoster(group, roster -> backfillRecipients(
+                        config().table(),
+                        roster)))
+                .admin(JOIN_COMMAND, true, (group, rest) -> withFreshRoster(group, roster -> joinGame(
+                        config().secretSnowmanPhoneNumber(),
+                        config().table(),
+                        rest,
+                        roster)))
+                .admin(LEAVE_COMMAND, true, (group, rest) -> withFreshRoster(group, roster -> leaveGame(
+                        config().secretSnowmanPhoneNumber(),
+                        config().table(),
+                        rest,
+                        roster)))
+                .admin(RESEND_COMMAND, true, (group, rest) -> toTWIML(resendIntro(
+                        this.participantCache,
+                        config().table(),
+                        group,
+                        rest,
+                        this.sendSMS,
+                        config().secretSnowmanPhoneNumber())))
+                .participant(INTRO_COMMAND, CommandRegistry.Needs.RECIPIENT, null, (key, sender, recipient) ->
+                        REPLY_TEMPLATES.get(key).render(sender.name(), recipient.name(), recipient.address()))
+                .participant(MENU_COMMAND, CommandRegistry.Needs.NOTHING, null, (key, sender, recipient) ->
+                        REPLY_TEMPLATES.get(key).render())
+                .participant(GIFTED_COMMAND, CommandRegistry.Needs.RECIPIENT,
+                        (table, group, phone) -> giftedUpdate(table, group, phone, true),
+                        (key, sender, recipient) -> REPLY_TEMPLATES.get(key).render(recipient.name()))
+                .participant(ASSIGNMENT_COMMAND, CommandRegistry.Needs.RECIPIENT, null, (key, sender, recipient) ->
+                        REPLY_TEMPLATES.get(key).render(recipient.name()))
+                .participant(RESET_COMMAND, CommandRegistry.Needs.RECIPIENT,
+                        (table, group, phone) -> giftedUpdate(table, group, phone, false),
+                        (key, sender, recipient) -> REPLY_TEMPLATES.get(key).render(recipient.name()))
+                .participant(UNKNOWN_COMMAND, CommandRegistry.Needs.NOTHING, null, (key, sender, recipient) ->
+                        REPLY_TEMPLATES.get(key).render(key));
+    }
 
-            // Unit tests set this to true to avoid using the real Twilio SDK
-            if(!this.isTwilioInitialized) {
-                Twilio.init(this.twilioAccountSID, this.twilioAccountSecret);
+    private String handleAdminCommand(final CommandRegistry.Command command, final String arguments, final List<String> managed) throws IOException {
+        // The last word names the group, which admins running only one group can leave off
+        String group = null;
+        String rest = arguments;
+        if(!config().adminGroups().isEmpty()) {
+            final int space = arguments.lastIndexOf(' ');
+            final String last = arguments.substring(space + 1);
+            if(managed.contains(last)) {
+                group = last;
+                rest = space < 0 ? "" : arguments.substring(0, space).trim();
+            } else if(managed.size() == 1) {
+                group = managed.get(0);
+            } else {
+                return toTWIML(String.format(ADMIN_GROUP_FORMAT, String.join(", ", managed)));
             }
 
-            String key = UNKNOWN_COMMAND;
+            if(!command.takesArguments() && !rest.isEmpty()) {
+                return toTWIML(String.format(NOT_YOUR_GROUP_FORMAT, rest, String.join(", ", managed)));
+            }
+        }
 
-            if (req.containsKey(BODY)) {
-                key = URLDecoder.decode(req.get(BODY).toString(), "UTF-8").toLowerCase().trim();
+        return command.admin().handle(group, rest);
+    }
+
+    private String handleParticipant(final PhoneNumber from, final String text) {
+        // With groups, a sender playing in several of them says which one the text is for
+        String group = null;
+        String key = text;
+        if(!config().adminGroups().isEmpty()) {
+            final List<String> groups = this.groupDirectory.groupsOf(config().table(), from.toString());
+            final int space = text.lastIndexOf(' ');
+            if(groups.isEmpty()) {
+                return toTWIML(UNRECOGNIZED_MESSAGE);
+            } else if(space > 0 && groups.contains(text.substring(space + 1))) {
+                group = text.substring(space + 1);
+                key = text.substring(0, space).trim();
+            } else if(groups.size() == 1) {
+                group = groups.get(0);
+            } else {
+                return toTWIML(String.format(CHOOSE_GROUP_FORMAT, String.join(", ", groups), text, groups.get(0)));
             }
+        }
+
+        final CommandRegistry.Command command = this.commands.get(key);
+        if(command == null || command.permission() != CommandRegistry.Permission.PARTICIPANT) {
+            return toTWIML(String.format(UNKNOWN_FORMAT, key) + from + ", " + config().adminPhoneNumber());
+        }
+        this.metrics.command(command.name());
 
-            if (req.containsKey(FROM)) {
-                final PhoneNumber from = new PhoneNumber(URLDecoder.decode(req.get(FROM).toString(), "UTF-8"));
-
-                if (key.equals(CHECK_NO_GIFT_COMMAND) && from.equals(this.adminPhoneNumber)) {
-
-                    return toTWIML(
-                            extractNames(
-                                    "No Gift:\n",
-                                    dynamoScanGifts(this.ddb, this.secretSnowmanTable,false)));
-
-                } else if (key.equals(CHECK_GIFTED_COMMAND) && from.equals(this.adminPhoneNumber)) {
-
-                    return toTWIML(
-                            extractNames(
-                                    "Gift:\n",
-                                    dynamoScanGifts(this.ddb, secretSnowmanTable,true)));
-
-                } else if (key.equals(ASSIGN_GIFTS_COMMAND) && from.equals(this.adminPhoneNumber)) {
-
-                    return assignGifts(
-                            this.secretSnowmanPhoneNumber,
-                            this.ddb,
-                            this.secretSnowmanTable,
-                            dynamoScanAll(this.ddb, this.secretSnowmanTable));
-
-                } else if (key.equals(REMIND_COMMAND) && from.equals(adminPhoneNumber)) {
-
-                    return remindNoGifts(
-                            this.sendSMS,
-                            this.secretSnowmanPhoneNumber,
-                            dynamoScanAll(this.ddb, this.secretSnowmanTable));
-                } else if (key.startsWith(RESEND_COMMAND) && from.equals(adminPhoneNumber)) {
-                    final String to = key.substring(RESEND_COMMAND.length()).trim();
-                    return toTWIML(
-                            resendIntro(
-                                    this.ddb,
-                                    this.secretSnowmanTable,
-                                    to,
-                                    this.sendSMS,
-                                    this.secretSnowmanPhoneNumber));
-                } else {
-                    final SecretSnowmanState state = dynamoLookup(this.ddb, this.secretSnowmanTable, from.toString());
-
-                    if (!twimlMap.containsKey(key)) {
-                        return toTWIML(String.format(UNKNOWN_FORMAT, key) + from + ", " + this.adminPhoneNumber);
-                    } else {
-                        if (key.equals(GIFTED_COMMAND)) {
-                            dynamoUpdateGifted(this.ddb, this.secretSnowmanTable, from.toString(), true);
-                        } else if (key.equals(RESET_COMMAND)) {
-                            dynamoUpdateGifted(this.ddb, this.secretSnowmanTable, from.toString(), false);
+        return runParticipant(command, group, from.toString(), key);
+    }
+
+    // An empty reply, for a retry that arrives while the first delivery is still being handled
+    static String emptyTWIML() {
+        return new MessagingResponse.Builder().build().toXml();
+    }
+
+    public String handleRequest(final Map<String, Object> req, final Context context) {
+        final long started = System.nanoTime();
+        this.metrics.begin();
+        this.metrics.count(Metrics.COLD_START, this.warm.getAndSet(true) ? 0 : 1);
+        // The caches add to these on this thread as the request uses them
+        this.metrics.count(Metrics.PARTICIPANT_CACHE_HITS, 0);
+        this.metrics.count(Metrics.PARTICIPANT_CACHE_MISSES, 0);
+        this.metrics.count(Metrics.SECRETS_CACHE_HITS, 0);
+        this.metrics.count(Metrics.SECRETS_CACHE_MISSES, 0);
+        this.metrics.count(Metrics.REPLAYS, 0);
+
+        try {
+            return deduplicated(req);
+        } catch(final RuntimeException e) {
+            this.metrics.error(e);
+            throw e;
+        } finally {
+            this.requestConfig.remove();
+            if(context != null && context.getAwsRequestId() != null) {
+                this.metrics.property("RequestId", context.getAwsRequestId());
+            }
+            this.metrics.time(Metrics.LATENCY, started);
+            this.metrics.flush();
+        }
+    }
+
+    private String deduplicated(final Map<String, Object> req) {
+        if(!req.containsKey(MESSAGE_SID)) {
+            return respond(req);
+        }
+
+        try {
+            this.getSecrets();
+        } catch(final IOException e) {
+            return failed(e);
+        }
+
+        // Twilio retries a webhook that timed out under the same MessageSid; reply as the first time.
+        // A failure is thrown through the deduplicator rather than rendered inside it, so its claim
+        // is released and the retry runs again instead of being handed the error for a day.
+        try {
+            return this.requestDeduplicator.handle(
+                    config().requestTable(),
+                    req.get(MESSAGE_SID).toString(),
+                    () -> {
+                        try {
+                            return reply(req);
+                        } catch(final IOException e) {
+                            throw new UncheckedIOException(e);
                         }
+                    },
+                    emptyTWIML());
+        } catch(final UncheckedIOException e) {
+            return failed(e.getCause());
+        } catch(final ApiException e) {
+            return failed(e);
+        }
+    }
 
-                        return createResponse(this.ddb, this.secretSnowmanTable, this.twimlMap, state, key);
-                    }
-                }
-            } else {
-                return toTWIML("\u2744\u2744\u2744Sorry, I don't recognize your phone number. Are you sure you're participating in Secret Snowman?\u2603");
+    private String respond(final Map<String, Object> req) {
+        try {
+            return reply(req);
+        } catch(final IOException e) {
+            return failed(e);
+        } catch(final ApiException e) {
+            return failed(e);
+        }
+    }
+
+    private String reply(final Map<String, Object> req) throws IOException {
+        this.getSecrets();
+
+        String key = UNKNOWN_COMMAND;
+
+        if (req.containsKey(BODY)) {
+            key = URLDecoder.decode(req.get(BODY).toString(), "UTF-8").toLowerCase().trim();
+        }
+
+        if (req.containsKey(FROM)) {
+            final PhoneNumber from = new PhoneNumber(URLDecoder.decode(req.get(FROM).toString(), "UTF-8"));
+
+            // Without groups, only a command that takes an argument can have text after it
+            final CommandRegistry.Match match = this.commands.match(key);
+            final List<String> managed = managedGroups(from);
+            if (match != null
+                    && match.command().permission() == CommandRegistry.Permission.ADMIN
+                    && !managed.isEmpty()
+                    && (!config().adminGroups().isEmpty() || match.command().takesArguments() || match.arguments().isEmpty())) {
+                this.metrics.command(match.command().name());
+                return handleAdminCommand(match.command(), match.arguments(), managed);
             }
-        } catch (final UnsupportedEncodingException e) {
+
+            return handleParticipant(from, key);
+        } else {
+            return toTWIML(UNRECOGNIZED_MESSAGE);
+        }
+    }
+
+    private String failed(final Exception e) {
+        this.metrics.error(e);
+        if(e instanceof UnsupportedEncodingException) {
             return toTWIML("\u2744Internal Server Error - 0\u2744");
-        } catch(final IOException e) {
-            return toTWIML("\u2744Internal Server Error - 1\u2744");
+        } else if(e instanceof ApiException) {
+            // Twilio rejected our credentials, so the secret was most likely rotated. Fetch it again next time.
+            final ApiException api = (ApiException) e;
+            if(api.getStatusCode() != null && api.getStatusCode() == 401) {
+                this.secretsCache.invalidate();
+            }
+            return toTWIML("\u2744Internal Server Error - 2\u2744");
         }
+        return toTWIML("\u2744Internal Server Error - 1\u2744");
     }
 }
@@ -0,0 +1,238 @@
+package net.eflan.projects.secretsnowman;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+// Collects the metrics of one request and writes them out as a single CloudWatch Embedded Metric
+// Format log line when the request is done. CloudWatch Logs extracts the metrics from the line, so
+// nothing on the hot path calls PutMetricData. Lambda handles one request at a time per container,
+// so everything recorded between two flushes belongs to the same request. A server handling several
+// at once calls begin() on each request's thread; what that thread records is then kept apart until
+// its flush, and only what other threads record (SMS dispatch, draw commit chunks) is shared.
+public class Metrics {
+    public static final String NAMESPACE = "SecretSnowman";
+    public static final String COMMAND_DIMENSION = "Command";
+    // Commands are a fixed set, so they make a low-cardinality dimension; texts that aren't one share this
+    public static final String NO_COMMAND = "none";
+
+    public static final String MILLISECONDS = "Milliseconds";
+    public static final String COUNT = "Count";
+    // The most values of one metric an EMF line may carry
+    public static final int MAX_VALUES = 100;
+
+    public static final String LATENCY = "Latency";
+    public static final String COLD_START = "ColdStart";
+    public static final String ERRORS = "Errors";
+    public static final String TWILIO_SEND = "Twilio.Send";
+    public static final String ASSIGNMENT_STEPS = "AssignmentEngine.Steps";
+    public static final String PARTICIPANT_CACHE_HITS = "ParticipantCache.Hits";
+    public static final String PARTICIPANT_CACHE_MISSES = "ParticipantCache.Misses";
+    public static final String SECRETS_CACHE_HITS = "SecretsCache.Hits";
+    public static final String SECRETS_CACHE_MISSES = "SecretsCache.Misses";
+    public static final String REPLAYS = "RequestDeduplicator.Replays";
+    public static final String WRITE_CONFLICTS = "AssignmentCommitter.Conflicts";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ExecutionAttribute<Long> STARTED = new ExecutionAttribute<>("MetricsStartedNanos");
+
+    private static final class Record {
+        private final Map<String, List<Double>> values = new LinkedHashMap<>();
+        private final Map<String, String> units = new HashMap<>();
+        private final Map<String, Object> properties = new LinkedHashMap<>();
+        private String command = NO_COMMAND;
+    }
+
+    private final Consumer<String> sink;
+    private final LongSupplier clock;
+    private final Record shared = new Record();
+    private final ThreadLocal<Record> request = new ThreadLocal<>();
+
+    // Lambda sends standard output to CloudWatch Logs
+    public Metrics() {
+        this(System.out::println, System::currentTimeMillis);
+    }
+
+    public Metrics(final Consumer<String> sink, final LongSupplier clock) {
+        this.sink = sink;
+        this.clock = clock;
+    }
+
+    // What the calling thread records from here until it flushes belongs to its own request
+    public void begin() {
+        this.request.set(new Record());
+    }
+
+    private Record current() {
+        final Record record = this.request.get();
+        return record == null ? this.shared : record;
+    }
+
+    public synchronized void command(final String command) {
+        current().command = command;
+    }
+
+    public synchronized void put(final String name, final double value, final String unit) {
+        final Record record = current();
+        record.values.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+        record.units.put(name, unit);
+    }
+
+    public void count(final String name, final long count) {
+        put(name, count, COUNT);
+    }
+
+    // Adds to the count this request already has for name instead of recording another value, so a
+    // cache hit many times over still goes out as one value per request
+    public synchronized void add(final String name, final long count) {
+        final Record record = current();
+        final List<Double> values = record.values.computeIfAbsent(name, n -> new ArrayList<>());
+        if(values.isEmpty()) {
+            values.add((double) count);
+        } else {
+            values.set(values.size() - 1, values.get(values.size() - 1) + count);
+        }
+        record.units.put(name, COUNT);
+    }
+
+    // Milliseconds since startedNanos, a System.nanoTime()
+    public void time(final String name, final long startedNanos) {
+        put(name, (System.nanoTime() - startedNanos) / 1_000_000.0, MILLISECONDS);
+    }
+
+    // Searchable in the log line, but not a metric
+    public synchronized void property(final String name, final Object value) {
+        current().properties.put(name, value);
+    }
+
+    public void error(final Throwable e) {
+        count(ERRORS, 1);
+        property("Error", e.toString());
+    }
+
+    // Writes the calling thread's request and whatever was shared since the last flush, and starts
+    // over. EMF takes at most MAX_VALUES values per metric in a line, so a request that recorded more
+    // (a draw for hundreds of people times every send) is written as several lines, each carrying the
+    // next MAX_VALUES of every metric that has that many.
+    public void flush() {
+        final List<String> lines = new ArrayList<>();
+        synchronized(this) {
+            final Record record = this.request.get() == null ? new Record() : this.request.get();
+            this.request.remove();
+            for(final Map.Entry<String, List<Double>> metric : this.shared.values.entrySet()) {
+                record.values.computeIfAbsent(metric.getKey(), n -> new ArrayList<>()).addAll(metric.getValue());
+            }
+            this.shared.units.forEach(record.units::putIfAbsent);
+            this.shared.properties.forEach(record.properties::putIfAbsent);
+            if(record.command.equals(NO_COMMAND)) {
+                record.command = this.shared.command;
+            }
+            this.shared.values.clear();
+            this.shared.units.clear();
+            this.shared.properties.clear();
+            this.shared.command = NO_COMMAND;
+
+            int offset = 0;
+            do {
+                lines.add(line(record, offset));
+                offset += MAX_VALUES;
+            } while(hasValuesFrom(record, offset));
+        }
+
+        for(final String line : lines) {
+            this.sink.accept(line);
+        }
+    }
+
+    private static boolean hasValuesFrom(final Record record, final int offset) {
+        for(final List<Double> values : record.values.values()) {
+            if(values.size() > offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // One EMF line with the values of each metric from offset on, up to MAX_VALUES of them
+    private String line(final Record record, final int offset) {
+        final Map<String, List<Double>> values = new LinkedHashMap<>();
+        for(final Map.Entry<String, List<Double>> metric : record.values.entrySet()) {
+            if(metric.getValue().size() > offset) {
+                values.put(metric.getKey(), metric.getValue().subList(offset, Math.min(metric.getValue().size(), offset + MAX_VALUES)));
+            }
+        }
+
+        final List<Map<String, String>> definitions = new ArrayList<>(values.size());
+        for(final String name : values.keySet()) {
+            final Map<String, String> definition = new LinkedHashMap<>();
+            definition.put("Name", name);
+            definition.put("Unit", record.units.get(name));
+            definitions.add(definition);
+        }
+
+        final Map<String, Object> directive = new LinkedHashMap<>();
+        directive.put("Namespace", NAMESPACE);
+        directive.put("Dimensions", Collections.singletonList(Collections.singletonList(COMMAND_DIMENSION)));
+        directive.put("Metrics", definitions);
+
+        final Map<String, Object> aws = new LinkedHashMap<>();
+        aws.put("Timestamp", this.clock.getAsLong());
+        aws.put("CloudWatchMetrics", Collections.singletonList(directive));
+
+        final Map<String, Object> root = new LinkedHashMap<>();
+        root.put("_aws", aws);
+        root.put(COMMAND_DIMENSION, record.command);
+        root.putAll(record.properties);
+        for(final Map.Entry<String, List<Double>> metric : values.entrySet()) {
+            root.put(metric.getKey(), metric.getValue().size() == 1 ? metric.getValue().get(0) : metric.getValue());
+        }
+
+        try {
+            return MAPPER.writeValueAsString(root);
+        } catch(final JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Times every call an AWS client makes, retries included, as "<service>.<operation>"
+    public ExecutionInterceptor interceptor() {
+        return new ExecutionInterceptor() {
+            @Override
+            public void beforeExecution(final Context.BeforeExecution context, final ExecutionAttributes attributes) {
+                attributes.putAttribute(STARTED, System.nanoTime());
+            }
+
+            @Override
+            public void afterExecution(final Context.AfterExecution context, final ExecutionAttributes attributes) {
+                record(attributes);
+            }
+
+            @Override
+            public void onExecutionFailure(final Context.FailedExecution context, final ExecutionAttributes attributes) {
+                record(attributes);
+            }
+
+            private void record(final ExecutionAttributes attributes) {
+                final Long started = attributes.getAttribute(STARTED);
+                if(started != null) {
+                    time(attributes.getAttribute(SdkExecutionAttribute.SERVICE_NAME)
+                            + '.' + attributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME), started);
+                }
+            }
+        };
+    }
+}
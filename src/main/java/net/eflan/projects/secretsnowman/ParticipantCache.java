@@ -0,0 +1,175 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Read-through cache of participant rows for a warm container, keyed by group and phone number.
+// Entries are evicted least-recently-used past maxEntries and expire after the TTL, which bounds how
+// stale a row written by another container can get. Writes made through this handler invalidate directly.
+// Reads go to DynamoDB outside the lock, so every invalidate or refresh bumps a generation, and a read
+// only fills the cache if nothing was invalidated or refreshed while it was in flight.
+// Hits and misses are also counted into the calling request's metrics, when given them.
+public class ParticipantCache {
+    public static final int DEFAULT_MAX_ENTRIES = 2000;
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000L;
+
+    private static class Entry {
+        final SecretSnowmanState state;
+        final long loadedAt;
+
+        Entry(final SecretSnowmanState state, final long loadedAt) {
+            this.state = state;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final DynamoDbClient dbc;
+    private final long ttlMillis;
+    private final boolean consistentReads;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Metrics metrics;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long generation = 0;
+
+    public ParticipantCache(final DynamoDbClient dbc, final Metrics metrics) {
+        this(dbc,
+                DEFAULT_MAX_ENTRIES,
+                ttlFromEnvironment(),
+                !"eventual".equalsIgnoreCase(System.getenv("PARTICIPANT_READ_CONSISTENCY")),
+                System::currentTimeMillis,
+                metrics);
+    }
+
+    public ParticipantCache(
+            final DynamoDbClient dbc,
+            final int maxEntries,
+            final long ttlMillis,
+            final boolean consistentReads,
+            final LongSupplier clock) {
+
+        this(dbc, maxEntries, ttlMillis, consistentReads, clock, null);
+    }
+
+    public ParticipantCache(
+            final DynamoDbClient dbc,
+            final int maxEntries,
+            final long ttlMillis,
+            final boolean consistentReads,
+            final LongSupplier clock,
+            final Metrics metrics) {
+
+        this.dbc = dbc;
+        this.metrics = metrics;
+        this.ttlMillis = ttlMillis;
+        this.consistentReads = consistentReads;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static long ttlFromEnvironment() {
+        final String ttlSeconds = System.getenv("PARTICIPANT_CACHE_TTL_SECONDS");
+        return ttlSeconds == null ? DEFAULT_TTL_MILLIS : Long.parseLong(ttlSeconds) * 1000L;
+    }
+
+    public SecretSnowmanState lookup(final String secretSnowmanTable, final String phoneNumber) {
+        return lookup(secretSnowmanTable, null, phoneNumber);
+    }
+
+    public SecretSnowmanState lookup(final String secretSnowmanTable, final String group, final String phoneNumber) {
+        final String cacheKey = cacheKey(group, phoneNumber);
+        final long now = this.clock.getAsLong();
+        final long generation;
+        synchronized(this) {
+            final Entry entry = this.entries.get(cacheKey);
+            if(entry != null && now - entry.loadedAt < this.ttlMillis) {
+                this.hits++;
+                count(Metrics.PARTICIPANT_CACHE_HITS);
+                return entry.state;
+            }
+            this.misses++;
+            generation = this.generation;
+        }
+        count(Metrics.PARTICIPANT_CACHE_MISSES);
+
+        final SecretSnowmanState state = dynamoLookup(secretSnowmanTable, group, phoneNumber);
+        fill(cacheKey, state, now, generation);
+        return state;
+    }
+
+    // A read that started before an invalidate or refresh may hold the older row, so it is dropped
+    private synchronized void fill(final String cacheKey, final SecretSnowmanState state, final long loadedAt, final long generation) {
+        if(generation == this.generation) {
+            this.entries.put(cacheKey, new Entry(state, loadedAt));
+        }
+    }
+
+    // Puts in a row this handler has just written, as the write returned it
+    public void refresh(final String group, final String phoneNumber, final SecretSnowmanState state) {
+        final long now = this.clock.getAsLong();
+        synchronized(this) {
+            this.generation++;
+            this.entries.put(cacheKey(group, phoneNumber), new Entry(state, now));
+        }
+    }
+
+    public void invalidate(final String phoneNumber) {
+        invalidate(null, phoneNumber);
+    }
+
+    public synchronized void invalidate(final String group, final String phoneNumber) {
+        this.generation++;
+        this.entries.remove(cacheKey(group, phoneNumber));
+    }
+
+    private static String cacheKey(final String group, final String phoneNumber) {
+        return group == null ? phoneNumber : group + '|' + phoneNumber;
+    }
+
+    public synchronized void invalidateAll() {
+        this.generation++;
+        this.entries.clear();
+    }
+
+    private void count(final String name) {
+        if(this.metrics != null) {
+            this.metrics.add(name, 1);
+        }
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    private GetItemRequest getRequest(final String secretSnowmanTable, final String group, final String phoneNumber) {
+        final Map<String, AttributeValue> key = SecretSnowmanState.key(group, phoneNumber);
+
+        return GetItemRequest.builder()
+                .consistentRead(this.consistentReads)
+                .tableName(secretSnowmanTable)
+                .key(key)
+                .build();
+    }
+
+    private SecretSnowmanState dynamoLookup(final String secretSnowmanTable, final String group, final String phoneNumber) {
+        final GetItemResponse response = this.dbc.getItem(getRequest(secretSnowmanTable, group, phoneNumber));
+        return SecretSnowmanState.from(response.item());
+    }
+}
@@ -0,0 +1,107 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.type.PhoneNumber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Index over one scan of the participants. Every phone number, assignment and cannot-match entry
+// is normalized to an E.164 string once when the roster is built, so lookups afterwards are a
+// single hash probe instead of a walk over the whole list.
+public class ParticipantRoster {
+    private final List<SecretSnowmanState> people;
+    private final String[] phones;
+    private final String[] assigned;
+    private final List<Set<String>> cannot;
+    private final Map<String, Integer> index;
+
+    public ParticipantRoster(final List<SecretSnowmanState> people) {
+        this.people = Collections.unmodifiableList(new ArrayList<>(people));
+        this.phones = new String[people.size()];
+        this.assigned = new String[people.size()];
+        this.cannot = new ArrayList<>(people.size());
+        this.index = new HashMap<>(people.size() * 2);
+
+        for(int i = 0; i < people.size(); i++) {
+            final SecretSnowmanState person = people.get(i);
+            this.phones[i] = e164(person.phone());
+            this.assigned[i] = e164(person.assigned());
+
+            final Set<String> excluded = new HashSet<>(person.cannot().size() * 2);
+            for(final PhoneNumber p : person.cannot()) {
+                excluded.add(e164(p));
+            }
+            this.cannot.add(excluded);
+
+            this.index.putIfAbsent(this.phones[i], i);
+        }
+    }
+
+    // Strips the formatting people tend to type into a number, leaving +, digits and letters
+    public static String e164(final PhoneNumber phoneNumber) {
+        return phoneNumber == null ? null : e164(phoneNumber.toString());
+    }
+
+    public static String e164(final String phoneNumber) {
+        if(phoneNumber == null) {
+            return null;
+        }
+
+        final StringBuilder normalized = new StringBuilder(phoneNumber.length());
+        for(int i = 0; i < phoneNumber.length(); i++) {
+            final char c = phoneNumber.charAt(i);
+            if(c != ' ' && c != '-' && c != '(' && c != ')' && c != '.') {
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    public int size() {
+        return this.people.size();
+    }
+
+    public List<SecretSnowmanState> people() {
+        return this.people;
+    }
+
+    public SecretSnowmanState get(final int i) {
+        return this.people.get(i);
+    }
+
+    public String phone(final int i) {
+        return this.phones[i];
+    }
+
+    // Position of the participant with this number, or -1
+    public int indexOf(final String phoneNumber) {
+        final Integer i = this.index.get(phoneNumber);
+        return i == null ? -1 : i;
+    }
+
+    public SecretSnowmanState get(final String phoneNumber) {
+        final int i = indexOf(phoneNumber);
+        return i < 0 ? null : this.people.get(i);
+    }
+
+    // The participant that people().get(i) is assigned to buy for, or null if they aren't in the roster
+    public SecretSnowmanState recipientOf(final int i) {
+        return get(this.assigned[i]);
+    }
+
+    public Set<String> cannot(final int i) {
+        return this.cannot.get(i);
+    }
+
+    // Whether giver may buy for recipient (both positions in the roster)
+    public boolean canGive(final int giver, final int recipient) {
+        return giver != recipient
+                && !this.phones[giver].equals(this.phones[recipient])
+                && !this.cannot.get(giver).contains(this.phones[recipient]);
+    }
+}
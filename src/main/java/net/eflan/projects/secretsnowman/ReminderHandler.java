@@ -0,0 +1,308 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+// Sends the reminders to buy a gift on a schedule, from an EventBridge rule, instead of from the
+// admin's "remind" text inside a webhook call with a hard timeout. Unpurchased participants are
+// read a page at a time and each page is texted as a batch. After every page the position is
+// checkpointed in the request table, so a run cut short by the Lambda timeout is picked up by the
+// next invocation. Every participant reminded is stamped with the day, which keeps anybody from
+// being reminded twice in a day and makes re-running a page harmless.
+public class ReminderHandler implements RequestHandler<Map<String, Object>, String> {
+    public static final String COMMAND = "scheduled reminders";
+    public static final String CHECKPOINT_PREFIX = "reminders#";
+    public static final String START_KEY = "start-key";
+    public static final String DONE_KEY = "done";
+    public static final String GROUP_FIELD = "group";
+    public static final String SENT = "Reminders.Sent";
+    public static final String FAILED = "Reminders.Failed";
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    // No new page is started with less than this left of the invocation
+    public static final long DEFAULT_SAFETY_MILLIS = 30_000;
+    public static final long CHECKPOINT_TTL_SECONDS = 2 * 24 * 60 * 60;
+    public static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final DynamoDbClient ddb;
+    private final SecretsCache secretsCache;
+    private final ParticipantCache participantCache;
+    private final SmsDispatcher smsDispatcher;
+    private final Metrics metrics;
+    private final LongSupplier clock;
+    private final int pageSize;
+    private final long safetyMillis;
+
+    private volatile SecretSnowmanConfig config = null;
+
+    public ReminderHandler() {
+        this.metrics = new Metrics();
+        this.ddb = AwsClients.dynamoDb(this.metrics.interceptor());
+        this.secretsCache = new SecretsCache(AwsClients.secretsManager(this.metrics.interceptor()), this.metrics);
+        this.participantCache = new ParticipantCache(this.ddb, this.metrics);
+        this.smsDispatcher = new SmsDispatcher(new TwilioSender(() -> this.config));
+        this.clock = System::currentTimeMillis;
+        this.pageSize = DEFAULT_PAGE_SIZE;
+        this.safetyMillis = DEFAULT_SAFETY_MILLIS;
+    }
+
+    // Used by unit tests. Metrics are dropped and texts go through the given SendSMS.
+    public ReminderHandler(
+            final DynamoDbClient dynamoDbClient,
+            final SecretsManagerClient secretsManagerClient,
+            final LambdaHandler.SendSMS sendSMS,
+            final LongSupplier clock,
+            final int pageSize) {
+
+        this.metrics = new Metrics(line -> {}, clock);
+        this.ddb = dynamoDbClient;
+        this.secretsCache = new SecretsCache(secretsManagerClient, this.metrics);
+        this.participantCache = new ParticipantCache(this.ddb, this.metrics);
+        this.smsDispatcher = new SmsDispatcher(
+                sendSMS,
+                SmsDispatcher.DEFAULT_PARALLELISM,
+                Double.MAX_VALUE,
+                1,
+                SmsDispatcher.BASE_BACKOFF_MILLIS);
+        this.clock = clock;
+        this.pageSize = pageSize;
+        this.safetyMillis = DEFAULT_SAFETY_MILLIS;
+    }
+
+    // A rule per group can pass {"detail": {"group": "..."}}; otherwise every group is reminded
+    @Override
+    public String handleRequest(final Map<String, Object> event, final Context context) {
+        final long started = System.nanoTime();
+        this.metrics.command(COMMAND);
+        try {
+            this.config = this.secretsCache.get();
+
+            final List<String> groups = groups(event);
+            final StringBuilder status = new StringBuilder();
+            for(final String group : groups) {
+                status.append(group == null ? "all" : group).append(": ").append(remind(group, context)).append('\n');
+            }
+            return status.toString();
+        } catch(final IOException | RuntimeException e) {
+            this.metrics.error(e);
+            throw new IllegalStateException("Reminders failed", e);
+        } finally {
+            this.metrics.time(Metrics.LATENCY, started);
+            this.metrics.flush();
+        }
+    }
+
+    private List<String> groups(final Map<String, Object> event) {
+        final Object detail = event == null ? null : event.get("detail");
+        if(detail instanceof Map && ((Map<?, ?>) detail).get(GROUP_FIELD) != null) {
+            return Collections.singletonList(((Map<?, ?>) detail).get(GROUP_FIELD).toString().toLowerCase());
+        }
+
+        if(!this.config.grouped()) {
+            return Collections.singletonList(null);
+        }
+        return this.config.adminGroups().values().stream()
+                .flatMap(List::stream)
+                .distinct()
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    // Picks up where today's run for the group left off, and stops early rather than be cut off mid-page
+    private String remind(final String group, final Context context) {
+        final long today = Math.floorDiv(this.clock.getAsLong(), DAY_MILLIS);
+        final String checkpointId = CHECKPOINT_PREFIX + (group == null ? "" : group) + '#' + today;
+
+        Map<String, AttributeValue> startKey = null;
+        final Map<String, AttributeValue> checkpoint = readCheckpoint(checkpointId);
+        if(checkpoint != null) {
+            if(checkpoint.containsKey(DONE_KEY) && checkpoint.get(DONE_KEY).bool()) {
+                return "already done today";
+            }
+            if(checkpoint.containsKey(START_KEY)) {
+                startKey = checkpoint.get(START_KEY).m();
+            }
+        }
+
+        int sent = 0;
+        int failed = 0;
+        while(true) {
+            if(context != null && context.getRemainingTimeInMillis() < this.safetyMillis) {
+                return String.format("%d reminded, %d failed, paused", sent, failed);
+            }
+
+            final Page page = page(group, today, startKey);
+            final int[] counts = remindPage(page.items, today);
+            sent += counts[0];
+            failed += counts[1];
+
+            startKey = page.lastEvaluatedKey;
+            final boolean done = startKey == null || startKey.isEmpty();
+            writeCheckpoint(checkpointId, startKey, done);
+            if(done) {
+                return String.format("%d reminded, %d failed, done", sent, failed);
+            }
+        }
+    }
+
+    private static class Page {
+        final List<Map<String, AttributeValue>> items;
+        final Map<String, AttributeValue> lastEvaluatedKey;
+
+        Page(final List<Map<String, AttributeValue>> items, final Map<String, AttributeValue> lastEvaluatedKey) {
+            this.items = items;
+            this.lastEvaluatedKey = lastEvaluatedKey;
+        }
+    }
+
+    // One page of people who haven't bought and haven't been reminded today. The gift status index
+    // only carries names, so the page is read from the table, which has each row's assignment.
+    private Page page(final String group, final long today, final Map<String, AttributeValue> startKey) {
+        final String filter = "#gp = :no AND attribute_not_exists(#ro) OR #gp = :no AND #ro < :today";
+        final Map<String, String> names = Map.of(
+                "#gp", SecretSnowmanState.GIFT_PURCHASE_KEY,
+                "#ro", SecretSnowmanState.REMINDED_ON_KEY);
+        final Map<String, AttributeValue> values = Map.of(
+                ":no", AttributeValue.builder().bool(false).build(),
+                ":today", AttributeValue.builder().n(Long.toString(today)).build());
+
+        if(group == null) {
+            final ScanRequest.Builder scan = DynamoScanner.stateScan(this.config.table(), filter, names, values)
+                    .limit(this.pageSize);
+            final ScanResponse response = this.ddb.scan(startKey == null ? scan.build() : scan.exclusiveStartKey(startKey).build());
+            return new Page(response.items(), response.lastEvaluatedKey());
+        }
+
+        final QueryRequest.Builder query = DynamoScanner.groupQuery(this.config.table(), group, filter, names, values)
+                .limit(this.pageSize);
+        final QueryResponse response = this.ddb.query(startKey == null ? query.build() : query.exclusiveStartKey(startKey).build());
+        return new Page(response.items(), response.lastEvaluatedKey());
+    }
+
+    // Stamps each person with today before texting them, so an overlapping run skips them; a failed
+    // text takes the stamp off again for the next run to retry. People who haven't been drawn, or
+    // whose recipient has left the roster, have no one to buy for and are skipped. Returns { sent, failed }.
+    private int[] remindPage(final List<Map<String, AttributeValue>> items, final long today) {
+        final List<SecretSnowmanState> people = new ArrayList<>(items.size());
+        final List<SecretSnowmanState> recipients = new ArrayList<>(items.size());
+        for(final Map<String, AttributeValue> item : items) {
+            final SecretSnowmanState person = SecretSnowmanState.from(item);
+            if(!person.hasAssignment()) {
+                continue;
+            }
+            final SecretSnowmanState recipient = person.recipient().orElseGet(() -> this.participantCache.lookup(
+                    this.config.table(), person.group(), person.assigned().toString()));
+            // A row that isn't there comes back with the default phone number
+            if(!recipient.phone().toString().equals(person.assigned().toString())) {
+                continue;
+            }
+            if(claim(person, today)) {
+                people.add(person);
+                recipients.add(recipient);
+            }
+        }
+
+        final List<SmsDispatcher.Delivery> deliveries = this.smsDispatcher.dispatch(
+                this.config.secretSnowmanPhoneNumber(), LambdaHandler.REMINDER_FORMAT, people, recipients);
+
+        int sent = 0;
+        for(final SmsDispatcher.Delivery delivery : deliveries) {
+            if(delivery.delivered()) {
+                sent++;
+            } else {
+                release(delivery.person(), today);
+            }
+        }
+
+        this.metrics.count(SENT, sent);
+        this.metrics.count(FAILED, deliveries.size() - sent);
+        return new int[] { sent, deliveries.size() - sent };
+    }
+
+    private boolean claim(final SecretSnowmanState person, final long today) {
+        try {
+            this.ddb.updateItem(UpdateItemRequest.builder()
+                    .tableName(this.config.table())
+                    .key(SecretSnowmanState.key(person.group(), person.phone().toString()))
+                    .updateExpression("set #ro = :today")
+                    .conditionExpression("#gp = :no AND attribute_not_exists(#ro) OR #gp = :no AND #ro < :today")
+                    .expressionAttributeNames(Map.of(
+                            "#gp", SecretSnowmanState.GIFT_PURCHASE_KEY,
+                            "#ro", SecretSnowmanState.REMINDED_ON_KEY))
+                    .expressionAttributeValues(Map.of(
+                            ":no", AttributeValue.builder().bool(false).build(),
+                            ":today", AttributeValue.builder().n(Long.toString(today)).build()))
+                    .build());
+            return true;
+        } catch(final ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    private void release(final SecretSnowmanState person, final long today) {
+        try {
+            this.ddb.updateItem(UpdateItemRequest.builder()
+                    .tableName(this.config.table())
+                    .key(SecretSnowmanState.key(person.group(), person.phone().toString()))
+                    .updateExpression("remove #ro")
+                    .conditionExpression("#ro = :today")
+                    .expressionAttributeNames(Map.of("#ro", SecretSnowmanState.REMINDED_ON_KEY))
+                    .expressionAttributeValues(Map.of(":today", AttributeValue.builder().n(Long.toString(today)).build()))
+                    .build());
+        } catch(final ConditionalCheckFailedException e) {
+            // Already released or reminded again since
+        }
+    }
+
+    // Without a request table there is nothing to resume from; the day stamps still keep a re-run
+    // from texting anybody twice.
+    private Map<String, AttributeValue> readCheckpoint(final String checkpointId) {
+        if(this.config.requestTable() == null) {
+            return null;
+        }
+
+        return this.ddb.getItem(GetItemRequest.builder()
+                .tableName(this.config.requestTable())
+                .consistentRead(true)
+                .key(Map.of(RequestDeduplicator.MESSAGE_SID_KEY, AttributeValue.builder().s(checkpointId).build()))
+                .build()).item();
+    }
+
+    private void writeCheckpoint(final String checkpointId, final Map<String, AttributeValue> startKey, final boolean done) {
+        if(this.config.requestTable() == null) {
+            return;
+        }
+
+        final Map<String, AttributeValue> item = new HashMap<>();
+        item.put(RequestDeduplicator.MESSAGE_SID_KEY, AttributeValue.builder().s(checkpointId).build());
+        item.put(DONE_KEY, AttributeValue.builder().bool(done).build());
+        item.put(RequestDeduplicator.EXPIRES_AT_KEY, AttributeValue.builder()
+                .n(Long.toString(this.clock.getAsLong() / 1000 + CHECKPOINT_TTL_SECONDS)).build());
+        if(!done) {
+            item.put(START_KEY, AttributeValue.builder().m(startKey).build());
+        }
+
+        this.ddb.putItem(PutItemRequest.builder().tableName(this.config.requestTable()).item(item).build());
+    }
+}
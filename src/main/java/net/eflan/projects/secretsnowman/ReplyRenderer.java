@@ -0,0 +1,133 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.twiml.MessagingResponse;
+import com.twilio.twiml.messaging.Body;
+import com.twilio.twiml.messaging.Message;
+
+// Writes the one-message TwiML replies the handler sends straight into a per-thread buffer, rather
+// than building the Twilio SDK's TwiML objects and serializing them. The output is byte for byte
+// what the SDK writes: &, < and > as entities; carriage return, DEL and the C1 controls, and
+// characters outside the Basic Multilingual Plane, as numeric references. The cases it doesn't
+// write itself go through the SDK, so they fail exactly as they always have: the other C0 controls,
+// which XML doesn't allow and the SDK throws on, and unpaired surrogates.
+public final class ReplyRenderer {
+    private static final String PREFIX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response><Message><Body>";
+    private static final String SUFFIX = "</Body></Message></Response>";
+    private static final String EMPTY_BODY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response><Message><Body/></Message></Response>";
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private ReplyRenderer() {
+    }
+
+    // A reply format with its %s arguments split out and the text around them escaped ahead of time
+    public static final class Template {
+        private final String format;
+        private final String[] literals;
+
+        private Template(final String format, final String[] literals) {
+            this.format = format;
+            this.literals = literals;
+        }
+
+        public static Template compile(final String format) {
+            final String[] parts = format.split("%s", -1);
+            final String[] literals = new String[parts.length];
+            for(int i = 0; i < parts.length; i++) {
+                if(parts[i].indexOf('%') >= 0) {
+                    throw new IllegalArgumentException("Only %s is supported: " + format);
+                }
+
+                final StringBuilder escaped = new StringBuilder(parts[i].length() + 16);
+                if(!escape(parts[i], escaped)) {
+                    throw new IllegalArgumentException("Control character or unpaired surrogate in " + format);
+                }
+                literals[i] = escaped.toString();
+            }
+            return new Template(format, literals);
+        }
+
+        public int arguments() {
+            return this.literals.length - 1;
+        }
+
+        // Same as toTWIML(String.format(format, args))
+        public String render(final Object... args) {
+            if(args.length != arguments()) {
+                throw new IllegalArgumentException("Expected " + arguments() + " arguments for " + this.format);
+            }
+
+            final StringBuilder out = buffer();
+            out.append(PREFIX);
+            for(int i = 0; i < args.length; i++) {
+                out.append(this.literals[i]);
+                if(!escape(String.valueOf(args[i]), out)) {
+                    return sdkTWIML(String.format(this.format, args));
+                }
+            }
+            out.append(this.literals[args.length]);
+
+            return finish(out);
+        }
+    }
+
+    // Same as toTWIML(text)
+    public static String render(final String text) {
+        final StringBuilder out = buffer();
+        out.append(PREFIX);
+        if(!escape(text, out)) {
+            return sdkTWIML(text);
+        }
+        return finish(out);
+    }
+
+    // The Twilio SDK's rendering, which render() reproduces
+    static String sdkTWIML(final String text) {
+        final Body body = new Body.Builder(text).build();
+        final Message message = new Message.Builder().body(body).build();
+        final MessagingResponse response = new MessagingResponse.Builder().message(message).build();
+        return response.toXml();
+    }
+
+    private static StringBuilder buffer() {
+        final StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        return out;
+    }
+
+    private static String finish(final StringBuilder out) {
+        if(out.length() == PREFIX.length()) {
+            return EMPTY_BODY;
+        }
+        return out.append(SUFFIX).toString();
+    }
+
+    // Appends text escaped as the SDK would, or returns false for the cases left to the SDK
+    static boolean escape(final CharSequence text, final StringBuilder out) {
+        final int length = text.length();
+        for(int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if(c == '&') {
+                out.append("&amp;");
+            } else if(c == '<') {
+                out.append("&lt;");
+            } else if(c == '>') {
+                out.append("&gt;");
+            } else if(c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+                return false;
+            } else if(c == '\r' || (c >= 0x7f && c <= 0x9f)) {
+                out.append("&#").append((int) c).append(';');
+            } else if(Character.isHighSurrogate(c)) {
+                if(i + 1 == length || !Character.isLowSurrogate(text.charAt(i + 1))) {
+                    return false;
+                }
+                out.append("&#").append(Character.toCodePoint(c, text.charAt(++i))).append(';');
+            } else if(Character.isLowSurrogate(c)) {
+                return false;
+            } else {
+                out.append(c);
+            }
+        }
+        return true;
+    }
+}
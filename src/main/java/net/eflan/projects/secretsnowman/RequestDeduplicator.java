@@ -0,0 +1,204 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Runs each Twilio message once. Twilio retries a webhook that timed out with the same MessageSid,
+// which would otherwise mark a gift twice or redraw and re-text everybody. The first request claims
+// the sid with a conditional put, and its reply is stored on the record (expiring through the
+// table's TTL on expires-at) and in an LRU for the container, so a retry gets the same reply back.
+// A handler that throws stores nothing and releases its claim, so a retry after a failure runs again.
+// Replays are also counted into the calling request's metrics, when given them.
+//
+// Without a table only the LRU is checked, which catches few real retries: Twilio retries because the
+// first delivery is still running, and Lambda sends the retry to another container while this one is
+// busy. Deduplicating webhook retries across containers needs the table.
+public class RequestDeduplicator {
+    public static final String MESSAGE_SID_KEY = "message-sid";
+    public static final String REPLY_KEY = "reply";
+    public static final String EXPIRES_AT_KEY = "expires-at";
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    // A claim whose request never finished (the container died) can be taken over after this long
+    public static final long PENDING_TTL_SECONDS = 60;
+    public static final long REPLY_TTL_SECONDS = 24 * 60 * 60;
+    public static final long PENDING_WAIT_MILLIS = 3000;
+    public static final long POLL_MILLIS = 250;
+
+    private final DynamoDbClient dbc;
+    private final LongSupplier clock;
+    private final long pendingWaitMillis;
+    private final LinkedHashMap<String, String> replies;
+    private final Metrics metrics;
+
+    private long replays = 0;
+
+    public RequestDeduplicator(final DynamoDbClient dbc, final Metrics metrics) {
+        this(dbc, DEFAULT_MAX_ENTRIES, PENDING_WAIT_MILLIS, System::currentTimeMillis, metrics);
+    }
+
+    public RequestDeduplicator(
+            final DynamoDbClient dbc,
+            final int maxEntries,
+            final long pendingWaitMillis,
+            final LongSupplier clock) {
+
+        this(dbc, maxEntries, pendingWaitMillis, clock, null);
+    }
+
+    public RequestDeduplicator(
+            final DynamoDbClient dbc,
+            final int maxEntries,
+            final long pendingWaitMillis,
+            final LongSupplier clock,
+            final Metrics metrics) {
+
+        this.dbc = dbc;
+        this.metrics = metrics;
+        this.pendingWaitMillis = pendingWaitMillis;
+        this.clock = clock;
+        this.replies = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // The reply for messageSid: handler's, the first time the sid is seen, and the stored reply after
+    // that. A retry arriving while the first request is still running gets inProgressReply if the
+    // first one hasn't finished within the wait. With no table, only this container is checked.
+    // Whatever handler throws is passed on, with nothing stored.
+    public String handle(
+            final String requestTable,
+            final String messageSid,
+            final Supplier<String> handler,
+            final String inProgressReply) {
+
+        synchronized(this) {
+            final String reply = this.replies.get(messageSid);
+            if(reply != null) {
+                this.replays++;
+                count(Metrics.REPLAYS);
+                return reply;
+            }
+        }
+
+        if(requestTable != null && !claim(requestTable, messageSid)) {
+            final String reply = awaitReply(requestTable, messageSid);
+            synchronized(this) {
+                this.replays++;
+                if(reply != null) {
+                    this.replies.put(messageSid, reply);
+                }
+            }
+            count(Metrics.REPLAYS);
+            return reply == null ? inProgressReply : reply;
+        }
+
+        final String reply;
+        try {
+            reply = handler.get();
+        } catch(final RuntimeException e) {
+            // Nothing to replay, so let a retry run it again
+            if(requestTable != null) {
+                this.dbc.deleteItem(DeleteItemRequest.builder().tableName(requestTable).key(key(messageSid)).build());
+            }
+            throw e;
+        }
+
+        if(requestTable != null) {
+            this.dbc.putItem(PutItemRequest.builder()
+                    .tableName(requestTable)
+                    .item(record(messageSid, reply, REPLY_TTL_SECONDS))
+                    .build());
+        }
+        synchronized(this) {
+            this.replies.put(messageSid, reply);
+        }
+        return reply;
+    }
+
+    private void count(final String name) {
+        if(this.metrics != null) {
+            this.metrics.add(name, 1);
+        }
+    }
+
+    public synchronized long replays() {
+        return this.replays;
+    }
+
+    private boolean claim(final String requestTable, final String messageSid) {
+        final Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":now", AttributeValue.builder().n(Long.toString(nowSeconds())).build());
+
+        try {
+            this.dbc.putItem(PutItemRequest.builder()
+                    .tableName(requestTable)
+                    .item(record(messageSid, null, PENDING_TTL_SECONDS))
+                    // TTL deletes lag behind expiry, so an expired record counts as absent
+                    .conditionExpression("attribute_not_exists(#sid) OR #exp < :now")
+                    .expressionAttributeNames(Map.of("#sid", MESSAGE_SID_KEY, "#exp", EXPIRES_AT_KEY))
+                    .expressionAttributeValues(values)
+                    .build());
+            return true;
+        } catch(final ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    // The reply another request stored for this sid, waiting a little while it is still running
+    private String awaitReply(final String requestTable, final String messageSid) {
+        final long deadline = this.clock.getAsLong() + this.pendingWaitMillis;
+        while(true) {
+            final Map<String, AttributeValue> item = this.dbc.getItem(GetItemRequest.builder()
+                    .tableName(requestTable)
+                    .consistentRead(true)
+                    .key(key(messageSid))
+                    .build()).item();
+
+            if(item != null && item.containsKey(REPLY_KEY)) {
+                return item.get(REPLY_KEY).s();
+            }
+            if(this.clock.getAsLong() >= deadline) {
+                return null;
+            }
+
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private static Map<String, AttributeValue> key(final String messageSid) {
+        return Map.of(MESSAGE_SID_KEY, AttributeValue.builder().s(messageSid).build());
+    }
+
+    private Map<String, AttributeValue> record(final String messageSid, final String reply, final long ttlSeconds) {
+        final Map<String, AttributeValue> item = new HashMap<>();
+        item.put(MESSAGE_SID_KEY, AttributeValue.builder().s(messageSid).build());
+        item.put(EXPIRES_AT_KEY, AttributeValue.builder().n(Long.toString(nowSeconds() + ttlSeconds)).build());
+        if(reply != null) {
+            item.put(REPLY_KEY, AttributeValue.builder().s(reply).build());
+        }
+        return item;
+    }
+
+    private long nowSeconds() {
+        return this.clock.getAsLong() / 1000;
+    }
+}
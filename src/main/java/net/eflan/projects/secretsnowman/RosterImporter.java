@@ -0,0 +1,507 @@
+package net.eflan.projects.secretsnowman;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+// Loads a season's roster into the game table from a CSV or JSON file instead of row by row by
+// hand. Columns (or JSON fields) are named after the table's attributes: phone-number,
+// gift-giver-name, address, cannot-match and, in a table of several games, group-id. In CSV the
+// cannot-match numbers are separated by semicolons; in JSON they may also be an array.
+//
+// The file is parsed as a stream and checked as a whole before anything is written: every number
+// must be a phone number, nobody may be listed twice, and every cannot-match number must be
+// somebody in the same game. A roster with any problem writes nothing. Rows are then written on a
+// few threads, 25 to a thread at a time, retrying writes DynamoDB throttles. A new participant is
+// put only if the row isn't there; somebody already in the table has just their name, address and
+// cannot-match list updated, so re-running an import mid-season keeps the draw, the gift status
+// and the row's version climbing. (BatchWriteItem can't do either: its puts replace whole items.)
+// When the secret names a snapshot table, the snapshots of the groups imported into are marked
+// stale afterwards.
+public class RosterImporter {
+    // Rows handed to a writer thread at a time
+    public static final int BATCH_SIZE = 25;
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_BACKOFF_MILLIS = 50;
+    public static final String CANNOT_MATCH_SEPARATOR = ";";
+
+    private static final Pattern PHONE = Pattern.compile("\\+[1-9][0-9]{7,14}");
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public static final class Row {
+        private final int line;
+        private final String group;
+        private final String phone;
+        private final String name;
+        private final String address;
+        private final List<String> cannot;
+
+        Row(final int line, final String group, final String phone, final String name, final String address, final List<String> cannot) {
+            this.line = line;
+            this.group = group;
+            this.phone = phone;
+            this.name = name;
+            this.address = address;
+            this.cannot = cannot;
+        }
+
+        public int line() { return this.line; }
+        public String group() { return this.group; }
+        public String phone() { return this.phone; }
+        public String name() { return this.name; }
+        public String address() { return this.address; }
+        public List<String> cannot() { return this.cannot; }
+    }
+
+    public static final class Result {
+        private final List<String> errors;
+        private final int written;
+        private final List<String> unwritten;
+
+        Result(final List<String> errors, final int written, final List<String> unwritten) {
+            this.errors = Collections.unmodifiableList(errors);
+            this.written = written;
+            this.unwritten = Collections.unmodifiableList(unwritten);
+        }
+
+        // Problems with the roster; when there are any, nothing was written
+        public List<String> errors() { return this.errors; }
+        public int written() { return this.written; }
+        // Phone numbers still unprocessed after every retry
+        public List<String> unwritten() { return this.unwritten; }
+        public boolean succeeded() { return this.errors.isEmpty() && this.unwritten.isEmpty(); }
+    }
+
+    private final DynamoDbClient ddb;
+    private final int parallelism;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final String snapshotTable;
+
+    public RosterImporter(final DynamoDbClient ddb, final String snapshotTable) {
+        this(ddb, DEFAULT_PARALLELISM, DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF_MILLIS, snapshotTable);
+    }
+
+    public RosterImporter(final DynamoDbClient ddb, final int parallelism, final int maxAttempts, final long backoffMillis) {
+        this(ddb, parallelism, maxAttempts, backoffMillis, null);
+    }
+
+    public RosterImporter(
+            final DynamoDbClient ddb,
+            final int parallelism,
+            final int maxAttempts,
+            final long backoffMillis,
+            final String snapshotTable) {
+
+        this.ddb = ddb;
+        this.parallelism = parallelism;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.snapshotTable = snapshotTable;
+    }
+
+    // <table> <roster.csv|roster.json> [group]
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if(args.length < 2) {
+            System.err.println("usage: RosterImporter <table> <roster.csv|roster.json> [group]");
+            System.exit(2);
+        }
+
+        final DynamoDbClient ddb = AwsClients.dynamoDb(new ExecutionInterceptor() {});
+        // The snapshot table comes from the same secret the handler reads, so the two can't disagree
+        final String snapshotTable = new SecretsCache(
+                AwsClients.secretsManager(new ExecutionInterceptor() {}),
+                SecretsCache.DEFAULT_TTL_MILLIS,
+                System::currentTimeMillis).get().snapshotTable();
+        final Result result;
+        try(final Reader reader = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            final String group = args.length > 2 ? args[2] : null;
+            result = new RosterImporter(ddb, snapshotTable).importRoster(args[0], reader, args[1].toLowerCase().endsWith(".json"), group);
+        }
+
+        result.errors().forEach(System.err::println);
+        result.unwritten().forEach(p -> System.err.println(p + ": not written"));
+        System.out.println(result.written() + " participants written");
+        System.exit(result.succeeded() ? 0 : 1);
+    }
+
+    // Rows without a group-id of their own go in defaultGroup, which is null for a single-game table
+    public Result importRoster(final String secretSnowmanTable, final Reader roster, final boolean json, final String defaultGroup)
+            throws IOException, InterruptedException {
+
+        final List<String> errors = new ArrayList<>();
+        final List<Row> rows = json ? parseJson(roster, defaultGroup, errors) : parseCsv(roster, defaultGroup, errors);
+        errors.addAll(validate(rows));
+        if(!errors.isEmpty()) {
+            return new Result(errors, 0, Collections.emptyList());
+        }
+
+        return write(secretSnowmanTable, rows);
+    }
+
+    public static List<Row> parseCsv(final Reader roster, final String defaultGroup, final List<String> errors) throws IOException {
+        final CsvReader csv = new CsvReader(roster);
+        final List<String> header = csv.next();
+        if(header == null) {
+            return Collections.emptyList();
+        }
+        final Map<String, Integer> columns = new HashMap<>();
+        for(int i = 0; i < header.size(); i++) {
+            // Spreadsheets like to start their CSV with a byte order mark
+            columns.put(header.get(i).replace("\uFEFF", "").trim().toLowerCase(), i);
+        }
+        for(final String required : new String[] { SecretSnowmanState.PHONE_NUMBER_KEY, SecretSnowmanState.GIFT_GIVER_NAME_KEY }) {
+            if(!columns.containsKey(required)) {
+                errors.add("line 1: no " + required + " column");
+                return Collections.emptyList();
+            }
+        }
+
+        final List<Row> rows = new ArrayList<>();
+        List<String> fields;
+        while(true) {
+            final int line = csv.line();
+            fields = csv.next();
+            if(fields == null) {
+                break;
+            }
+            if(fields.size() == 1 && fields.get(0).trim().isEmpty()) {
+                continue;
+            }
+
+            final Map<String, String> values = new HashMap<>();
+            for(final Map.Entry<String, Integer> column : columns.entrySet()) {
+                if(column.getValue() < fields.size()) {
+                    values.put(column.getKey(), fields.get(column.getValue()));
+                }
+            }
+            rows.add(row(line, values, split(values.get(SecretSnowmanState.CANNOT_MATCH_KEY)), defaultGroup));
+        }
+        return rows;
+    }
+
+    // An array of objects, read token by token so a large roster is never held as a tree
+    public static List<Row> parseJson(final Reader roster, final String defaultGroup, final List<String> errors) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        try(final JsonParser parser = JSON.createParser(roster)) {
+            if(parser.nextToken() != JsonToken.START_ARRAY) {
+                errors.add("line 1: the roster should be an array of participants");
+                return rows;
+            }
+
+            while(parser.nextToken() == JsonToken.START_OBJECT) {
+                final int line = parser.currentTokenLocation().getLineNr();
+                final Map<String, String> values = new HashMap<>();
+                List<String> cannot = Collections.emptyList();
+                while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.currentName().trim().toLowerCase();
+                    final JsonToken value = parser.nextToken();
+                    if(value == JsonToken.START_ARRAY) {
+                        final List<String> items = new ArrayList<>();
+                        while(parser.nextToken() != JsonToken.END_ARRAY) {
+                            items.add(parser.getValueAsString());
+                        }
+                        if(field.equals(SecretSnowmanState.CANNOT_MATCH_KEY)) {
+                            cannot = items;
+                        }
+                    } else if(value == JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                    } else if(field.equals(SecretSnowmanState.CANNOT_MATCH_KEY)) {
+                        cannot = split(parser.getValueAsString());
+                    } else {
+                        values.put(field, parser.getValueAsString());
+                    }
+                }
+                rows.add(row(line, values, cannot, defaultGroup));
+            }
+        }
+        return rows;
+    }
+
+    private static List<String> split(final String cannot) {
+        if(cannot == null || cannot.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<String> numbers = new ArrayList<>();
+        for(final String number : cannot.split(CANNOT_MATCH_SEPARATOR)) {
+            if(!number.trim().isEmpty()) {
+                numbers.add(number);
+            }
+        }
+        return numbers;
+    }
+
+    private static Row row(final int line, final Map<String, String> values, final List<String> cannot, final String defaultGroup) {
+        final List<String> normalized = new ArrayList<>(cannot.size());
+        for(final String number : cannot) {
+            normalized.add(ParticipantRoster.e164(number));
+        }
+
+        String group = values.get(SecretSnowmanState.GROUP_KEY);
+        if(group == null || group.trim().isEmpty()) {
+            group = defaultGroup;
+        }
+
+        return new Row(
+                line,
+                group == null ? null : group.trim().toLowerCase(),
+                ParticipantRoster.e164(values.get(SecretSnowmanState.PHONE_NUMBER_KEY)),
+                trimmed(values.get(SecretSnowmanState.GIFT_GIVER_NAME_KEY)),
+                trimmed(values.get(SecretSnowmanState.ADDRESS_KEY)),
+                normalized);
+    }
+
+    private static String trimmed(final String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    public static List<String> validate(final List<Row> rows) {
+        final List<String> errors = new ArrayList<>();
+        final Map<String, Set<String>> phonesByGroup = new HashMap<>();
+        for(final Row row : rows) {
+            if(row.phone() == null || !PHONE.matcher(row.phone()).matches()) {
+                errors.add(String.format("line %d: \"%s\" isn't a phone number", row.line(), row.phone() == null ? "" : row.phone()));
+            } else if(!phonesByGroup.computeIfAbsent(row.group(), g -> new HashSet<>()).add(row.phone())) {
+                errors.add(String.format("line %d: %s is listed more than once", row.line(), row.phone()));
+            }
+            if(row.name() == null) {
+                errors.add(String.format("line %d: no %s", row.line(), SecretSnowmanState.GIFT_GIVER_NAME_KEY));
+            }
+        }
+
+        for(final Row row : rows) {
+            final Set<String> game = phonesByGroup.getOrDefault(row.group(), Collections.emptySet());
+            for(final String number : row.cannot()) {
+                if(number == null || !PHONE.matcher(number).matches()) {
+                    errors.add(String.format("line %d: cannot-match \"%s\" isn't a phone number", row.line(), number == null ? "" : number));
+                } else if(number.equals(row.phone())) {
+                    errors.add(String.format("line %d: %s is in their own cannot-match list", row.line(), number));
+                } else if(!game.contains(number)) {
+                    errors.add(String.format("line %d: cannot-match %s isn't in the roster", row.line(), number));
+                }
+            }
+        }
+        return errors;
+    }
+
+    public static Map<String, AttributeValue> item(final Row row) {
+        final Map<String, AttributeValue> item = new HashMap<>(SecretSnowmanState.key(row.group(), row.phone()));
+        item.put(SecretSnowmanState.GIFT_GIVER_NAME_KEY, AttributeValue.builder().s(row.name()).build());
+        if(row.address() != null) {
+            item.put(SecretSnowmanState.ADDRESS_KEY, AttributeValue.builder().s(row.address()).build());
+        }
+        final List<AttributeValue> cannot = new ArrayList<>(row.cannot().size());
+        for(final String number : row.cannot()) {
+            cannot.add(AttributeValue.builder().s(number).build());
+        }
+        item.put(SecretSnowmanState.CANNOT_MATCH_KEY, AttributeValue.builder().l(cannot).build());
+        item.put(SecretSnowmanState.GIFT_PURCHASE_KEY, AttributeValue.builder().bool(false).build());
+        item.put(SecretSnowmanState.GIFT_STATUS_KEY, AttributeValue.builder().s(SecretSnowmanState.giftStatus(row.group(), false)).build());
+        return item;
+    }
+
+    // Sets only what the roster holds on a row already in the table, bumping its version so a draw
+    // or splice that read the old cannot-match list conflicts instead of writing over it
+    public static UpdateItemRequest update(final String secretSnowmanTable, final Row row) {
+        final Map<String, String> names = new HashMap<>();
+        names.put("#name", SecretSnowmanState.GIFT_GIVER_NAME_KEY);
+        names.put("#cannot", SecretSnowmanState.CANNOT_MATCH_KEY);
+        names.put("#ver", SecretSnowmanState.VERSION_KEY);
+        names.put("#phoneNumber", SecretSnowmanState.PHONE_NUMBER_KEY);
+        final Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":name", AttributeValue.builder().s(row.name()).build());
+        values.put(":cannot", item(row).get(SecretSnowmanState.CANNOT_MATCH_KEY));
+        values.put(":zero", AttributeValue.builder().n("0").build());
+        values.put(":one", AttributeValue.builder().n("1").build());
+
+        String expression = "set #name = :name, #cannot = :cannot, #ver = if_not_exists(#ver, :zero) + :one";
+        if(row.address() != null) {
+            names.put("#address", SecretSnowmanState.ADDRESS_KEY);
+            values.put(":address", AttributeValue.builder().s(row.address()).build());
+            expression += ", #address = :address";
+        }
+
+        return UpdateItemRequest.builder()
+                .tableName(secretSnowmanTable)
+                .key(SecretSnowmanState.key(row.group(), row.phone()))
+                .updateExpression(expression)
+                .conditionExpression("attribute_exists(#phoneNumber)")
+                .expressionAttributeNames(names)
+                .expressionAttributeValues(values)
+                .build();
+    }
+
+    private Result write(final String secretSnowmanTable, final List<Row> rows) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(this.parallelism);
+        try {
+            final List<Future<List<String>>> batches = new ArrayList<>();
+            for(int start = 0; start < rows.size(); start += BATCH_SIZE) {
+                final List<Row> batch = rows.subList(start, Math.min(rows.size(), start + BATCH_SIZE));
+                batches.add(executor.submit(() -> writeBatch(secretSnowmanTable, batch)));
+            }
+
+            final List<String> unwritten = new ArrayList<>();
+            for(final Future<List<String>> batch : batches) {
+                try {
+                    unwritten.addAll(batch.get());
+                } catch(final ExecutionException e) {
+                    throw e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new IllegalStateException(e.getCause());
+                }
+            }
+            return new Result(Collections.emptyList(), rows.size() - unwritten.size(), unwritten);
+        } finally {
+            executor.shutdownNow();
+            if(this.snapshotTable != null) {
+                final RosterSnapshot snapshots = new RosterSnapshot(this.ddb);
+                rows.stream().map(Row::group).distinct().forEach(group -> snapshots.invalidate(this.snapshotTable, group));
+            }
+        }
+    }
+
+    // Writes one batch of rows in turn. Returns the phone numbers still unwritten after the last attempt.
+    private List<String> writeBatch(final String secretSnowmanTable, final List<Row> batch) throws InterruptedException {
+        final List<String> unwritten = new ArrayList<>();
+        for(final Row row : batch) {
+            if(!writeRow(secretSnowmanTable, row)) {
+                unwritten.add(row.phone());
+            }
+        }
+        return unwritten;
+    }
+
+    // Puts the row if it's new and updates it otherwise, retrying throttled writes with exponential
+    // backoff and jitter. A row deleted between the failed put and the update is put again.
+    private boolean writeRow(final String secretSnowmanTable, final Row row) throws InterruptedException {
+        for(int attempt = 0; attempt < this.maxAttempts; attempt++) {
+            if(attempt > 0 && this.backoffMillis > 0) {
+                final long ceiling = this.backoffMillis << Math.min(attempt - 1, 10);
+                Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+            }
+
+            try {
+                try {
+                    this.ddb.putItem(PutItemRequest.builder()
+                            .tableName(secretSnowmanTable)
+                            .item(item(row))
+                            .conditionExpression("attribute_not_exists(#phoneNumber)")
+                            .expressionAttributeNames(Collections.singletonMap("#phoneNumber", SecretSnowmanState.PHONE_NUMBER_KEY))
+                            .build());
+                } catch(final ConditionalCheckFailedException e) {
+                    this.ddb.updateItem(update(secretSnowmanTable, row));
+                }
+                return true;
+            } catch(final ProvisionedThroughputExceededException | ConditionalCheckFailedException e) {
+                // Throttled, or the row went away before the update; try again
+            }
+        }
+        return false;
+    }
+
+    // RFC 4180: fields may be quoted, and quoted fields may hold commas, doubled quotes and newlines
+    static final class CsvReader {
+        private final Reader reader;
+        private int line = 1;
+        private int pending = -2;
+
+        CsvReader(final Reader reader) {
+            this.reader = reader;
+        }
+
+        // Line the next record starts on
+        int line() {
+            return this.line;
+        }
+
+        private int read() throws IOException {
+            if(this.pending != -2) {
+                final int c = this.pending;
+                this.pending = -2;
+                return c;
+            }
+            return this.reader.read();
+        }
+
+        // The fields of the next record, or null at the end of the input
+        List<String> next() throws IOException {
+            int c = read();
+            if(c < 0) {
+                return null;
+            }
+
+            final List<String> fields = new ArrayList<>();
+            final StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while(true) {
+                if(quoted) {
+                    if(c < 0) {
+                        throw new IOException("line " + this.line + ": unterminated quoted field");
+                    } else if(c == '"') {
+                        final int after = read();
+                        if(after == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            c = after;
+                            continue;
+                        }
+                    } else {
+                        if(c == '\n') {
+                            this.line++;
+                        }
+                        field.append((char) c);
+                    }
+                } else if(c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if(c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if(c == '\r' || c == '\n' || c < 0) {
+                    if(c == '\r') {
+                        final int after = read();
+                        if(after != '\n') {
+                            this.pending = after;
+                        }
+                    }
+                    if(c >= 0) {
+                        this.line++;
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                } else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.type.PhoneNumber;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// A whole group's roster and assignment cycle as one compressed binary item, so an admin command
+// reads one item instead of querying every row and parsing each through SecretSnowmanState.from.
+// Assignments and cannot-match lists are stored as positions in the roster, which keeps the blob
+// small and gives every reference to a person the same PhoneNumber.
+//
+// A gifted or reset text patches the sender into the snapshot; the draw, join, leave and backfill
+// mark it stale and the next read rebuilds it from the table, as does a bulk import. Rows edited by
+// hand show up once the snapshot is older than the max age. Every write bumps the generation, and a
+// write is only made over the generation it read, so a rebuild that read the table before a text
+// can't store over the text. Draws never start from a snapshot; they read the table.
+public class RosterSnapshot {
+    public static final String SNAPSHOT_ID_KEY = "snapshot-id";
+    public static final String ROSTER_KEY = "roster";
+    public static final String GENERATION_KEY = "generation";
+    public static final String BUILT_AT_KEY = "built-at";
+    // The snapshot id of a table without groups, which can't use the empty string as a key
+    public static final String SINGLE_GAME_ID = "*";
+    public static final int FORMAT_VERSION = 2;
+    // DynamoDB items stop at 400 KB; a group too big for that is read from the table every time
+    public static final int MAX_SNAPSHOT_BYTES = 350 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 5 * 60 * 1000L;
+    public static final int MAX_PATCH_ATTEMPTS = 3;
+
+    // What a load found: the people when the snapshot was there and fresh, and the generation to
+    // write a rebuilt snapshot over (0 when there is no snapshot item yet)
+    public static final class Read {
+        private final List<SecretSnowmanState> people;
+        private final long generation;
+
+        Read(final List<SecretSnowmanState> people, final long generation) {
+            this.people = people;
+            this.generation = generation;
+        }
+
+        public boolean fresh() { return this.people != null; }
+        public List<SecretSnowmanState> people() { return this.people; }
+        public long generation() { return this.generation; }
+    }
+
+    private final DynamoDbClient dbc;
+    private final long maxAgeMillis;
+    private final LongSupplier clock;
+
+    public RosterSnapshot(final DynamoDbClient dbc) {
+        this(dbc, maxAgeFromEnvironment(), System::currentTimeMillis);
+    }
+
+    public RosterSnapshot(final DynamoDbClient dbc, final long maxAgeMillis, final LongSupplier clock) {
+        this.dbc = dbc;
+        this.maxAgeMillis = maxAgeMillis;
+        this.clock = clock;
+    }
+
+    static long maxAgeFromEnvironment() {
+        final String maxAgeSeconds = System.getenv("SNAPSHOT_MAX_AGE_SECONDS");
+        return maxAgeSeconds == null ? DEFAULT_MAX_AGE_MILLIS : Long.parseLong(maxAgeSeconds) * 1000L;
+    }
+
+    static Map<String, AttributeValue> key(final String group) {
+        return Collections.singletonMap(SNAPSHOT_ID_KEY, AttributeValue.builder().s(group == null ? SINGLE_GAME_ID : group).build());
+    }
+
+    public Read load(final String snapshotTable, final String group) {
+        final Map<String, AttributeValue> item = this.dbc.getItem(GetItemRequest.builder()
+                .tableName(snapshotTable)
+                .key(key(group))
+                .consistentRead(true)
+                .build()).item();
+        if(item == null || item.isEmpty()) {
+            return new Read(null, 0);
+        }
+
+        final long generation = Long.parseLong(item.get(GENERATION_KEY).n());
+        if(!fresh(item)) {
+            return new Read(null, generation);
+        }
+
+        try {
+            return new Read(decode(item.get(ROSTER_KEY).b().asByteArray()), generation);
+        } catch(final IOException e) {
+            // Written by a newer format, or damaged; rebuilt like a stale one
+            return new Read(null, generation);
+        }
+    }
+
+    private boolean fresh(final Map<String, AttributeValue> item) {
+        return item.containsKey(ROSTER_KEY)
+                && this.clock.getAsLong() - Long.parseLong(item.get(BUILT_AT_KEY).n()) < this.maxAgeMillis;
+    }
+
+    // Writes a snapshot of people, read from the table, over the generation a load found. Returns
+    // false without writing if the snapshot changed since, or the group is too big to snapshot.
+    public boolean store(final String snapshotTable, final String group, final List<SecretSnowmanState> people, final long generation) {
+        final byte[] roster = encode(people);
+        if(roster.length > MAX_SNAPSHOT_BYTES) {
+            return false;
+        }
+
+        try {
+            this.dbc.updateItem(write(snapshotTable, group, roster, this.clock.getAsLong(), generation));
+            return true;
+        } catch(final ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    // Puts a row just written by a participant's text into a fresh snapshot. Any other snapshot
+    // (missing, stale, damaged, too many writers at once, or without the row) is marked stale
+    // instead, which also stops a rebuild that read the table before the text from storing over it.
+    // A snapshot table that can't be reached throws, for the caller to count rather than fail on.
+    public void patch(final String snapshotTable, final String group, final SecretSnowmanState row) {
+        for(int attempt = 0; attempt < MAX_PATCH_ATTEMPTS; attempt++) {
+            final Map<String, AttributeValue> item = this.dbc.getItem(GetItemRequest.builder()
+                    .tableName(snapshotTable)
+                    .key(key(group))
+                    .consistentRead(true)
+                    .build()).item();
+            if(item == null || item.isEmpty() || !fresh(item)) {
+                break;
+            }
+
+            final List<SecretSnowmanState> people;
+            try {
+                people = new ArrayList<>(decode(item.get(ROSTER_KEY).b().asByteArray()));
+            } catch(final IOException e) {
+                break;
+            }
+            final int at = indexOf(people, row.phone());
+            if(at < 0) {
+                break;
+            }
+            people.set(at, row);
+
+            final byte[] roster = encode(people);
+            if(roster.length > MAX_SNAPSHOT_BYTES) {
+                break;
+            }
+
+            try {
+                this.dbc.updateItem(write(
+                        snapshotTable,
+                        group,
+                        roster,
+                        Long.parseLong(item.get(BUILT_AT_KEY).n()),
+                        Long.parseLong(item.get(GENERATION_KEY).n())));
+                return;
+            } catch(final ConditionalCheckFailedException e) {
+                // Another text patched it first; read it again
+            }
+        }
+
+        invalidate(snapshotTable, group);
+    }
+
+    // Marks the snapshot stale, keeping its generation climbing so no older read can write over it.
+    // With no snapshot yet this leaves a generation behind without a roster, so a rebuild that
+    // found nothing (and writes only if there is still nothing) can't store either.
+    public void invalidate(final String snapshotTable, final String group) {
+        this.dbc.updateItem(UpdateItemRequest.builder()
+                .tableName(snapshotTable)
+                .key(key(group))
+                .updateExpression("set #builtAt = :zero, #generation = if_not_exists(#generation, :zero) + :one")
+                .expressionAttributeNames(Map.of("#builtAt", BUILT_AT_KEY, "#generation", GENERATION_KEY))
+                .expressionAttributeValues(Map.of(
+                        ":zero", AttributeValue.builder().n("0").build(),
+                        ":one", AttributeValue.builder().n("1").build()))
+                .build());
+    }
+
+    private static UpdateItemRequest write(
+            final String snapshotTable,
+            final String group,
+            final byte[] roster,
+            final long builtAt,
+            final long generation) {
+
+        final Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":roster", AttributeValue.builder().b(SdkBytes.fromByteArray(roster)).build());
+        values.put(":builtAt", AttributeValue.builder().n(Long.toString(builtAt)).build());
+        values.put(":next", AttributeValue.builder().n(Long.toString(generation + 1)).build());
+
+        final UpdateItemRequest.Builder request = UpdateItemRequest.builder()
+                .tableName(snapshotTable)
+                .key(key(group))
+                .updateExpression("set #roster = :roster, #builtAt = :builtAt, #generation = :next")
+                .expressionAttributeNames(Map.of(
+                        "#roster", ROSTER_KEY,
+                        "#builtAt", BUILT_AT_KEY,
+                        "#generation", GENERATION_KEY));
+
+        if(generation == 0) {
+            request.conditionExpression("attribute_not_exists(#generation)");
+        } else {
+            values.put(":generation", AttributeValue.builder().n(Long.toString(generation)).build());
+            request.conditionExpression("#generation = :generation");
+        }
+
+        return request.expressionAttributeValues(values).build();
+    }
+
+    private static int indexOf(final List<SecretSnowmanState> people, final PhoneNumber phone) {
+        final String e164 = ParticipantRoster.e164(phone);
+        for(int i = 0; i < people.size(); i++) {
+            if(e164.equals(ParticipantRoster.e164(people.get(i).phone()))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Every person's own fields first, then whether they have been drawn, and their assignment and
+    // cannot-match list as positions in the roster (or the number itself, for somebody who isn't in
+    // it), all gzipped
+    public static byte[] encode(final List<SecretSnowmanState> people) {
+        final Map<String, Integer> positions = new HashMap<>();
+        for(int i = 0; i < people.size(); i++) {
+            positions.put(ParticipantRoster.e164(people.get(i).phone()), i);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeByte(FORMAT_VERSION);
+            final String group = people.isEmpty() ? null : people.get(0).group();
+            out.writeBoolean(group != null);
+            if(group != null) {
+                out.writeUTF(group);
+            }
+
+            out.writeInt(people.size());
+            for(final SecretSnowmanState person : people) {
+                out.writeUTF(person.phone().toString());
+                out.writeUTF(person.name());
+                out.writeUTF(person.address());
+                out.writeBoolean(person.gifted());
+                out.writeLong(person.version());
+            }
+
+            for(final SecretSnowmanState person : people) {
+                out.writeBoolean(person.hasAssignment());
+                writePerson(out, positions, person.assigned());
+                out.writeBoolean(person.assignedName() != null && person.assignedAddress() != null);
+                if(person.assignedName() != null && person.assignedAddress() != null) {
+                    out.writeUTF(person.assignedName());
+                    out.writeUTF(person.assignedAddress());
+                }
+
+                out.writeInt(person.cannot().size());
+                for(final PhoneNumber cannot : person.cannot()) {
+                    writePerson(out, positions, cannot);
+                }
+            }
+        } catch(final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writePerson(final DataOutputStream out, final Map<String, Integer> positions, final PhoneNumber phone)
+            throws IOException {
+
+        final Integer position = positions.get(ParticipantRoster.e164(phone));
+        out.writeInt(position == null ? -1 : position);
+        if(position == null) {
+            out.writeUTF(phone.toString());
+        }
+    }
+
+    public static List<SecretSnowmanState> decode(final byte[] roster) throws IOException {
+        try(final DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(roster)))) {
+            final int format = in.readUnsignedByte();
+            if(format != FORMAT_VERSION) {
+                throw new IOException("Roster snapshot format " + format + " isn't " + FORMAT_VERSION);
+            }
+            final String group = in.readBoolean() ? in.readUTF() : null;
+
+            final int count = in.readInt();
+            final PhoneNumber[] phones = new PhoneNumber[count];
+            final String[] names = new String[count];
+            final String[] addresses = new String[count];
+            final boolean[] gifted = new boolean[count];
+            final long[] versions = new long[count];
+            for(int i = 0; i < count; i++) {
+                phones[i] = new PhoneNumber(in.readUTF());
+                names[i] = in.readUTF();
+                addresses[i] = in.readUTF();
+                gifted[i] = in.readBoolean();
+                versions[i] = in.readLong();
+            }
+
+            final List<SecretSnowmanState> people = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                final boolean hasAssignment = in.readBoolean();
+                final PhoneNumber assigned = readPerson(in, phones);
+                final boolean snapshot = in.readBoolean();
+                final String assignedName = snapshot ? in.readUTF() : null;
+                final String assignedAddress = snapshot ? in.readUTF() : null;
+
+                final int cannotCount = in.readInt();
+                final List<PhoneNumber> cannot = new ArrayList<>(cannotCount);
+                for(int c = 0; c < cannotCount; c++) {
+                    cannot.add(readPerson(in, phones));
+                }
+
+                people.add(SecretSnowmanState.of(
+                        group,
+                        assigned,
+                        hasAssignment,
+                        assignedName,
+                        assignedAddress,
+                        addresses[i],
+                        cannot,
+                        names[i],
+                        gifted[i],
+                        phones[i],
+                        versions[i]));
+            }
+            return people;
+        }
+    }
+
+    private static PhoneNumber readPerson(final DataInputStream in, final PhoneNumber[] phones) throws IOException {
+        final int position = in.readInt();
+        return position < 0 ? new PhoneNumber(in.readUTF()) : phones[position];
+    }
+}
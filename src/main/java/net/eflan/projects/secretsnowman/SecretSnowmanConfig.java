@@ -0,0 +1,115 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.type.PhoneNumber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SecretSnowmanConfig {
+    public static final String TABLE_KEY = "StateDynamoTable";
+    public static final String ADMIN_PHONE_NUMBER_KEY = "AdminPhoneNumber";
+    public static final String SECRET_SNOWMAN_PHONE_NUMBER_KEY = "SecretSnowmanPhoneNumber";
+    public static final String TWILIO_ACCOUNT_SID_KEY = "TwilioAccountSID";
+    public static final String TWILIO_ACCOUNT_SECRET_KEY = "TwilioAccountSecret";
+    // "+15555550010=family,book-club;+15555550011=engineering": which groups each admin number runs,
+    // in lower case. AdminPhoneNumber runs all of them. Without it the table holds a single game
+    // keyed by phone number alone.
+    public static final String ADMIN_GROUPS_KEY = "AdminGroups";
+    // Name of the gift status index, once the table has one (see TableSetup). Without it reports scan.
+    public static final String GIFT_STATUS_INDEX_KEY = "GiftStatusIndex";
+    // Table remembering replies by Twilio MessageSid (see RequestDeduplicator). Without it only the
+    // container that answered replays a reply, and Twilio's retry of a webhook that timed out almost
+    // always reaches another container, so the retry runs the command a second time.
+    public static final String REQUEST_TABLE_KEY = "RequestDynamoTable";
+    // Table holding a snapshot of each group's roster (see RosterSnapshot). Without it admin
+    // commands read every row of the group.
+    public static final String SNAPSHOT_TABLE_KEY = "SnapshotDynamoTable";
+
+    private final String table;
+    private final PhoneNumber adminPhoneNumber;
+    private final PhoneNumber secretSnowmanPhoneNumber;
+    private final String twilioAccountSID;
+    private final String twilioAccountSecret;
+    private final String versionId;
+    private final Map<String, List<String>> adminGroups;
+    private final String giftStatusIndex;
+    private final String requestTable;
+    private final String snapshotTable;
+
+    private SecretSnowmanConfig(
+            final String table,
+            final PhoneNumber adminPhoneNumber,
+            final PhoneNumber secretSnowmanPhoneNumber,
+            final String twilioAccountSID,
+            final String twilioAccountSecret,
+            final String versionId,
+            final Map<String, List<String>> adminGroups,
+            final String giftStatusIndex,
+            final String requestTable,
+            final String snapshotTable) {
+
+        this.table = table;
+        this.adminPhoneNumber = adminPhoneNumber;
+        this.secretSnowmanPhoneNumber = secretSnowmanPhoneNumber;
+        this.twilioAccountSID = twilioAccountSID;
+        this.twilioAccountSecret = twilioAccountSecret;
+        this.versionId = versionId;
+        this.adminGroups = adminGroups;
+        this.giftStatusIndex = giftStatusIndex;
+        this.requestTable = requestTable;
+        this.snapshotTable = snapshotTable;
+    }
+
+    public static SecretSnowmanConfig from(final Map<String, String> secretKeysAndValues, final String versionId) {
+        return new SecretSnowmanConfig(
+                secretKeysAndValues.get(TABLE_KEY),
+                new PhoneNumber(secretKeysAndValues.get(ADMIN_PHONE_NUMBER_KEY)),
+                new PhoneNumber(secretKeysAndValues.get(SECRET_SNOWMAN_PHONE_NUMBER_KEY)),
+                secretKeysAndValues.get(TWILIO_ACCOUNT_SID_KEY),
+                secretKeysAndValues.get(TWILIO_ACCOUNT_SECRET_KEY),
+                versionId,
+                parseAdminGroups(secretKeysAndValues.get(ADMIN_GROUPS_KEY)),
+                secretKeysAndValues.get(GIFT_STATUS_INDEX_KEY),
+                secretKeysAndValues.get(REQUEST_TABLE_KEY),
+                secretKeysAndValues.get(SNAPSHOT_TABLE_KEY));
+    }
+
+    static Map<String, List<String>> parseAdminGroups(final String adminGroups) {
+        if(adminGroups == null || adminGroups.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, List<String>> groups = new HashMap<>();
+        for(final String entry : adminGroups.split(";")) {
+            final int equals = entry.indexOf('=');
+            if(equals < 0) {
+                continue;
+            }
+
+            final List<String> managed = new ArrayList<>();
+            for(final String group : entry.substring(equals + 1).split(",")) {
+                if(!group.trim().isEmpty()) {
+                    managed.add(group.trim().toLowerCase());
+                }
+            }
+            groups.put(ParticipantRoster.e164(entry.substring(0, equals).trim()), Collections.unmodifiableList(managed));
+        }
+
+        return Collections.unmodifiableMap(groups);
+    }
+
+    public String table() { return this.table; }
+    public PhoneNumber adminPhoneNumber() { return this.adminPhoneNumber; }
+    public PhoneNumber secretSnowmanPhoneNumber() { return this.secretSnowmanPhoneNumber; }
+    public String twilioAccountSID() { return this.twilioAccountSID; }
+    public String twilioAccountSecret() { return this.twilioAccountSecret; }
+    public String versionId() { return this.versionId; }
+    public Map<String, List<String>> adminGroups() { return this.adminGroups; }
+    public boolean grouped() { return !this.adminGroups.isEmpty(); }
+    public String giftStatusIndex() { return this.giftStatusIndex; }
+    public String requestTable() { return this.requestTable; }
+    public String snapshotTable() { return this.snapshotTable; }
+}
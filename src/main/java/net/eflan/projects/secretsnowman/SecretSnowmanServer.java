@@ -0,0 +1,205 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.twilio.exception.ApiException;
+
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.RequestLimitExceededException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Serves the Twilio webhook over HTTP for installs that don't run on Lambda. One LambdaHandler, and
+// with it one set of warmed clients and caches, handles every request. Each request runs on its own
+// virtual thread, so a request waiting on DynamoDB or Twilio holds no platform thread; a fixed
+// pool can be chosen instead to compare. A ConcurrencyLimiter in front of the handler backs off
+// when DynamoDB throttles, and requests that can't get a slot in time are turned away with a 503
+// so Twilio tries again later.
+//
+// Configured from the environment: PORT, EXECUTOR ("virtual" or "pool"), POOL_SIZE and
+// MAX_IN_FLIGHT, plus everything LambdaHandler reads.
+public class SecretSnowmanServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final String VIRTUAL_EXECUTOR = "virtual";
+    public static final String POOL_EXECUTOR = "pool";
+    public static final int DEFAULT_POOL_SIZE = 200;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    public static final int MIN_IN_FLIGHT = 4;
+    // Twilio gives up on a webhook after 15 seconds, so a request that can't start well before then is turned away
+    public static final long DEFAULT_QUEUE_MILLIS = 5_000;
+    public static final String WEBHOOK_PATH = "/";
+    public static final String HEALTH_PATH = "/health";
+    public static final String TWIML_CONTENT_TYPE = "text/xml; charset=utf-8";
+
+    private final LambdaHandler handler;
+    private final ExecutorService executor;
+    private final ConcurrencyLimiter limiter;
+    private final long queueMillis;
+    private final HttpServer server;
+
+    public SecretSnowmanServer(
+            final LambdaHandler handler,
+            final ExecutorService executor,
+            final ConcurrencyLimiter limiter,
+            final long queueMillis,
+            final InetSocketAddress address) throws IOException {
+
+        this.handler = handler;
+        this.executor = executor;
+        this.limiter = limiter;
+        this.queueMillis = queueMillis;
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(executor);
+        this.server.createContext(HEALTH_PATH, exchange -> respond(exchange, 200, "text/plain", "ok"));
+        this.server.createContext(WEBHOOK_PATH, this::webhook);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int port = intFromEnvironment("PORT", DEFAULT_PORT);
+        final SecretSnowmanServer server = new SecretSnowmanServer(
+                new LambdaHandler(),
+                executor(System.getenv("EXECUTOR"), intFromEnvironment("POOL_SIZE", DEFAULT_POOL_SIZE)),
+                new ConcurrencyLimiter(MIN_IN_FLIGHT, intFromEnvironment("MAX_IN_FLIGHT", DEFAULT_MAX_IN_FLIGHT)),
+                DEFAULT_QUEUE_MILLIS,
+                new InetSocketAddress(port));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5)));
+        server.start();
+    }
+
+    private static int intFromEnvironment(final String name, final int defaultValue) {
+        final String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    // A virtual thread per request, or a fixed pool of platform threads
+    public static ExecutorService executor(final String kind, final int poolSize) {
+        if(kind == null || kind.isEmpty() || kind.equalsIgnoreCase(VIRTUAL_EXECUTOR)) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        } else if(kind.equalsIgnoreCase(POOL_EXECUTOR)) {
+            return Executors.newFixedThreadPool(poolSize);
+        }
+        throw new IllegalArgumentException("EXECUTOR should be " + VIRTUAL_EXECUTOR + " or " + POOL_EXECUTOR + ", not " + kind);
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    // Stops taking requests and waits up to delaySeconds for the ones in flight
+    public void stop(final int delaySeconds) {
+        this.server.stop(delaySeconds);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int port() {
+        return this.server.getAddress().getPort();
+    }
+
+    private void webhook(final HttpExchange exchange) throws IOException {
+        final Map<String, Object> request;
+        if("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            try(final InputStream body = exchange.getRequestBody()) {
+                request = form(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } else if("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            request = form(exchange.getRequestURI().getRawQuery());
+        } else {
+            respond(exchange, 405, "text/plain", "Method Not Allowed");
+            return;
+        }
+
+        try {
+            if(!this.limiter.acquire(this.queueMillis)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "text/plain", "Busy");
+                return;
+            }
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "text/plain", "Shutting down");
+            return;
+        }
+
+        // The slot is given back before the reply is written, so a slow client doesn't hold one
+        String twiml = null;
+        RuntimeException failure = null;
+        try {
+            twiml = this.handler.handleRequest(request, (Context) null);
+        } catch(final RuntimeException e) {
+            failure = e;
+        } finally {
+            this.limiter.release(failure != null && throttled(failure));
+        }
+
+        if(failure == null) {
+            respond(exchange, 200, TWIML_CONTENT_TYPE, twiml);
+        } else if(throttled(failure)) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "text/plain", "Busy");
+        } else {
+            System.err.println("Webhook failed: " + failure);
+            respond(exchange, 500, "text/plain", "Internal Server Error");
+        }
+    }
+
+    // Twilio posts its parameters form-encoded. The handler expects the values as API Gateway hands
+    // them over, still encoded, and decodes From and Body itself.
+    static Map<String, Object> form(final String encoded) throws UnsupportedEncodingException {
+        final Map<String, Object> parameters = new HashMap<>();
+        if(encoded == null || encoded.isEmpty()) {
+            return parameters;
+        }
+        for(final String pair : encoded.split("&")) {
+            if(pair.isEmpty()) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            final String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            parameters.put(name, equals < 0 ? "" : pair.substring(equals + 1));
+        }
+        return parameters;
+    }
+
+    // Whether DynamoDB or Twilio turned a call away for going too fast, after the SDK's own retries
+    static boolean throttled(final Throwable e) {
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof ProvisionedThroughputExceededException || cause instanceof RequestLimitExceededException) {
+                return true;
+            }
+            if(cause instanceof SdkServiceException && ((SdkServiceException) cause).isThrottlingException()) {
+                return true;
+            }
+            if(cause instanceof ApiException && Integer.valueOf(429).equals(((ApiException) cause).getStatusCode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String contentType, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
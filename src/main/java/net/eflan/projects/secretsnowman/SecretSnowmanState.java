@@ -4,42 +4,100 @@ import com.twilio.type.PhoneNumber;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 
 public class SecretSnowmanState {
     public static final String GIFTS_TABLE = "secret-snowman-state";
     public static final String ASSIGNED_KEY = "assigned";
+    public static final String ASSIGNED_NAME_KEY = "assigned-name";
+    public static final String ASSIGNED_ADDRESS_KEY = "assigned-address";
     public static final String CANNOT_MATCH_KEY = "cannot-match";
     public static final String GIFT_GIVER_NAME_KEY = "gift-giver-name";
     public static final String GIFT_PURCHASE_KEY = "gift-purchased";
     public static final String ADDRESS_KEY = "address";
     public static final String PHONE_NUMBER_KEY = "phone-number";
     public static final String PRIMARY_KEY = PHONE_NUMBER_KEY;
-
+    // Partition key of a table holding several games; tables with a single game leave it out
+    public static final String GROUP_KEY = "group-id";
+    // "pending" or "gifted", prefixed with "<group>#" in a table of several games. Kept in step with
+    // gift-purchased as the partition key of the gift status index, so each report is one partition.
+    public static final String GIFT_STATUS_KEY = "gift-status";
+    // Day (since the epoch, UTC) of the last scheduled reminder, so nobody gets two in a day
+    public static final String REMINDED_ON_KEY = "reminded-on";
+    // Bumped by every write that changes what a draw depends on: the assignment and gift-purchased.
+    // A draw or splice only writes rows still at the version it read; rows without one are version 0.
+    public static final String VERSION_KEY = "version";
+
+    private final String group;
     private final PhoneNumber assigned;
+    // False for a row that has never been drawn, whose assigned() is only a placeholder
+    private final boolean hasAssignment;
+    private final String assignedName;
+    private final String assignedAddress;
     private final List<PhoneNumber> cannotMatch;
     private final String address;
     private final String giftGiverName;
     private final boolean giftPurchased;
     private final PhoneNumber phoneNumber;
+    private final long version;
 
     private SecretSnowmanState(
+            final String group,
             final PhoneNumber assigned,
+            final boolean hasAssignment,
+            final String assignedName,
+            final String assignedAddress,
             final String address,
             final List<PhoneNumber> cannotMatch,
             final String giftGiverName,
             final boolean giftPurchased,
-            final PhoneNumber phoneNumber) {
+            final PhoneNumber phoneNumber,
+            final long version) {
 
+        this.group = group;
         this.assigned = assigned;
+        this.hasAssignment = hasAssignment;
+        this.assignedName = assignedName;
+        this.assignedAddress = assignedAddress;
         this.cannotMatch = cannotMatch;
         this.address = address;
         this.giftGiverName = giftGiverName;
         this.giftPurchased = giftPurchased;
         this.phoneNumber = phoneNumber;
+        this.version = version;
+    }
+
+    // For rows rebuilt from somewhere other than a DynamoDB item, such as a roster snapshot
+    static SecretSnowmanState of(
+            final String group,
+            final PhoneNumber assigned,
+            final boolean hasAssignment,
+            final String assignedName,
+            final String assignedAddress,
+            final String address,
+            final List<PhoneNumber> cannotMatch,
+            final String giftGiverName,
+            final boolean giftPurchased,
+            final PhoneNumber phoneNumber,
+            final long version) {
+
+        return new SecretSnowmanState(
+                group,
+                assigned,
+                hasAssignment,
+                assignedName,
+                assignedAddress,
+                address,
+                cannotMatch,
+                giftGiverName,
+                giftPurchased,
+                phoneNumber,
+                version);
     }
 
     public static List<PhoneNumber> toPhoneNumberList(final List<AttributeValue> numbers) {
@@ -51,12 +109,46 @@ public class SecretSnowmanState {
         return phoneNumbers;
     }
 
+    // The key of a participant's row: group and phone number, or just the phone number without a group
+    public static Map<String, AttributeValue> key(final String group, final String phoneNumber) {
+        final AttributeValue phone = AttributeValue.builder().s(phoneNumber).build();
+        if(group == null) {
+            return Collections.singletonMap(PRIMARY_KEY, phone);
+        }
+
+        final Map<String, AttributeValue> key = new HashMap<>();
+        key.put(GROUP_KEY, AttributeValue.builder().s(group).build());
+        key.put(PHONE_NUMBER_KEY, phone);
+        return key;
+    }
+
+    public static String giftStatus(final String group, final boolean giftPurchased) {
+        final String status = giftPurchased ? "gifted" : "pending";
+        return group == null ? status : group + '#' + status;
+    }
+
     public static SecretSnowmanState from(final Map<String, AttributeValue> item) {
+        String group = null;
+        if(item.containsKey(GROUP_KEY)) {
+            group = item.get(GROUP_KEY).s();
+        }
+
         String assigned = "+12065550000";
         if(item.containsKey("assigned")) {
             assigned = item.get("assigned").s();
         }
 
+        // Snapshot of the recipient's name and address, written alongside assigned by the draw
+        String assignedName = null;
+        if(item.containsKey(ASSIGNED_NAME_KEY)) {
+            assignedName = item.get(ASSIGNED_NAME_KEY).s();
+        }
+
+        String assignedAddress = null;
+        if(item.containsKey(ASSIGNED_ADDRESS_KEY)) {
+            assignedAddress = item.get(ASSIGNED_ADDRESS_KEY).s();
+        }
+
         List<AttributeValue> cannotMatch = Collections.emptyList();;
         if(item.containsKey("cannot-match")) {
             cannotMatch = item.get("cannot-match").l();
@@ -82,22 +174,57 @@ public class SecretSnowmanState {
             address = item.get("address").s();
         }
 
+        long version = 0;
+        if(item.containsKey(VERSION_KEY)) {
+            version = Long.parseLong(item.get(VERSION_KEY).n());
+        }
+
         return new SecretSnowmanState(
+                group,
                 new PhoneNumber(assigned),
+                item.containsKey(ASSIGNED_KEY),
+                assignedName,
+                assignedAddress,
                 address,
                 toPhoneNumberList(cannotMatch),
                 name,
                 giftPurchased,
-                new PhoneNumber(phone));
+                new PhoneNumber(phone),
+                version);
     }
 
+    public String group() { return this.group; }
     public PhoneNumber assigned() { return this.assigned; }
+    public boolean hasAssignment() { return this.hasAssignment; }
+    public String assignedName() { return this.assignedName; }
+    public String assignedAddress() { return this.assignedAddress; }
     public List<PhoneNumber> cannot() { return this.cannotMatch; }
     public String name() { return this.giftGiverName; }
     public boolean purchased() { return this.giftPurchased; }
     public PhoneNumber phone() { return this.phoneNumber; }
     public boolean gifted() { return this.giftPurchased; }
     public String address() { return this.address; }
+    public long version() { return this.version; }
+
+    // The recipient as far as this row knows it, or empty if the row predates recipient snapshots
+    public Optional<SecretSnowmanState> recipient() {
+        if(this.assignedName == null || this.assignedAddress == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new SecretSnowmanState(
+                this.group,
+                null,
+                false,
+                null,
+                null,
+                this.assignedAddress,
+                Collections.emptyList(),
+                this.assignedName,
+                false,
+                this.assigned,
+                0));
+    }
 
     public String toString() {
 
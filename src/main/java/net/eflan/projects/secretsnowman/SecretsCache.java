@@ -0,0 +1,107 @@
+package net.eflan.projects.secretsnowman;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+// Keeps the parsed Secrets Manager config for the life of a warm container. The secret is
+// re-fetched once the TTL has elapsed, or right away after invalidate() when a caller notices
+// the credentials were rotated underneath us. Hits and fetches are also counted into the calling
+// request's metrics, when given them.
+public class SecretsCache {
+    public static final String SECRET_ID = "SecretSnowmanSecrets";
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000L;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, String>> SECRET_TYPE = new TypeReference<Map<String, String>>(){};
+
+    private final SecretsManagerClient smc;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Metrics metrics;
+
+    private SecretSnowmanConfig config = null;
+    private long fetchedAt = 0;
+    private long fetches = 0;
+    private long hits = 0;
+
+    public SecretsCache(final SecretsManagerClient smc, final Metrics metrics) {
+        this(smc, ttlFromEnvironment(), System::currentTimeMillis, metrics);
+    }
+
+    public SecretsCache(final SecretsManagerClient smc, final long ttlMillis, final LongSupplier clock) {
+        this(smc, ttlMillis, clock, null);
+    }
+
+    public SecretsCache(final SecretsManagerClient smc, final long ttlMillis, final LongSupplier clock, final Metrics metrics) {
+        this.smc = smc;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.metrics = metrics;
+    }
+
+    private static long ttlFromEnvironment() {
+        final String ttlSeconds = System.getenv("SECRETS_TTL_SECONDS");
+        return ttlSeconds == null ? DEFAULT_TTL_MILLIS : Long.parseLong(ttlSeconds) * 1000L;
+    }
+
+    public synchronized SecretSnowmanConfig get() throws IOException {
+        final long now = this.clock.getAsLong();
+        if(this.config == null || now - this.fetchedAt >= this.ttlMillis) {
+            refresh(now);
+        } else {
+            this.hits++;
+            count(Metrics.SECRETS_CACHE_HITS);
+        }
+
+        return this.config;
+    }
+
+    public synchronized void invalidate() {
+        this.fetchedAt = Long.MIN_VALUE / 2;
+    }
+
+    private void count(final String name) {
+        if(this.metrics != null) {
+            this.metrics.add(name, 1);
+        }
+    }
+
+    public synchronized long fetches() {
+        return this.fetches;
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    private void refresh(final long now) throws IOException {
+        final GetSecretValueRequest getSecretValueRequest = GetSecretValueRequest.builder()
+                .secretId(SECRET_ID)
+                .build();
+
+        final GetSecretValueResponse secrets = this.smc.getSecretValue(getSecretValueRequest);
+        this.fetches++;
+        count(Metrics.SECRETS_CACHE_MISSES);
+
+        // Same version as what we already parsed, nothing to do except restart the TTL
+        if(this.config == null
+                || secrets.versionId() == null
+                || !Objects.equals(secrets.versionId(), this.config.versionId())) {
+
+            // Parse the JSON blob into a map of (String -> String)
+            final Map<String, String> secretKeysAndValues = MAPPER.readValue(secrets.secretString(), SECRET_TYPE);
+            this.config = SecretSnowmanConfig.from(secretKeysAndValues, secrets.versionId());
+        }
+
+        this.fetchedAt = now;
+    }
+}
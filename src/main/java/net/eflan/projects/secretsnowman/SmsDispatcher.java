@@ -0,0 +1,153 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.exception.ApiConnectionException;
+import com.twilio.exception.ApiException;
+import com.twilio.type.PhoneNumber;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Sends a batch of texts on a small thread pool instead of one after another. A token bucket keeps
+// the batch within the messaging service's throughput, and sends that Twilio never took are retried
+// with backoff.
+public class SmsDispatcher {
+    public static final int DEFAULT_PARALLELISM = 8;
+    public static final double DEFAULT_MESSAGES_PER_SECOND = 10;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long BASE_BACKOFF_MILLIS = 250;
+
+    public static class Delivery {
+        private final SecretSnowmanState person;
+        private final String sid;
+        private final int attempts;
+        private final RuntimeException error;
+
+        Delivery(final SecretSnowmanState person, final String sid, final int attempts, final RuntimeException error) {
+            this.person = person;
+            this.sid = sid;
+            this.attempts = attempts;
+            this.error = error;
+        }
+
+        public SecretSnowmanState person() { return this.person; }
+        public String sid() { return this.sid; }
+        public int attempts() { return this.attempts; }
+        public RuntimeException error() { return this.error; }
+        public boolean delivered() { return this.sid != null; }
+    }
+
+    private final LambdaHandler.SendSMS sendSMS;
+    private final ExecutorService executor;
+    private final TokenBucket limiter;
+    private final int maxAttempts;
+    private final long backoffMillis;
+
+    public SmsDispatcher(final LambdaHandler.SendSMS sendSMS) {
+        this(sendSMS, DEFAULT_PARALLELISM, messagesPerSecondFromEnvironment(), DEFAULT_MAX_ATTEMPTS, BASE_BACKOFF_MILLIS);
+    }
+
+    public SmsDispatcher(
+            final LambdaHandler.SendSMS sendSMS,
+            final int parallelism,
+            final double messagesPerSecond,
+            final int maxAttempts,
+            final long backoffMillis) {
+
+        this.sendSMS = sendSMS;
+        this.limiter = new TokenBucket(messagesPerSecond, Math.max(1, messagesPerSecond));
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread t = new Thread(r, "sms-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static double messagesPerSecondFromEnvironment() {
+        final String rate = System.getenv("SMS_MESSAGES_PER_SECOND");
+        return rate == null ? DEFAULT_MESSAGES_PER_SECOND : Double.parseDouble(rate);
+    }
+
+    // Texts people.get(i) about assignments.get(i) using format. The result is in the same order as people.
+    public List<Delivery> dispatch(
+            final PhoneNumber secretSnowmanPhoneNumber,
+            final String format,
+            final List<SecretSnowmanState> people,
+            final List<SecretSnowmanState> assignments) {
+
+        final List<Future<Delivery>> pending = new ArrayList<>(people.size());
+        for(int i = 0; i < people.size(); i++) {
+            final SecretSnowmanState person = people.get(i);
+            final SecretSnowmanState assignment = assignments.get(i);
+            pending.add(this.executor.submit(() -> send(secretSnowmanPhoneNumber, format, person, assignment)));
+        }
+
+        final List<Delivery> deliveries = new ArrayList<>(people.size());
+        for(int i = 0; i < pending.size(); i++) {
+            try {
+                deliveries.add(pending.get(i).get());
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                deliveries.add(new Delivery(people.get(i), null, 0, null));
+            } catch(final ExecutionException e) {
+                deliveries.add(new Delivery(people.get(i), null, 0, null));
+            }
+        }
+
+        return deliveries;
+    }
+
+    private Delivery send(
+            final PhoneNumber secretSnowmanPhoneNumber,
+            final String format,
+            final SecretSnowmanState person,
+            final SecretSnowmanState assignment) throws InterruptedException {
+
+        for(int attempt = 1; attempt <= this.maxAttempts; attempt++) {
+            this.limiter.acquire();
+            try {
+                return new Delivery(person, this.sendSMS.send(secretSnowmanPhoneNumber, format, person, assignment), attempt, null);
+            } catch(final RuntimeException e) {
+                if(!retryable(e) || attempt == this.maxAttempts) {
+                    return new Delivery(person, null, attempt, e);
+                }
+            }
+
+            Thread.sleep(this.backoffMillis << (attempt - 1));
+        }
+
+        return new Delivery(person, null, this.maxAttempts, null);
+    }
+
+    // Only a send Twilio can't have accepted is retried, or the person could get the text twice:
+    // rate limiting and an unavailable service, which turn the message away, and failures to connect
+    // at all. A read that timed out, a 500, or anything else unexpected may have come after the
+    // message was queued, so it is reported as a failure for the admin to resend.
+    static boolean retryable(final RuntimeException e) {
+        if(e instanceof ApiException && ((ApiException) e).getStatusCode() != null) {
+            final int status = ((ApiException) e).getStatusCode();
+            return status == 429 || status == 503;
+        }
+
+        if(e instanceof ApiConnectionException) {
+            for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if(cause instanceof ConnectException
+                        || cause instanceof ConnectTimeoutException
+                        || cause instanceof UnknownHostException) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,173 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BillingMode;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.GlobalSecondaryIndex;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.Projection;
+import software.amazon.awssdk.services.dynamodb.model.ProjectionType;
+import software.amazon.awssdk.services.dynamodb.model.ScalarAttributeType;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.TableStatus;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Creates a game table with the indexes the handler reads from, and backfills the gift status of
+// rows written before the gift status index existed. Run once from an operator's machine.
+public class TableSetup {
+    public static final String GIFT_STATUS_INDEX = "gift-status-index";
+    public static final long POLL_MILLIS = 1000;
+    public static final int MAX_POLLS = 120;
+
+    private TableSetup() {
+    }
+
+    // A table of several games is keyed on group and phone, and also needs the phone number index
+    // to find a sender's groups. Every table gets the gift status index; rows without a gift
+    // status are left out of it, so it only ever holds players.
+    public static CreateTableRequest createTableRequest(final String secretSnowmanTable, final boolean grouped) {
+        final List<AttributeDefinition> attributes = new ArrayList<>();
+        final List<KeySchemaElement> keys = new ArrayList<>();
+        final List<GlobalSecondaryIndex> indexes = new ArrayList<>();
+
+        attributes.add(attribute(SecretSnowmanState.PHONE_NUMBER_KEY));
+        attributes.add(attribute(SecretSnowmanState.GIFT_STATUS_KEY));
+
+        if(grouped) {
+            attributes.add(attribute(SecretSnowmanState.GROUP_KEY));
+            keys.add(key(SecretSnowmanState.GROUP_KEY, KeyType.HASH));
+            keys.add(key(SecretSnowmanState.PHONE_NUMBER_KEY, KeyType.RANGE));
+
+            indexes.add(GlobalSecondaryIndex.builder()
+                    .indexName(GroupDirectory.PHONE_INDEX)
+                    .keySchema(key(SecretSnowmanState.PHONE_NUMBER_KEY, KeyType.HASH))
+                    .projection(Projection.builder().projectionType(ProjectionType.KEYS_ONLY).build())
+                    .build());
+        } else {
+            keys.add(key(SecretSnowmanState.PHONE_NUMBER_KEY, KeyType.HASH));
+        }
+
+        indexes.add(GlobalSecondaryIndex.builder()
+                .indexName(GIFT_STATUS_INDEX)
+                .keySchema(
+                        key(SecretSnowmanState.GIFT_STATUS_KEY, KeyType.HASH),
+                        key(SecretSnowmanState.PHONE_NUMBER_KEY, KeyType.RANGE))
+                .projection(Projection.builder()
+                        .projectionType(ProjectionType.INCLUDE)
+                        .nonKeyAttributes(SecretSnowmanState.GIFT_GIVER_NAME_KEY, SecretSnowmanState.GIFT_PURCHASE_KEY)
+                        .build())
+                .build());
+
+        return CreateTableRequest.builder()
+                .tableName(secretSnowmanTable)
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .attributeDefinitions(attributes)
+                .keySchema(keys)
+                .globalSecondaryIndexes(indexes)
+                .build();
+    }
+
+    // The table RequestDeduplicator remembers replies in, keyed by Twilio's MessageSid
+    public static CreateTableRequest createRequestTableRequest(final String requestTable) {
+        return CreateTableRequest.builder()
+                .tableName(requestTable)
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .attributeDefinitions(attribute(RequestDeduplicator.MESSAGE_SID_KEY))
+                .keySchema(key(RequestDeduplicator.MESSAGE_SID_KEY, KeyType.HASH))
+                .build();
+    }
+
+    // The table RosterSnapshot keeps one item per group in
+    public static CreateTableRequest createSnapshotTableRequest(final String snapshotTable) {
+        return CreateTableRequest.builder()
+                .tableName(snapshotTable)
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .attributeDefinitions(attribute(RosterSnapshot.SNAPSHOT_ID_KEY))
+                .keySchema(key(RosterSnapshot.SNAPSHOT_ID_KEY, KeyType.HASH))
+                .build();
+    }
+
+    // Creates the table and waits until it can take writes
+    public static void create(final DynamoDbClient dbc, final String secretSnowmanTable, final boolean grouped)
+            throws InterruptedException {
+
+        dbc.createTable(createTableRequest(secretSnowmanTable, grouped));
+        awaitActive(dbc, secretSnowmanTable);
+    }
+
+    // Creates the request table and has DynamoDB delete its records once they expire
+    public static void createRequestTable(final DynamoDbClient dbc, final String requestTable) throws InterruptedException {
+        dbc.createTable(createRequestTableRequest(requestTable));
+        awaitActive(dbc, requestTable);
+
+        dbc.updateTimeToLive(r -> r
+                .tableName(requestTable)
+                .timeToLiveSpecification(t -> t.enabled(true).attributeName(RequestDeduplicator.EXPIRES_AT_KEY)));
+    }
+
+    public static void createSnapshotTable(final DynamoDbClient dbc, final String snapshotTable) throws InterruptedException {
+        dbc.createTable(createSnapshotTableRequest(snapshotTable));
+        awaitActive(dbc, snapshotTable);
+    }
+
+    private static void awaitActive(final DynamoDbClient dbc, final String secretSnowmanTable) throws InterruptedException {
+        for(int poll = 0; poll < MAX_POLLS; poll++) {
+            final TableStatus status = dbc.describeTable(r -> r.tableName(secretSnowmanTable)).table().tableStatus();
+            if(status == TableStatus.ACTIVE) {
+                return;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+
+        throw new IllegalStateException("Table " + secretSnowmanTable + " did not become active");
+    }
+
+    // Sets the gift status on every row that has none, from its gift-purchased flag. Returns the
+    // number of rows updated. Safe to run again; rows that already have a status are skipped.
+    public static int backfillGiftStatus(final DynamoDbClient dbc, final String secretSnowmanTable) {
+        final ScanRequest scan = DynamoScanner.stateScan(
+                secretSnowmanTable,
+                "attribute_not_exists(#gs)",
+                Map.of("#gs", SecretSnowmanState.GIFT_STATUS_KEY),
+                null).build();
+
+        final int[] updated = { 0 };
+        DynamoScanner.items(dbc, scan).map(SecretSnowmanState::from).forEach(person -> {
+            final Map<String, AttributeValue> values = new HashMap<>();
+            values.put(":status", AttributeValue.builder().s(SecretSnowmanState.giftStatus(person.group(), person.gifted())).build());
+
+            // A player who texts "gifted" mid-backfill has already set their own status
+            try {
+                dbc.updateItem(UpdateItemRequest.builder()
+                        .tableName(secretSnowmanTable)
+                        .key(SecretSnowmanState.key(person.group(), person.phone().toString()))
+                        .updateExpression("set #gs = :status")
+                        .conditionExpression("attribute_not_exists(#gs)")
+                        .expressionAttributeNames(Map.of("#gs", SecretSnowmanState.GIFT_STATUS_KEY))
+                        .expressionAttributeValues(values)
+                        .build());
+                updated[0]++;
+            } catch(final ConditionalCheckFailedException e) {
+                // Already set
+            }
+        });
+        return updated[0];
+    }
+
+    private static AttributeDefinition attribute(final String name) {
+        return AttributeDefinition.builder().attributeName(name).attributeType(ScalarAttributeType.S).build();
+    }
+
+    private static KeySchemaElement key(final String name, final KeyType type) {
+        return KeySchemaElement.builder().attributeName(name).keyType(type).build();
+    }
+}
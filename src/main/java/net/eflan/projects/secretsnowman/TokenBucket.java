@@ -0,0 +1,50 @@
+package net.eflan.projects.secretsnowman;
+
+// Blocking token-bucket rate limiter. Tokens refill continuously at ratePerSecond up to capacity,
+// so short bursts go straight out while a sustained blast is held to the configured rate.
+public class TokenBucket {
+    private final double ratePerSecond;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(final double ratePerSecond, final double capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public void acquire() throws InterruptedException {
+        while(true) {
+            final long waitNanos;
+            synchronized(this) {
+                refill();
+                if(this.tokens >= 1) {
+                    this.tokens -= 1;
+                    return;
+                }
+                waitNanos = (long) ((1 - this.tokens) / this.ratePerSecond * 1_000_000_000L);
+            }
+
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    // Takes a token if one is available, without waiting
+    public synchronized boolean tryAcquire() {
+        refill();
+        if(this.tokens >= 1) {
+            this.tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefillNanos) * this.ratePerSecond / 1_000_000_000L);
+        this.lastRefillNanos = now;
+    }
+}
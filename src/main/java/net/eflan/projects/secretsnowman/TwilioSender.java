@@ -0,0 +1,46 @@
+package net.eflan.projects.secretsnowman;
+
+import com.twilio.Twilio;
+import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.type.PhoneNumber;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+// Sends texts through Twilio's REST client for both handlers. The client is only needed to send
+// texts, which most requests never do, so it is initialized on the first send rather than on every
+// cold start, and after that again only when the secret the handler last read has been rotated.
+// Unit tests pass the handlers their own SendSMS and never reach the real Twilio SDK.
+public class TwilioSender implements LambdaHandler.SendSMS {
+    private final Supplier<SecretSnowmanConfig> config;
+
+    private String versionId = null;
+    private boolean initialized = false;
+
+    public TwilioSender(final Supplier<SecretSnowmanConfig> config) {
+        this.config = config;
+    }
+
+    @Override
+    public String send(
+            final PhoneNumber secretSnowmanPhoneNumber,
+            final String format,
+            final SecretSnowmanState person,
+            final SecretSnowmanState assignment) {
+
+        init();
+        return Message.creator(
+                person.phone(),
+                secretSnowmanPhoneNumber,
+                String.format(format, person.name(), assignment.name(), assignment.address())).create().getSid();
+    }
+
+    private synchronized void init() {
+        final SecretSnowmanConfig config = this.config.get();
+        if(!this.initialized || !Objects.equals(this.versionId, config.versionId())) {
+            Twilio.init(config.twilioAccountSID(), config.twilioAccountSecret());
+            this.versionId = config.versionId();
+            this.initialized = true;
+        }
+    }
+}
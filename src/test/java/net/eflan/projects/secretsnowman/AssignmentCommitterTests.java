@@ -0,0 +1,362 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static java.util.Collections.singletonMap;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AssignmentCommitterTests {
+    static final String TABLE = "test-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+
+    private List<SecretSnowmanState> load(final int count) {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(count, 10);
+        for(final SecretSnowmanState person : people) {
+            fakeDynamoClient.put(TABLE, LambdaTests.makeItem(
+                    person.name(),
+                    person.phone().toString(),
+                    person.address(),
+                    Collections.emptyList(),
+                    "+12065550000",
+                    false));
+        }
+        return people;
+    }
+
+    private static List<SecretSnowmanState> rotate(final List<SecretSnowmanState> people) {
+        final List<SecretSnowmanState> assignments = new ArrayList<>(people.subList(1, people.size()));
+        assignments.add(people.get(0));
+        return assignments;
+    }
+
+    private static TransactionCanceledException cancelled(final String code) {
+        return TransactionCanceledException.builder()
+                .message("cancelled")
+                .cancellationReasons(CancellationReason.builder().code(code).build())
+                .build();
+    }
+
+    // What another request's write to a row does to its version, such as somebody texting "gifted"
+    private void bumpVersion(final SecretSnowmanState person) {
+        fakeDynamoClient.updateItem(UpdateItemRequest.builder()
+                .tableName(TABLE)
+                .key(SecretSnowmanState.key(null, person.phone().toString()))
+                .updateExpression("set #ver = if_not_exists(#ver, :zero) + :one")
+                .expressionAttributeNames(singletonMap("#ver", SecretSnowmanState.VERSION_KEY))
+                .expressionAttributeValues(Map.of(
+                        ":zero", AttributeValue.builder().n("0").build(),
+                        ":one", AttributeValue.builder().n("1").build()))
+                .build());
+    }
+
+    private LambdaHandler handler() {
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        return new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+    }
+
+    private String assignGifts(final LambdaHandler handler) {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", "%2B15555550000");
+        request.put("Body", "assign+gifts");
+        return handler.handleRequest(request, mock(Context.class));
+    }
+
+    @Test
+    public void testCommitWritesEveryAssignment() {
+        final List<SecretSnowmanState> people = load(250);
+        final List<SecretSnowmanState> assignments = rotate(people);
+
+        Assert.assertTrue("draw is committed", new AssignmentCommitter(fakeDynamoClient).commit(TABLE, people, assignments));
+        Assert.assertEquals("chunks of 100", 3, fakeDynamoClient.calls("TransactWriteItems"));
+
+        for(int i = 0; i < people.size(); i++) {
+            Assert.assertEquals(
+                    "assignment is stored",
+                    assignments.get(i).phone().toString(),
+                    fakeDynamoClient.get(TABLE, people.get(i).phone().toString()).get(SecretSnowmanState.ASSIGNED_KEY).s());
+        }
+    }
+
+    @Test
+    public void testFailedChunkRollsBackCommittedChunks() {
+        final List<SecretSnowmanState> people = load(250);
+        final AtomicInteger transactions = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            if("TransactWriteItems".equals(op) && transactions.incrementAndGet() == 2) {
+                throw cancelled("ValidationError");
+            }
+        };
+
+        Assert.assertFalse("draw is rejected", new AssignmentCommitter(fakeDynamoClient, 1, 3).commit(TABLE, people, rotate(people)));
+
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertEquals("nobody keeps a partial assignment", "+12065550000", item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+        }
+    }
+
+    // Rows as they are before anybody's first draw, without an assigned attribute at all
+    private List<SecretSnowmanState> loadUndrawn(final int count) {
+        final List<SecretSnowmanState> people = new ArrayList<>();
+        for(final SecretSnowmanState person : load(count)) {
+            final Map<String, AttributeValue> item = new HashMap<>(fakeDynamoClient.get(TABLE, person.phone().toString()));
+            item.remove(SecretSnowmanState.ASSIGNED_KEY);
+            fakeDynamoClient.put(TABLE, item);
+            people.add(SecretSnowmanState.from(item));
+        }
+        return people;
+    }
+
+    @Test
+    public void testRollbackOfFirstDrawRemovesAssignments() {
+        final List<SecretSnowmanState> people = loadUndrawn(250);
+        Assert.assertFalse(people.get(0).hasAssignment());
+        final AtomicInteger transactions = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            if("TransactWriteItems".equals(op) && transactions.incrementAndGet() == 2) {
+                throw cancelled("ValidationError");
+            }
+        };
+
+        Assert.assertFalse("draw is rejected", new AssignmentCommitter(fakeDynamoClient, 1, 3).commit(TABLE, people, rotate(people)));
+
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertFalse("nobody is left with a placeholder assignment", item.containsKey(SecretSnowmanState.ASSIGNED_KEY));
+            Assert.assertFalse(item.containsKey(SecretSnowmanState.ASSIGNED_NAME_KEY));
+        }
+    }
+
+    @Test
+    public void testFailedRollbackIsReported() {
+        final List<SecretSnowmanState> people = load(250);
+        final AtomicInteger transactions = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            // The second chunk fails, and so does putting the first one back
+            if("TransactWriteItems".equals(op) && transactions.incrementAndGet() >= 2) {
+                throw cancelled("ValidationError");
+            }
+        };
+
+        try {
+            new AssignmentCommitter(fakeDynamoClient, 1, 3).commit(TABLE, people, rotate(people));
+            Assert.fail("the first chunk is still in the table");
+        } catch(final AssignmentCommitter.PartialCommitException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHandlerReportsFailedRollback() {
+        final LambdaHandler handler = handler();
+        load(120);
+        final AtomicInteger transactions = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            if("TransactWriteItems".equals(op) && transactions.incrementAndGet() >= 2) {
+                throw cancelled("ValidationError");
+            }
+        };
+
+        Assert.assertEquals(LambdaHandler.toTWIML(LambdaHandler.ASSIGNMENT_PARTIAL_MESSAGE), assignGifts(handler));
+    }
+
+    @Test
+    public void testChangedRowIsNotOverwritten() {
+        final List<SecretSnowmanState> people = load(250);
+        bumpVersion(people.get(180));
+
+        try {
+            new AssignmentCommitter(fakeDynamoClient, 1, 3).commit(TABLE, people, rotate(people));
+            Assert.fail("a row changed since it was read");
+        } catch(final AssignmentCommitter.ConflictException e) {
+            // expected
+        }
+
+        Assert.assertEquals("three chunks, the stale one not retried, and two rollbacks", 5, fakeDynamoClient.calls("TransactWriteItems"));
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertEquals("nobody keeps a partial assignment", "+12065550000", item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+        }
+    }
+
+    private void deleteRow(final SecretSnowmanState person) {
+        fakeDynamoClient.deleteItem(DeleteItemRequest.builder()
+                .tableName(TABLE)
+                .key(SecretSnowmanState.key(null, person.phone().toString()))
+                .build());
+    }
+
+    @Test
+    public void testDrawDoesNotRecreateDeletedRow() {
+        final List<SecretSnowmanState> people = load(3);
+        deleteRow(people.get(1));
+
+        try {
+            new AssignmentCommitter(fakeDynamoClient, 1, 3).commit(TABLE, people, rotate(people));
+            Assert.fail("a row was deleted since it was read");
+        } catch(final AssignmentCommitter.ConflictException e) {
+            // expected
+        }
+        Assert.assertNull("the leaver stays gone", fakeDynamoClient.get(TABLE, people.get(1).phone().toString()));
+        Assert.assertEquals(2, fakeDynamoClient.items(TABLE).size());
+    }
+
+    @Test
+    public void testRollbackDoesNotRecreateDeletedRow() {
+        final List<SecretSnowmanState> people = loadUndrawn(250);
+        final AtomicInteger transactions = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            // Somebody leaves after the first chunk is in, then the second chunk fails
+            if("TransactWriteItems".equals(op) && transactions.incrementAndGet() == 2) {
+                deleteRow(people.get(0));
+                throw cancelled("ValidationError");
+            }
+        };
+
+        try {
+            new AssignmentCommitter(fakeDynamoClient, 1, 3).commit(TABLE, people, rotate(people));
+            Assert.fail("the first chunk can't be put back as a whole");
+        } catch(final AssignmentCommitter.PartialCommitException e) {
+            // expected
+        }
+        Assert.assertNull("the leaver stays gone", fakeDynamoClient.get(TABLE, people.get(0).phone().toString()));
+    }
+
+    @Test
+    public void testCommitBumpsVersions() {
+        final List<SecretSnowmanState> people = load(3);
+        Assert.assertTrue(new AssignmentCommitter(fakeDynamoClient).commit(TABLE, people, rotate(people)));
+
+        final List<SecretSnowmanState> reread = new ArrayList<>();
+        for(final SecretSnowmanState person : people) {
+            reread.add(SecretSnowmanState.from(fakeDynamoClient.get(TABLE, person.phone().toString())));
+        }
+        Assert.assertEquals(1, reread.get(0).version());
+
+        try {
+            new AssignmentCommitter(fakeDynamoClient).commit(TABLE, people, people);
+            Assert.fail("the draw was worked out from rows before the last commit");
+        } catch(final AssignmentCommitter.ConflictException e) {
+            // expected
+        }
+        Assert.assertTrue("rows read again commit", new AssignmentCommitter(fakeDynamoClient).commit(TABLE, reread, people));
+        Assert.assertEquals(2, SecretSnowmanState.from(fakeDynamoClient.get(TABLE, people.get(0).phone().toString())).version());
+    }
+
+    @Test
+    public void testHandlerReadsGroupAgainOnConflict() {
+        final LambdaHandler handler = handler();
+        final List<SecretSnowmanState> people = load(20);
+        final AtomicInteger transactions = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            if("TransactWriteItems".equals(op) && transactions.incrementAndGet() == 1) {
+                bumpVersion(people.get(7));
+            }
+        };
+
+        final String response = assignGifts(handler);
+        Assert.assertTrue(response, response.contains(people.get(19).name() + ": SID"));
+        Assert.assertEquals("the group is read again and the draw redone", 2, fakeDynamoClient.calls("TransactWriteItems"));
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertNotEquals("everybody is assigned", "+12065550000", item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+        }
+    }
+
+    @Test
+    public void testHandlerGivesUpOnRowsThatKeepChanging() {
+        final LambdaHandler handler = handler();
+        final List<SecretSnowmanState> people = load(20);
+        fakeDynamoClient.beforeOperation = op -> {
+            if("TransactWriteItems".equals(op)) {
+                bumpVersion(people.get(7));
+            }
+        };
+
+        Assert.assertEquals(LambdaHandler.toTWIML(LambdaHandler.ASSIGNMENT_FAILED_MESSAGE), assignGifts(handler));
+        Assert.assertEquals(LambdaHandler.MAX_CONFLICT_ATTEMPTS, fakeDynamoClient.calls("TransactWriteItems"));
+    }
+
+    @Test
+    public void testThrottledChunkIsRetried() {
+        final List<SecretSnowmanState> people = load(50);
+        final AtomicInteger transactions = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            if("TransactWriteItems".equals(op) && transactions.incrementAndGet() == 1) {
+                throw cancelled("ThrottlingError");
+            }
+        };
+
+        Assert.assertTrue("draw is committed", new AssignmentCommitter(fakeDynamoClient).commit(TABLE, people, rotate(people)));
+        Assert.assertEquals("one retry", 2, fakeDynamoClient.calls("TransactWriteItems"));
+    }
+
+    @Test
+    public void testCallCountsVersusPerItemUpdates() {
+        final int count = 500;
+        final List<SecretSnowmanState> people = load(count);
+        final List<SecretSnowmanState> assignments = rotate(people);
+        fakeDynamoClient.beforeOperation = op -> {
+            try {
+                Thread.sleep(2);
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        // What assignGifts used to do: one UpdateItem per participant, one after another
+        final long serialStart = System.nanoTime();
+        for(int i = 0; i < count; i++) {
+            fakeDynamoClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(TABLE)
+                    .key(singletonMap(SecretSnowmanState.PRIMARY_KEY, AttributeValue.builder().s(people.get(i).phone().toString()).build()))
+                    .updateExpression("set assigned = :pn")
+                    .expressionAttributeValues(singletonMap(":pn", AttributeValue.builder().s(assignments.get(i).phone().toString()).build()))
+                    .build());
+        }
+        final long serialMillis = (System.nanoTime() - serialStart) / 1_000_000;
+        final int serialCalls = fakeDynamoClient.totalCalls();
+
+        fakeDynamoClient.resetCalls();
+        final long batchedStart = System.nanoTime();
+        Assert.assertTrue("draw is committed", new AssignmentCommitter(fakeDynamoClient).commit(TABLE, people, assignments));
+        final long batchedMillis = (System.nanoTime() - batchedStart) / 1_000_000;
+        final int batchedCalls = fakeDynamoClient.totalCalls();
+
+        System.out.println(String.format(
+                "%d participants: per-item UpdateItem %d calls / %d ms, TransactWriteItems %d calls / %d ms",
+                count, serialCalls, serialMillis, batchedCalls, batchedMillis));
+
+        Assert.assertEquals("one call per participant before", count, serialCalls);
+        Assert.assertEquals("one call per 100 participants after", count / AssignmentCommitter.MAX_TRANSACTION_ITEMS, batchedCalls);
+    }
+
+    @Test
+    public void testAssignGiftsCommitsThroughHandler() {
+        final LambdaHandler handler = handler();
+        final List<SecretSnowmanState> people = load(120);
+
+        final String response = assignGifts(handler);
+
+        Assert.assertTrue("every person is texted", response.contains(people.get(119).name() + ": SID"));
+        Assert.assertEquals("two transactions", 2, fakeDynamoClient.calls("TransactWriteItems"));
+        Assert.assertEquals("no per-item updates", 0, fakeDynamoClient.calls("UpdateItem"));
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertNotEquals("everybody is assigned", "+12065550000", item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+        }
+    }
+}
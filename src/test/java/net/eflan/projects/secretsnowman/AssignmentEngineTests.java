@@ -0,0 +1,127 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+public class AssignmentEngineTests {
+    final AssignmentEngine engine = new AssignmentEngine(new Random(42), AssignmentEngine.DEFAULT_MAX_STEPS, AssignmentEngine.DEFAULT_RESTARTS);
+
+    public static String phone(final int i) {
+        return String.format("+1555%07d", i);
+    }
+
+    // Everybody is in a couple, and every team of teamSize people cannot buy for each other either.
+    public static List<SecretSnowmanState> makePeople(final int count, final int teamSize) {
+        final List<SecretSnowmanState> people = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            final List<String> cannot = new ArrayList<>();
+            final int partner = (i % 2 == 0) ? i + 1 : i - 1;
+            if(partner < count) {
+                cannot.add(phone(partner));
+            }
+
+            final int team = i / teamSize;
+            for(int j = team * teamSize; j < Math.min(count, (team + 1) * teamSize); j++) {
+                if(j != i && j != partner) {
+                    cannot.add(phone(j));
+                }
+            }
+
+            people.add(SecretSnowmanState.from(
+                    LambdaTests.makeItem("person " + i, phone(i), "address " + i, cannot, "+12065550000", false)));
+        }
+
+        return people;
+    }
+
+    private static void assertSingleCycle(final List<SecretSnowmanState> people, final List<SecretSnowmanState> assignments) {
+        Assert.assertEquals("everybody is assigned", people.size(), assignments.size());
+
+        final Map<String, String> next = new HashMap<>();
+        for(int i = 0; i < people.size(); i++) {
+            final SecretSnowmanState person = people.get(i);
+            final SecretSnowmanState assignment = assignments.get(i);
+
+            Assert.assertNotEquals("nobody buys for themselves", person.phone(), assignment.phone());
+            Assert.assertFalse("cannot-match is honored", person.cannot().contains(assignment.phone()));
+            next.put(person.phone().toString(), assignment.phone().toString());
+        }
+
+        final Set<String> seen = new HashSet<>();
+        String current = people.get(0).phone().toString();
+        while(seen.add(current)) {
+            current = next.get(current);
+        }
+        Assert.assertEquals("assignment is a single cycle", people.size(), seen.size());
+        Assert.assertEquals("cycle closes at the start", people.get(0).phone().toString(), current);
+    }
+
+    private void assertAssigns(final int count, final int teamSize) {
+        final List<SecretSnowmanState> people = makePeople(count, teamSize);
+        final Optional<List<SecretSnowmanState>> assignments = engine.assign(people);
+
+        Assert.assertTrue(count + " participants can be assigned", assignments.isPresent());
+        assertSingleCycle(people, assignments.get());
+    }
+
+    @Test(timeout = 5000)
+    public void testTenParticipants() {
+        assertAssigns(10, 4);
+    }
+
+    @Test(timeout = 5000)
+    public void testHundredParticipants() {
+        assertAssigns(100, 10);
+    }
+
+    @Test(timeout = 20000)
+    public void testThousandParticipants() {
+        assertAssigns(1000, 50);
+    }
+
+    @Test(timeout = 5000)
+    public void testEveryoneExcludesOnePerson() {
+        final List<SecretSnowmanState> people = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            final List<String> cannot = (i == 0) ? Collections.emptyList() : Collections.singletonList(phone(0));
+            people.add(SecretSnowmanState.from(
+                    LambdaTests.makeItem("person " + i, phone(i), "address", cannot, "+12065550000", false)));
+        }
+
+        Assert.assertFalse("no solution is reported", engine.assign(people).isPresent());
+    }
+
+    @Test(timeout = 20000)
+    public void testTeamLargerThanHalfTheGroup() {
+        // Six of ten people refuse each other, so two of them must end up adjacent in any cycle.
+        final List<SecretSnowmanState> people = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            final List<String> cannot = new ArrayList<>();
+            if(i < 6) {
+                for(int j = 0; j < 6; j++) {
+                    if(j != i) {
+                        cannot.add(phone(j));
+                    }
+                }
+            }
+            people.add(SecretSnowmanState.from(
+                    LambdaTests.makeItem("person " + i, phone(i), "address", cannot, "+12065550000", false)));
+        }
+
+        Assert.assertFalse("search terminates without a solution", engine.assign(people).isPresent());
+    }
+
+    @Test
+    public void testSingleParticipant() {
+        Assert.assertFalse("one person cannot be assigned", engine.assign(makePeople(1, 1)).isPresent());
+    }
+}
@@ -0,0 +1,229 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.twilio.type.PhoneNumber;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+public class AssignmentSplicerTests {
+    static final String TABLE = "test-table";
+
+    final AssignmentSplicer splicer = new AssignmentSplicer(new Random(42));
+
+    private static String phone(final int i) {
+        return AssignmentEngineTests.phone(i);
+    }
+
+    private static SecretSnowmanState person(final int i, final int assigned, final boolean purchased, final Integer... cannot) {
+        final List<String> cannotPhones = new ArrayList<>();
+        for(final int c : cannot) {
+            cannotPhones.add(phone(c));
+        }
+        return SecretSnowmanState.from(LambdaTests.makeItem(
+                "person " + i, phone(i), "address " + i, cannotPhones, assigned < 0 ? "+12065550000" : phone(assigned), purchased));
+    }
+
+    // 0 -> 1 -> ... -> n-1 -> 0
+    private static List<SecretSnowmanState> cycle(final int n) {
+        final List<SecretSnowmanState> people = new ArrayList<>();
+        for(int i = 0; i < n; i++) {
+            people.add(person(i, (i + 1) % n, false));
+        }
+        return people;
+    }
+
+    // Whom each person buys for once the splice is applied, checked to be a single cycle through everybody but excluded
+    private static Map<String, String> applied(
+            final List<SecretSnowmanState> people,
+            final AssignmentSplicer.Splice splice,
+            final String excluded) {
+
+        final Map<String, String> next = new HashMap<>();
+        for(final SecretSnowmanState person : people) {
+            if(!person.phone().toString().equals(excluded)) {
+                next.put(person.phone().toString(), person.assigned().toString());
+            }
+        }
+        for(int i = 0; i < splice.givers().size(); i++) {
+            next.put(splice.givers().get(i).phone().toString(), splice.recipients().get(i).phone().toString());
+        }
+
+        final Set<String> seen = new HashSet<>();
+        String current = next.keySet().iterator().next();
+        while(seen.add(current)) {
+            current = next.get(current);
+        }
+        Assert.assertEquals("a single cycle through everybody", next.size(), seen.size());
+        return next;
+    }
+
+    @Test
+    public void testJoinChangesTwoRows() {
+        final List<SecretSnowmanState> people = new ArrayList<>(cycle(6));
+        people.add(person(6, -1, false));
+
+        final AssignmentSplicer.Splice splice = splicer.join(new ParticipantRoster(people), 6).get();
+        Assert.assertEquals("giver and joiner", 2, splice.givers().size());
+        Assert.assertEquals("somebody buys for the joiner", phone(6), splice.recipients().get(0).phone().toString());
+        applied(people, splice, null);
+    }
+
+    @Test
+    public void testJoinSkipsPurchasedAndCannotMatch() {
+        // Only 2 -> 3 is open: 0 and 1 have bought, 3 can't buy for the joiner's old neighbor, and 4 can't take the joiner
+        final List<SecretSnowmanState> people = Arrays.asList(
+                person(0, 1, true),
+                person(1, 2, true),
+                person(2, 3, false),
+                person(3, 4, false, 5),
+                person(4, 0, false, 5),
+                person(5, -1, false, 0, 4));
+
+        final AssignmentSplicer.Splice splice = splicer.join(new ParticipantRoster(people), 5).get();
+        Assert.assertEquals(phone(2), splice.givers().get(0).phone().toString());
+        Assert.assertEquals(phone(3), splice.recipients().get(1).phone().toString());
+        applied(people, splice, null);
+    }
+
+    @Test
+    public void testJoinWithNowhereToGo() {
+        final List<SecretSnowmanState> people = new ArrayList<>(cycle(3));
+        people.add(person(3, -1, false, 0, 1, 2));
+        Assert.assertFalse(splicer.join(new ParticipantRoster(people), 3).isPresent());
+    }
+
+    @Test
+    public void testLeaveHandsOverRecipient() {
+        final List<SecretSnowmanState> people = cycle(5);
+        final AssignmentSplicer.Splice splice = splicer.leave(new ParticipantRoster(people), 2).get();
+
+        Assert.assertEquals("only the giver changes", 1, splice.givers().size());
+        Assert.assertEquals(phone(1), splice.givers().get(0).phone().toString());
+        Assert.assertEquals(phone(3), splice.recipients().get(0).phone().toString());
+        applied(people, splice, phone(2));
+    }
+
+    @Test
+    public void testLeaveReordersWhenGiverCannotTakeOver() {
+        // 1 may not buy for 3, so the rest of the cycle is rejoined in another order
+        final List<SecretSnowmanState> people = new ArrayList<>(cycle(8));
+        people.set(1, person(1, 2, true, 3));
+
+        final Optional<AssignmentSplicer.Splice> splice = splicer.leave(new ParticipantRoster(people), 2);
+        Assert.assertEquals("three rows change", 3, splice.get().givers().size());
+
+        final Map<String, String> next = applied(people, splice.get(), phone(2));
+        Assert.assertNotEquals(phone(3), next.get(phone(1)));
+        for(final SecretSnowmanState person : people) {
+            if(!person.phone().toString().equals(phone(2)) && !person.cannot().isEmpty()) {
+                Assert.assertFalse("cannot-match is honored", person.cannot().contains(new PhoneNumber(next.get(person.phone().toString()))));
+            }
+        }
+    }
+
+    @Test
+    public void testLeaveLeavingTooFew() {
+        Assert.assertFalse(splicer.leave(new ParticipantRoster(cycle(2)), 0).isPresent());
+    }
+
+    @Test
+    public void testLeaveBeforeDrawChangesNothing() {
+        final List<SecretSnowmanState> people = new ArrayList<>(cycle(3));
+        people.add(person(3, -1, false));
+        Assert.assertEquals(Collections.emptyList(), splicer.leave(new ParticipantRoster(people), 3).get().givers());
+    }
+
+    @Test
+    public void testJoinAndLeaveCommands() {
+        final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+        for(final SecretSnowmanState person : cycle(6)) {
+            fakeDynamoClient.put(TABLE, LambdaTests.makeItem(
+                    person.name(), person.phone().toString(), person.address(), Arrays.asList(), person.assigned().toString(), false));
+        }
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("person 6", phone(6), "address 6", Arrays.asList(), "+12065550000", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        final LambdaHandler handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", "%2B15555550000");
+        request.put("Body", "join%2B" + phone(6).substring(1));
+        final String joined = handler.handleRequest(request, mock(Context.class));
+        Assert.assertEquals("two people are texted", 2, joined.split("person ").length - 1);
+
+        int changed = 0;
+        for(int i = 0; i < 6; i++) {
+            final AttributeValue assigned = fakeDynamoClient.get(TABLE, phone(i)).get(SecretSnowmanState.ASSIGNED_KEY);
+            if(!assigned.s().equals(phone((i + 1) % 6))) {
+                changed++;
+                Assert.assertEquals(phone(6), assigned.s());
+            }
+        }
+        Assert.assertEquals("one giver moved to the joiner", 1, changed);
+
+        request.put("Body", "leave%2B" + phone(3).substring(1));
+        handler.handleRequest(request, mock(Context.class));
+        Assert.assertNull("the leaver's row is gone", fakeDynamoClient.get(TABLE, phone(3)));
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertNotEquals("nobody buys for the leaver", phone(3), item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+        }
+    }
+
+    @Test
+    public void testLeaveAfterConcurrentJoinKeepsTheJoiner() {
+        final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+        for(final SecretSnowmanState person : cycle(6)) {
+            fakeDynamoClient.put(TABLE, LambdaTests.makeItem(
+                    person.name(), person.phone().toString(), person.address(), Arrays.asList(), person.assigned().toString(), false));
+        }
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("person 6", phone(6), "address 6", Arrays.asList(), "+12065550000", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        final LambdaHandler handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+
+        // Between the leave reading the group and committing, a join splices person 6 in after the
+        // leaver: 3 -> 6 -> 4. Only the rows of 3 and 6 change, none the leave writes.
+        fakeDynamoClient.beforeOperation = op -> {
+            if("TransactWriteItems".equals(op)) {
+                fakeDynamoClient.beforeOperation = o -> {};
+                final List<SecretSnowmanState> givers = Arrays.asList(
+                        SecretSnowmanState.from(fakeDynamoClient.get(TABLE, phone(3))),
+                        SecretSnowmanState.from(fakeDynamoClient.get(TABLE, phone(6))));
+                final List<SecretSnowmanState> recipients = Arrays.asList(givers.get(1), SecretSnowmanState.from(fakeDynamoClient.get(TABLE, phone(4))));
+                new AssignmentCommitter(fakeDynamoClient).commitSplice(TABLE, givers, recipients, Collections.emptyList());
+            }
+        };
+
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", "%2B15555550000");
+        request.put("Body", "leave%2B" + phone(3).substring(1));
+        handler.handleRequest(request, mock(Context.class));
+
+        Assert.assertNull("the leaver's row is gone", fakeDynamoClient.get(TABLE, phone(3)));
+        final Set<String> recipients = new HashSet<>();
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertNotEquals("nobody buys for the leaver", phone(3), item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+            recipients.add(item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+        }
+        Assert.assertTrue("somebody still buys for the joiner", recipients.contains(phone(6)));
+        Assert.assertEquals("everybody left has a giver", 6, recipients.size());
+    }
+}
@@ -0,0 +1,88 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CommandRegistryTests {
+    static final String TABLE = "test-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+    LambdaHandler handler;
+
+    @Before
+    public void setup() {
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 2", "+15555550003", "address 2", Arrays.asList(), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 3", "+15555550004", "address 3", Arrays.asList(), "+15555550002", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+    }
+
+    private String text(final String from, final String body) {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", from);
+        request.put("Body", body);
+        return handler.handleRequest(request, mock(Context.class));
+    }
+
+    private static CommandRegistry registry() {
+        return new CommandRegistry()
+                .admin("no gifts", false, (group, rest) -> "no gifts")
+                .admin("gifts", false, (group, rest) -> "gifts")
+                .admin("resend", true, (group, rest) -> "resend")
+                .participant("menu", CommandRegistry.Needs.NOTHING, null, (key, sender, recipient) -> "menu");
+    }
+
+    @Test
+    public void testMatch() {
+        final CommandRegistry registry = registry();
+
+        Assert.assertEquals("no gifts", registry.match("no gifts").command().name());
+        Assert.assertEquals("", registry.match("no gifts").arguments());
+
+        final CommandRegistry.Match grouped = registry.match("no gifts work party");
+        Assert.assertEquals("longest run of words wins", "no gifts", grouped.command().name());
+        Assert.assertEquals("work party", grouped.arguments());
+
+        final CommandRegistry.Match resend = registry.match("resend+15555550003");
+        Assert.assertEquals("argument can follow without a space", "resend", resend.command().name());
+        Assert.assertEquals("+15555550003", resend.arguments());
+
+        Assert.assertNull("only commands taking arguments run on", registry.match("menu+1"));
+        Assert.assertNull(registry.match("gifted"));
+        Assert.assertNull(registry.get("no gifts work party"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateCommand() {
+        registry().participant("gifts", CommandRegistry.Needs.NOTHING, null, (key, sender, recipient) -> "again");
+    }
+
+    @Test
+    public void testOnlyDeclaredReadsAreMade() {
+        text("%2B15555550002", "menu");
+        Assert.assertEquals("menu reads nothing", 0, fakeDynamoClient.calls("GetItem"));
+
+        text("%2B15555550002", "what");
+        Assert.assertEquals("an unknown text reads nothing", 0, fakeDynamoClient.calls("GetItem"));
+
+        text("%2B15555550002", "assignment");
+        Assert.assertTrue("assignment reads the sender", fakeDynamoClient.calls("GetItem") > 0);
+    }
+
+    @Test
+    public void testMenuFromStranger() {
+        Assert.assertTrue("menu does not need a row", text("%2B15555559999", "menu").contains("here to help"));
+    }
+}
@@ -0,0 +1,49 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConcurrencyLimiterTests {
+    @Test
+    public void testHoldsRequestsOverTheLimit() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 2);
+        Assert.assertTrue(limiter.acquire(0));
+        Assert.assertTrue(limiter.acquire(0));
+        Assert.assertFalse("full", limiter.acquire(10));
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final Thread waiter = Thread.ofVirtual().start(() -> {
+            waiting.countDown();
+            try {
+                acquired.set(limiter.acquire(10_000));
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.await();
+        limiter.release(false);
+        waiter.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertTrue("a released slot goes to the waiter", acquired.get());
+        Assert.assertEquals(2, limiter.inFlight());
+    }
+
+    @Test
+    public void testHalvesOnThrottlingAndGrowsBack() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 16);
+        for(final int expected : new int[] { 8, 4, 2, 2 }) {
+            limiter.acquire(0);
+            limiter.release(true);
+            Assert.assertEquals(expected, limiter.limit());
+        }
+
+        for(int i = 0; i < 1000; i++) {
+            limiter.acquire(0);
+            limiter.release(false);
+        }
+        Assert.assertEquals("back to the most allowed", 16, limiter.limit());
+    }
+}
@@ -0,0 +1,102 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static java.util.Collections.singletonMap;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class DynamoScannerTests {
+    static final String TABLE = "test-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+
+    @Before
+    public void load() {
+        for(int i = 0; i < 25; i++) {
+            final Map<String, AttributeValue> item = LambdaTests.makeItem(
+                    "person " + i,
+                    AssignmentEngineTests.phone(i),
+                    "address " + i,
+                    Arrays.asList(),
+                    AssignmentEngineTests.phone((i + 1) % 25),
+                    i % 5 == 0);
+            item.put("notes", AttributeValue.builder().s("not needed for replies").build());
+            fakeDynamoClient.put(TABLE, item);
+        }
+        fakeDynamoClient.pageSize = 4;
+    }
+
+    @Test
+    public void testFollowsEveryPage() {
+        final List<Map<String, AttributeValue>> items =
+                DynamoScanner.items(fakeDynamoClient, DynamoScanner.stateScan(TABLE).build()).collect(Collectors.toList());
+
+        Assert.assertEquals("every item is returned", 25, items.size());
+        Assert.assertEquals("seven pages of four", 7, fakeDynamoClient.calls("Scan"));
+    }
+
+    @Test
+    public void testPagesAreFetchedLazily() {
+        final List<Map<String, AttributeValue>> items = DynamoScanner.items(fakeDynamoClient, DynamoScanner.stateScan(TABLE).build())
+                .limit(5)
+                .collect(Collectors.toList());
+
+        Assert.assertEquals("five items", 5, items.size());
+        Assert.assertEquals("only the pages needed are read", 2, fakeDynamoClient.calls("Scan"));
+    }
+
+    @Test
+    public void testParallelSegmentsCoverTheTable() {
+        final Set<String> phones = DynamoScanner.items(fakeDynamoClient, DynamoScanner.stateScan(TABLE).build(), 4)
+                .map(item -> item.get(SecretSnowmanState.PHONE_NUMBER_KEY).s())
+                .collect(Collectors.toSet());
+
+        Assert.assertEquals("every item is returned exactly once", 25, phones.size());
+    }
+
+    @Test
+    public void testProjectionAndFilterArePushedDown() {
+        final ScanRequest scan = DynamoScanner.stateScan(
+                TABLE,
+                "#giftPurchased = :tf",
+                singletonMap("#giftPurchased", SecretSnowmanState.GIFT_PURCHASE_KEY),
+                singletonMap(":tf", AttributeValue.builder().bool(true).build())).build();
+
+        final List<Map<String, AttributeValue>> items = DynamoScanner.items(fakeDynamoClient, scan).collect(Collectors.toList());
+
+        Assert.assertEquals("only people who bought a gift", 5, items.size());
+        for(final Map<String, AttributeValue> item : items) {
+            Assert.assertFalse("unneeded attributes are not read", item.containsKey("notes"));
+            Assert.assertTrue("state attributes are read", item.containsKey(SecretSnowmanState.GIFT_GIVER_NAME_KEY));
+        }
+    }
+
+    @Test
+    public void testNoGiftsListsEveryPage() {
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        final LambdaHandler handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", "%2B15555550000");
+        request.put("Body", "no+gifts");
+        final String response = handler.handleRequest(request, mock(Context.class));
+
+        for(int i = 0; i < 25; i++) {
+            Assert.assertEquals("person " + i + " is listed only without a gift", i % 5 != 0, response.contains("person " + i + " ("));
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package net.eflan.projects.secretsnowman;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.TableDescription;
+import software.amazon.awssdk.services.dynamodb.model.TableStatus;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateTimeToLiveRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateTimeToLiveResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+// In-memory stand-in for DynamoDB covering the subset of the API and expression syntax this project
+// uses. Every call is counted by operation name, and beforeOperation can inject latency or failures.
+public class FakeDynamoDbClient implements DynamoDbClient {
+    private final List<String> keyNames;
+    private final Map<String, TreeMap<String, Map<String, AttributeValue>>> tables = new HashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final Map<String, CreateTableRequest> created = new ConcurrentHashMap<>();
+    private final Map<String, String> timeToLive = new ConcurrentHashMap<>();
+    private final AtomicInteger itemsRead = new AtomicInteger();
+
+    public volatile int pageSize = Integer.MAX_VALUE;
+    public volatile Consumer<String> beforeOperation = op -> {};
+
+    public FakeDynamoDbClient() {
+        this(SecretSnowmanState.PRIMARY_KEY);
+    }
+
+    public FakeDynamoDbClient(final String... keyNames) {
+        this.keyNames = Arrays.asList(keyNames);
+    }
+
+    @Override
+    public String serviceName() {
+        return "dynamodb";
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public int calls(final String operation) {
+        final AtomicInteger count = this.calls.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    public int totalCalls() {
+        return this.calls.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    // Items a scan or query evaluated, which is what DynamoDB charges reads for
+    public int itemsRead() {
+        return this.itemsRead.get();
+    }
+
+    public void resetCalls() {
+        this.calls.clear();
+        this.itemsRead.set(0);
+    }
+
+    public CreateTableRequest created(final String tableName) {
+        return this.created.get(tableName);
+    }
+
+    public synchronized void put(final String tableName, final Map<String, AttributeValue> item) {
+        table(tableName).put(keyOf(item), new HashMap<>(item));
+    }
+
+    public synchronized Map<String, AttributeValue> get(final String tableName, final String... keyValues) {
+        return table(tableName).get(String.join("|", keyValues));
+    }
+
+    public synchronized List<Map<String, AttributeValue>> items(final String tableName) {
+        return new ArrayList<>(table(tableName).values());
+    }
+
+    // Behaves like a remote table under load: every call takes latencyMillis, and calls beyond
+    // capacityPerSecond (after a burst of one second's worth) are throttled the way DynamoDB
+    // throttles, with ProvisionedThroughputExceededException. A capacity of 0 never throttles.
+    public void simulate(final long latencyMillis, final double capacityPerSecond) {
+        final TokenBucket capacity = capacityPerSecond > 0 ? new TokenBucket(capacityPerSecond, capacityPerSecond) : null;
+        this.beforeOperation = op -> {
+            if(capacity != null && !capacity.tryAcquire()) {
+                throw ProvisionedThroughputExceededException.builder()
+                        .message(op + ": the level of configured provisioned throughput for the table was exceeded")
+                        .statusCode(400)
+                        .build();
+            }
+            if(latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private void record(final String operation) {
+        this.calls.computeIfAbsent(operation, o -> new AtomicInteger()).incrementAndGet();
+        this.beforeOperation.accept(operation);
+    }
+
+    private TreeMap<String, Map<String, AttributeValue>> table(final String tableName) {
+        return this.tables.computeIfAbsent(tableName, t -> new TreeMap<>());
+    }
+
+    private String keyOf(final Map<String, AttributeValue> item) {
+        return this.keyNames.stream()
+                .filter(item::containsKey)
+                .map(k -> item.get(k).s())
+                .collect(Collectors.joining("|"));
+    }
+
+    // Tables are created already active
+    @Override
+    public CreateTableResponse createTable(final CreateTableRequest request) {
+        record("CreateTable");
+        this.created.put(request.tableName(), request);
+        return CreateTableResponse.builder().tableDescription(describe(request.tableName())).build();
+    }
+
+    @Override
+    public DescribeTableResponse describeTable(final DescribeTableRequest request) {
+        record("DescribeTable");
+        return DescribeTableResponse.builder().table(describe(request.tableName())).build();
+    }
+
+    // Expired items are not deleted, as DynamoDB may take a while to get to them too
+    @Override
+    public UpdateTimeToLiveResponse updateTimeToLive(final UpdateTimeToLiveRequest request) {
+        record("UpdateTimeToLive");
+        this.timeToLive.put(request.tableName(), request.timeToLiveSpecification().attributeName());
+        return UpdateTimeToLiveResponse.builder().timeToLiveSpecification(request.timeToLiveSpecification()).build();
+    }
+
+    public String timeToLiveAttribute(final String tableName) {
+        return this.timeToLive.get(tableName);
+    }
+
+    private static TableDescription describe(final String tableName) {
+        return TableDescription.builder().tableName(tableName).tableStatus(TableStatus.ACTIVE).build();
+    }
+
+    @Override
+    public GetItemResponse getItem(final GetItemRequest request) {
+        record("GetItem");
+        synchronized(this) {
+            final Map<String, AttributeValue> item = table(request.tableName()).get(keyOf(request.key()));
+            return GetItemResponse.builder().item(item == null ? null : project(item, request.projectionExpression(), request.expressionAttributeNames())).build();
+        }
+    }
+
+    @Override
+    public PutItemResponse putItem(final PutItemRequest request) {
+        record("PutItem");
+        synchronized(this) {
+            final Map<String, AttributeValue> existing = table(request.tableName()).get(keyOf(request.item()));
+            if(!Expressions.matches(request.conditionExpression(), existing, request.expressionAttributeNames(), request.expressionAttributeValues())) {
+                throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+            }
+            table(request.tableName()).put(keyOf(request.item()), new HashMap<>(request.item()));
+            return PutItemResponse.builder().build();
+        }
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(final UpdateItemRequest request) {
+        record("UpdateItem");
+        synchronized(this) {
+            final Map<String, AttributeValue> updated = update(
+                    request.tableName(),
+                    request.key(),
+                    request.updateExpression(),
+                    request.conditionExpression(),
+                    request.expressionAttributeNames(),
+                    request.expressionAttributeValues());
+
+            if(updated == null) {
+                throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+            }
+
+            final UpdateItemResponse.Builder response = UpdateItemResponse.builder();
+            if(request.returnValues() == ReturnValue.ALL_NEW) {
+                response.attributes(new HashMap<>(updated));
+            }
+            return response.build();
+        }
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(final DeleteItemRequest request) {
+        record("DeleteItem");
+        synchronized(this) {
+            final Map<String, AttributeValue> existing = table(request.tableName()).get(keyOf(request.key()));
+            if(!Expressions.matches(request.conditionExpression(), existing, request.expressionAttributeNames(), request.expressionAttributeValues())) {
+                throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+            }
+            table(request.tableName()).remove(keyOf(request.key()));
+            return DeleteItemResponse.builder().build();
+        }
+    }
+
+    @Override
+    public TransactWriteItemsResponse transactWriteItems(final TransactWriteItemsRequest request) {
+        record("TransactWriteItems");
+        synchronized(this) {
+            // Check every condition first so the transaction is all-or-nothing
+            final List<CancellationReason> reasons = new ArrayList<>();
+            boolean cancelled = false;
+            for(final TransactWriteItem item : request.transactItems()) {
+                final boolean ok = transactConditionHolds(item);
+                cancelled |= !ok;
+                reasons.add(CancellationReason.builder().code(ok ? "None" : "ConditionalCheckFailed").build());
+            }
+
+            if(cancelled) {
+                throw TransactionCanceledException.builder()
+                        .message("Transaction cancelled")
+                        .cancellationReasons(reasons)
+                        .build();
+            }
+
+            for(final TransactWriteItem item : request.transactItems()) {
+                if(item.put() != null) {
+                    table(item.put().tableName()).put(keyOf(item.put().item()), new HashMap<>(item.put().item()));
+                } else if(item.update() != null) {
+                    update(item.update().tableName(),
+                            item.update().key(),
+                            item.update().updateExpression(),
+                            null,
+                            item.update().expressionAttributeNames(),
+                            item.update().expressionAttributeValues());
+                } else if(item.delete() != null) {
+                    table(item.delete().tableName()).remove(keyOf(item.delete().key()));
+                }
+            }
+
+            return TransactWriteItemsResponse.builder().build();
+        }
+    }
+
+    private boolean transactConditionHolds(final TransactWriteItem item) {
+        if(item.put() != null) {
+            return Expressions.matches(item.put().conditionExpression(),
+                    table(item.put().tableName()).get(keyOf(item.put().item())),
+                    item.put().expressionAttributeNames(), item.put().expressionAttributeValues());
+        } else if(item.update() != null) {
+            return Expressions.matches(item.update().conditionExpression(),
+                    table(item.update().tableName()).get(keyOf(item.update().key())),
+                    item.update().expressionAttributeNames(), item.update().expressionAttributeValues());
+        } else if(item.delete() != null) {
+            return Expressions.matches(item.delete().conditionExpression(),
+                    table(item.delete().tableName()).get(keyOf(item.delete().key())),
+                    item.delete().expressionAttributeNames(), item.delete().expressionAttributeValues());
+        } else if(item.conditionCheck() != null) {
+            return Expressions.matches(item.conditionCheck().conditionExpression(),
+                    table(item.conditionCheck().tableName()).get(keyOf(item.conditionCheck().key())),
+                    item.conditionCheck().expressionAttributeNames(), item.conditionCheck().expressionAttributeValues());
+        }
+        return true;
+    }
+
+    @Override
+    public BatchWriteItemResponse batchWriteItem(final BatchWriteItemRequest request) {
+        record("BatchWriteItem");
+        synchronized(this) {
+            for(final Map.Entry<String, List<WriteRequest>> entry : request.requestItems().entrySet()) {
+                for(final WriteRequest write : entry.getValue()) {
+                    if(write.putRequest() != null) {
+                        table(entry.getKey()).put(keyOf(write.putRequest().item()), new HashMap<>(write.putRequest().item()));
+                    } else if(write.deleteRequest() != null) {
+                        table(entry.getKey()).remove(keyOf(write.deleteRequest().key()));
+                    }
+                }
+            }
+            return BatchWriteItemResponse.builder().build();
+        }
+    }
+
+    @Override
+    public ScanResponse scan(final ScanRequest request) {
+        record("Scan");
+        synchronized(this) {
+            final List<Map<String, AttributeValue>> matching = new ArrayList<>();
+            final Map<String, AttributeValue> last = page(
+                    table(request.tableName()),
+                    request.exclusiveStartKey(),
+                    request.limit(),
+                    item -> (request.totalSegments() == null
+                                || Math.floorMod(keyOf(item).hashCode(), request.totalSegments()) == request.segment()),
+                    item -> Expressions.matches(request.filterExpression(), item, request.expressionAttributeNames(), request.expressionAttributeValues()),
+                    request.projectionExpression(),
+                    request.expressionAttributeNames(),
+                    matching);
+
+            return ScanResponse.builder()
+                    .items(matching)
+                    .count(matching.size())
+                    .lastEvaluatedKey(last)
+                    .build();
+        }
+    }
+
+    @Override
+    public QueryResponse query(final QueryRequest request) {
+        record("Query");
+        synchronized(this) {
+            final List<Map<String, AttributeValue>> matching = new ArrayList<>();
+            final Map<String, AttributeValue> last = page(
+                    table(request.tableName()),
+                    request.exclusiveStartKey(),
+                    request.limit(),
+                    item -> Expressions.matches(request.keyConditionExpression(), item, request.expressionAttributeNames(), request.expressionAttributeValues()),
+                    item -> Expressions.matches(request.filterExpression(), item, request.expressionAttributeNames(), request.expressionAttributeValues()),
+                    request.projectionExpression(),
+                    request.expressionAttributeNames(),
+                    matching);
+
+            return QueryResponse.builder()
+                    .items(matching)
+                    .count(matching.size())
+                    .lastEvaluatedKey(last)
+                    .build();
+        }
+    }
+
+    // Reads up to limit (or pageSize) candidate items after the start key. Like DynamoDB, the limit
+    // applies before the filter, so a page can come back with fewer items than it evaluated.
+    private Map<String, AttributeValue> page(
+            final TreeMap<String, Map<String, AttributeValue>> table,
+            final Map<String, AttributeValue> exclusiveStartKey,
+            final Integer limit,
+            final Predicate<Map<String, AttributeValue>> candidate,
+            final Predicate<Map<String, AttributeValue>> filter,
+            final String projection,
+            final Map<String, String> names,
+            final List<Map<String, AttributeValue>> out) {
+
+        final int max = Math.min(this.pageSize, limit == null ? Integer.MAX_VALUE : limit);
+        final Map<String, Map<String, AttributeValue>> rest = (exclusiveStartKey == null || exclusiveStartKey.isEmpty())
+                ? table
+                : table.tailMap(keyOf(exclusiveStartKey), false);
+
+        int evaluated = 0;
+        Map<String, AttributeValue> lastEvaluated = null;
+        for(final Map<String, AttributeValue> item : rest.values()) {
+            if(!candidate.test(item)) {
+                continue;
+            }
+            if(evaluated == max) {
+                // More items remain, so hand back where this page stopped
+                final Map<String, AttributeValue> key = new HashMap<>();
+                for(final String name : this.keyNames) {
+                    if(lastEvaluated.containsKey(name)) {
+                        key.put(name, lastEvaluated.get(name));
+                    }
+                }
+                return key;
+            }
+            evaluated++;
+            this.itemsRead.incrementAndGet();
+            lastEvaluated = item;
+            if(filter.test(item)) {
+                out.add(project(item, projection, names));
+            }
+        }
+
+        return null;
+    }
+
+    private static Map<String, AttributeValue> project(
+            final Map<String, AttributeValue> item,
+            final String projection,
+            final Map<String, String> names) {
+
+        if(projection == null) {
+            return new HashMap<>(item);
+        }
+
+        final Map<String, AttributeValue> projected = new HashMap<>();
+        for(final String raw : projection.split(",")) {
+            final String name = Expressions.name(raw.trim(), names);
+            if(item.containsKey(name)) {
+                projected.put(name, item.get(name));
+            }
+        }
+        return projected;
+    }
+
+    private Map<String, AttributeValue> update(
+            final String tableName,
+            final Map<String, AttributeValue> key,
+            final String updateExpression,
+            final String conditionExpression,
+            final Map<String, String> names,
+            final Map<String, AttributeValue> values) {
+
+        final TreeMap<String, Map<String, AttributeValue>> table = table(tableName);
+        final Map<String, AttributeValue> existing = table.get(keyOf(key));
+        if(!Expressions.matches(conditionExpression, existing, names, values)) {
+            return null;
+        }
+
+        final Map<String, AttributeValue> item = existing == null ? new HashMap<>(key) : new HashMap<>(existing);
+        Expressions.apply(updateExpression, item, names, values);
+        table.put(keyOf(key), item);
+        return item;
+    }
+
+    // Tiny evaluator for the update, condition and filter expressions used by this project:
+    // SET a = :v, a = a + :v, a = if_not_exists(a, :v); REMOVE a; and conditions made of
+    // comparisons and attribute_exists / attribute_not_exists joined by AND / OR.
+    static class Expressions {
+        private static final Pattern CLAUSE = Pattern.compile("(?i)(?:^|\\s)(set|remove)\\s+");
+
+        static String name(final String token, final Map<String, String> names) {
+            return token.startsWith("#") ? names.get(token) : token;
+        }
+
+        static AttributeValue operand(
+                final String token,
+                final Map<String, AttributeValue> item,
+                final Map<String, String> names,
+                final Map<String, AttributeValue> values) {
+
+            final String t = token.trim();
+            if(t.startsWith(":")) {
+                return values.get(t);
+            }
+            if(t.startsWith("if_not_exists(")) {
+                final String[] args = t.substring("if_not_exists(".length(), t.length() - 1).split(",");
+                final AttributeValue current = item.get(name(args[0].trim(), names));
+                return current != null ? current : operand(args[1], item, names, values);
+            }
+            return item.get(name(t, names));
+        }
+
+        static void apply(
+                final String expression,
+                final Map<String, AttributeValue> item,
+                final Map<String, String> names,
+                final Map<String, AttributeValue> values) {
+
+            final String trimmed = expression.trim();
+            final Matcher keyword = CLAUSE.matcher(trimmed);
+            final List<String> keywords = new ArrayList<>();
+            final List<int[]> bounds = new ArrayList<>();
+            while(keyword.find()) {
+                keywords.add(keyword.group(1).toLowerCase());
+                bounds.add(new int[] { keyword.start(1), keyword.end() });
+            }
+
+            for(int c = 0; c < keywords.size(); c++) {
+                final String clause = keywords.get(c);
+                final String body = trimmed.substring(bounds.get(c)[1], c + 1 < bounds.size() ? bounds.get(c + 1)[0] : trimmed.length());
+
+                for(final String action : splitTopLevel(body)) {
+                    if("remove".equals(clause)) {
+                        item.remove(name(action.trim(), names));
+                        continue;
+                    }
+
+                    final String[] sides = action.split("=", 2);
+                    final String target = name(sides[0].trim(), names);
+                    final String rhs = sides[1].trim();
+                    final int plus = rhs.indexOf(" + ");
+                    final int minus = rhs.indexOf(" - ");
+                    if(plus > 0 || minus > 0) {
+                        final int at = plus > 0 ? plus : minus;
+                        final BigDecimal left = new BigDecimal(operand(rhs.substring(0, at), item, names, values).n());
+                        final BigDecimal right = new BigDecimal(operand(rhs.substring(at + 3), item, names, values).n());
+                        item.put(target, AttributeValue.builder().n((plus > 0 ? left.add(right) : left.subtract(right)).toPlainString()).build());
+                    } else {
+                        item.put(target, operand(rhs, item, names, values));
+                    }
+                }
+            }
+        }
+
+        private static List<String> splitTopLevel(final String body) {
+            final List<String> parts = new ArrayList<>();
+            int depth = 0;
+            int start = 0;
+            for(int i = 0; i < body.length(); i++) {
+                final char c = body.charAt(i);
+                if(c == '(') depth++;
+                if(c == ')') depth--;
+                if(c == ',' && depth == 0) {
+                    parts.add(body.substring(start, i));
+                    start = i + 1;
+                }
+            }
+            parts.add(body.substring(start));
+            return parts;
+        }
+
+        static boolean matches(
+                final String expression,
+                final Map<String, AttributeValue> item,
+                final Map<String, String> names,
+                final Map<String, AttributeValue> values) {
+
+            if(expression == null || expression.trim().isEmpty()) {
+                return true;
+            }
+
+            final Map<String, AttributeValue> subject = item == null ? Collections.emptyMap() : item;
+            final String stripped = expression.trim().replaceAll("^\\((.*)\\)$", "$1");
+            for(final String disjunct : stripped.split("(?i)\\s+OR\\s+")) {
+                boolean all = true;
+                for(final String conjunct : disjunct.split("(?i)\\s+AND\\s+")) {
+                    all &= clause(conjunct.trim().replaceAll("^\\(|\\)$", "").trim(), subject, names, values);
+                }
+                if(all) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean clause(
+                final String clause,
+                final Map<String, AttributeValue> item,
+                final Map<String, String> names,
+                final Map<String, AttributeValue> values) {
+
+            if(clause.startsWith("attribute_exists(")) {
+                return item.containsKey(name(clause.substring("attribute_exists(".length()).replace(")", "").trim(), names));
+            }
+            if(clause.startsWith("attribute_not_exists(")) {
+                return !item.containsKey(name(clause.substring("attribute_not_exists(".length()).replace(")", "").trim(), names));
+            }
+
+            for(final String op : new String[] { "<>", "<=", ">=", "=", "<", ">" }) {
+                final int at = clause.indexOf(op);
+                if(at > 0) {
+                    final AttributeValue left = operand(clause.substring(0, at), item, names, values);
+                    final AttributeValue right = operand(clause.substring(at + op.length()), item, names, values);
+                    final int cmp = compare(left, right);
+                    switch(op) {
+                        case "<>": return cmp != 0;
+                        case "<=": return cmp != Integer.MIN_VALUE && cmp <= 0;
+                        case ">=": return cmp != Integer.MIN_VALUE && cmp >= 0;
+                        case "=": return cmp == 0;
+                        case "<": return cmp != Integer.MIN_VALUE && cmp < 0;
+                        default: return cmp != Integer.MIN_VALUE && cmp > 0;
+                    }
+                }
+            }
+
+            throw new IllegalArgumentException("Unsupported expression: " + clause);
+        }
+
+        // Integer.MIN_VALUE means the two sides cannot be compared (missing or different types)
+        private static int compare(final AttributeValue left, final AttributeValue right) {
+            if(left == null || right == null) {
+                return Integer.MIN_VALUE;
+            }
+            if(left.n() != null && right.n() != null) {
+                return new BigDecimal(left.n()).compareTo(new BigDecimal(right.n()));
+            }
+            if(left.s() != null && right.s() != null) {
+                return Integer.signum(left.s().compareTo(right.s()));
+            }
+            if(left.bool() != null && right.bool() != null) {
+                return left.bool().equals(right.bool()) ? 0 : Integer.MIN_VALUE;
+            }
+            return Integer.MIN_VALUE;
+        }
+    }
+}
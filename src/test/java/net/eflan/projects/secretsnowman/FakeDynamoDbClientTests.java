@@ -0,0 +1,87 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// The load driver's numbers are only as good as simulate(), so its latency and throttling are
+// checked here rather than through the handler.
+public class FakeDynamoDbClientTests {
+    private static final String TABLE = "table";
+
+    private FakeDynamoDbClient fakeDynamoClient;
+
+    @Before
+    public void setUp() {
+        fakeDynamoClient = new FakeDynamoDbClient("id");
+        fakeDynamoClient.put(TABLE, Collections.singletonMap("id", AttributeValue.builder().s("1").build()));
+    }
+
+    @Test
+    public void testEveryCallTakesTheSimulatedLatency() {
+        fakeDynamoClient.simulate(50, 0);
+        for(int i = 0; i < 3; i++) {
+            final long start = System.nanoTime();
+            Assert.assertFalse(get().item().isEmpty());
+            Assert.assertTrue("call " + i, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        }
+    }
+
+    @Test
+    public void testZeroCapacityNeverThrottles() {
+        fakeDynamoClient.simulate(0, 0);
+        for(int i = 0; i < 10_000; i++) {
+            get();
+        }
+        Assert.assertEquals(10_000, fakeDynamoClient.calls("GetItem"));
+    }
+
+    @Test
+    public void testCallsPastTheBurstAreThrottled() {
+        fakeDynamoClient.simulate(0, 5);
+        for(int i = 0; i < 5; i++) {
+            get();
+        }
+        try {
+            get();
+            Assert.fail("a second's worth of calls has already gone out");
+        } catch(final ProvisionedThroughputExceededException e) {
+            Assert.assertEquals(400, e.statusCode());
+            Assert.assertTrue(e.getMessage().startsWith("GetItem"));
+        }
+    }
+
+    @Test
+    public void testThrottledCallsRefillAtTheCapacityRate() throws InterruptedException {
+        fakeDynamoClient.simulate(0, 5);
+        Assert.assertEquals("the burst", 5, burst());
+
+        // 400ms at 5 calls a second refills two calls; the upper bound leaves room for a slow sleep
+        Thread.sleep(400);
+        final int refilled = burst();
+        Assert.assertTrue("refilled " + refilled, refilled >= 2 && refilled < 5);
+    }
+
+    // Calls until one is throttled and returns how many got through
+    private int burst() {
+        for(int calls = 0; ; calls++) {
+            try {
+                get();
+            } catch(final ProvisionedThroughputExceededException e) {
+                return calls;
+            }
+        }
+    }
+
+    private GetItemResponse get() {
+        return fakeDynamoClient.getItem(GetItemRequest.builder()
+                .tableName(TABLE)
+                .key(Collections.singletonMap("id", AttributeValue.builder().s("1").build()))
+                .build());
+    }
+}
@@ -0,0 +1,131 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class FeasibilityAnalyzerTests {
+    static final String TABLE = "test-table";
+
+    private static SecretSnowmanState person(final int i, final Integer... cannot) {
+        final List<String> phones = new ArrayList<>();
+        for(final int j : cannot) {
+            phones.add(AssignmentEngineTests.phone(j));
+        }
+        return SecretSnowmanState.from(LambdaTests.makeItem(
+                "person " + i, AssignmentEngineTests.phone(i), "address " + i, phones, "+12065550000", false));
+    }
+
+    private static List<String> names(final List<SecretSnowmanState> people) {
+        return people.stream().map(SecretSnowmanState::name).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testFeasibleDraws() {
+        Assert.assertTrue(FeasibilityAnalyzer.analyze(new ParticipantRoster(Arrays.asList(person(0), person(1)))).feasible());
+        for(final int count : new int[] { 10, 101, 2000 }) {
+            final FeasibilityAnalyzer.Diagnosis diagnosis =
+                    FeasibilityAnalyzer.analyze(new ParticipantRoster(AssignmentEngineTests.makePeople(count, 4)));
+            Assert.assertTrue("feasible for " + count, diagnosis.feasible());
+            Assert.assertTrue(diagnosis.blocking().isEmpty());
+        }
+    }
+
+    @Test
+    public void testTooFew() {
+        final FeasibilityAnalyzer.Diagnosis diagnosis =
+                FeasibilityAnalyzer.analyze(new ParticipantRoster(Collections.singletonList(person(0))));
+        Assert.assertEquals(FeasibilityAnalyzer.Problem.TOO_FEW, diagnosis.problem());
+    }
+
+    @Test
+    public void testNobodyToBuyFor() {
+        final FeasibilityAnalyzer.Diagnosis diagnosis = FeasibilityAnalyzer.analyze(new ParticipantRoster(Arrays.asList(
+                person(0), person(1, 0, 2, 3), person(2), person(3))));
+        Assert.assertEquals(FeasibilityAnalyzer.Problem.NOBODY_TO_BUY_FOR, diagnosis.problem());
+        Assert.assertEquals(Arrays.asList("person 1"), names(diagnosis.blocking()));
+        Assert.assertEquals("\u2744No draw is possible: person 1 can't buy for anybody.\u2744", FeasibilityAnalyzer.describe(diagnosis, 4));
+    }
+
+    @Test
+    public void testNobodyToBuyFrom() {
+        final FeasibilityAnalyzer.Diagnosis diagnosis = FeasibilityAnalyzer.analyze(new ParticipantRoster(Arrays.asList(
+                person(0, 3), person(1, 3), person(2, 3), person(3))));
+        Assert.assertEquals(FeasibilityAnalyzer.Problem.NOBODY_TO_BUY_FROM, diagnosis.problem());
+        Assert.assertEquals(Arrays.asList("person 3"), names(diagnosis.blocking()));
+    }
+
+    @Test
+    public void testTooManyGiversForTooFewRecipients() {
+        // 0, 1 and 2 can only buy for 3, so two of them are always left out
+        final FeasibilityAnalyzer.Diagnosis diagnosis = FeasibilityAnalyzer.analyze(new ParticipantRoster(Arrays.asList(
+                person(0, 1, 2, 4), person(1, 0, 2, 4), person(2, 0, 1, 4), person(3), person(4))));
+        Assert.assertEquals(FeasibilityAnalyzer.Problem.NOT_ENOUGH_RECIPIENTS, diagnosis.problem());
+        Assert.assertEquals(Arrays.asList("person 3"), names(diagnosis.only()));
+        Assert.assertTrue("more givers than recipients", diagnosis.blocking().size() > diagnosis.only().size());
+        Assert.assertTrue(Arrays.asList("person 0", "person 1", "person 2").containsAll(names(diagnosis.blocking())));
+        Assert.assertTrue(FeasibilityAnalyzer.describe(diagnosis, 5).endsWith("can only buy for person 3 between them.\u2744"));
+    }
+
+    @Test
+    public void testGroupsThatCantMix() {
+        // 0 and 1 only buy for each other, and the rest only for each other
+        final FeasibilityAnalyzer.Diagnosis diagnosis = FeasibilityAnalyzer.analyze(new ParticipantRoster(Arrays.asList(
+                person(0, 2, 3, 4, 5), person(1, 2, 3, 4, 5),
+                person(2, 0, 1), person(3, 0, 1), person(4, 0, 1), person(5, 0, 1))));
+        Assert.assertEquals(FeasibilityAnalyzer.Problem.SPLIT, diagnosis.problem());
+        Assert.assertEquals("the smaller group is named", Arrays.asList("person 0", "person 1"), names(diagnosis.blocking()));
+        Assert.assertEquals(
+                "\u2744No draw is possible: person 0 and person 1 can't be joined into one circle with everybody else.\u2744",
+                FeasibilityAnalyzer.describe(diagnosis, 6));
+    }
+
+    @Test
+    public void testOneWayIntoAGroupIsNotEnough() {
+        // Everybody can buy for 0 and 1, but they can only buy for each other
+        final FeasibilityAnalyzer.Diagnosis diagnosis = FeasibilityAnalyzer.analyze(new ParticipantRoster(Arrays.asList(
+                person(0, 2, 3, 4), person(1, 2, 3, 4), person(2), person(3), person(4))));
+        Assert.assertFalse(diagnosis.feasible());
+        Assert.assertTrue(names(diagnosis.blocking()).containsAll(Arrays.asList("person 0", "person 1")));
+    }
+
+    @Test
+    public void testAdminCommandAndDraw() {
+        final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList("+15555550003", "+15555550004"), "+15555550003", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 2", "+15555550003", "address 2", Arrays.asList(), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 3", "+15555550004", "address 3", Arrays.asList(), "+15555550002", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        final LambdaHandler handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", "%2B15555550000");
+        request.put("Body", "check");
+        final String expected = LambdaHandler.toTWIML("\u2744No draw is possible: unit test name 1 can't buy for anybody.\u2744");
+        Assert.assertEquals(expected, handler.handleRequest(request, mock(Context.class)));
+
+        request.put("Body", "assign+gifts");
+        Assert.assertEquals("the draw gives the same reason", expected, handler.handleRequest(request, mock(Context.class)));
+        Assert.assertEquals("nobody was texted or written", 0, fakeDynamoClient.calls("TransactWriteItems") + fakeDynamoClient.calls("UpdateItem"));
+
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", false));
+        request.put("Body", "check");
+        Assert.assertEquals(
+                LambdaHandler.toTWIML("\u2744A draw is possible for all 3 participants.\u2744"),
+                handler.handleRequest(request, mock(Context.class)));
+    }
+}
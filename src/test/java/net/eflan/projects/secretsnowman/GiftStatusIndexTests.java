@@ -0,0 +1,133 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.GlobalSecondaryIndex;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class GiftStatusIndexTests {
+    static final String TABLE = "test-table";
+    static final String ADMIN = "+15555550000";
+    static final int PLAYERS = 40;
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+    LambdaHandler handler;
+
+    private void put(final int i, final boolean gifted, final boolean withStatus) {
+        final Map<String, AttributeValue> item = LambdaTests.makeItem(
+                "player " + i, AssignmentEngineTests.phone(i), "address " + i, Arrays.asList(), AssignmentEngineTests.phone(i + 1), gifted);
+        if(withStatus) {
+            item.put(SecretSnowmanState.GIFT_STATUS_KEY, AttributeValue.builder().s(SecretSnowmanState.giftStatus(null, gifted)).build());
+        }
+        fakeDynamoClient.put(TABLE, item);
+    }
+
+    private LambdaHandler handler(final String giftStatusIndex) {
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenReturn(GetSecretValueResponse.builder()
+                .secretString("{ \"TwilioAccountSID\":\"foo\", " +
+                        "\"TwilioAccountSecret\":\"bar\", " +
+                        "\"StateDynamoTable\":\"" + TABLE + "\", " +
+                        (giftStatusIndex == null ? "" : "\"GiftStatusIndex\":\"" + giftStatusIndex + "\", ") +
+                        "\"AdminPhoneNumber\":\"" + ADMIN + "\", " +
+                        "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
+                .build());
+        return new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+    }
+
+    private String text(final String from, final String body) {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", from.replace("+", "%2B"));
+        request.put("Body", body.replace(' ', '+'));
+        return handler.handleRequest(request, mock(Context.class));
+    }
+
+    @Before
+    public void setup() {
+        // Only the first few players have bought their gift
+        for(int i = 0; i < PLAYERS; i++) {
+            put(i, i < 3, true);
+        }
+        handler = handler(TableSetup.GIFT_STATUS_INDEX);
+    }
+
+    @Test
+    public void testReportsReadOnlyMatchingRows() {
+        final String response = text(ADMIN, "gifts");
+
+        Assert.assertTrue("gifted players are listed", response.contains("player 0") && response.contains("player 2"));
+        Assert.assertFalse("others are not", response.contains("player 3"));
+        Assert.assertEquals("the table is not scanned", 0, fakeDynamoClient.calls("Scan"));
+        Assert.assertEquals("only the gifted rows are read", 3, fakeDynamoClient.itemsRead());
+    }
+
+    @Test
+    public void testReportsMatchTheScan() {
+        final String indexed = text(ADMIN, "no gifts");
+        handler = handler(null);
+        Assert.assertEquals("same report without the index", text(ADMIN, "no gifts"), indexed);
+    }
+
+    @Test
+    public void testGiftedKeepsStatusInStep() {
+        text(AssignmentEngineTests.phone(10), "gifted");
+        Assert.assertEquals(
+                "status follows the flag",
+                "gifted",
+                fakeDynamoClient.get(TABLE, AssignmentEngineTests.phone(10)).get(SecretSnowmanState.GIFT_STATUS_KEY).s());
+        Assert.assertTrue("report includes the new gift", text(ADMIN, "gifts").contains("player 10"));
+
+        text(AssignmentEngineTests.phone(10), "reset");
+        Assert.assertEquals(
+                "status is reset with the flag",
+                "pending",
+                fakeDynamoClient.get(TABLE, AssignmentEngineTests.phone(10)).get(SecretSnowmanState.GIFT_STATUS_KEY).s());
+    }
+
+    @Test
+    public void testStatusIsPrefixedWithTheGroup() {
+        Assert.assertEquals("single game", "pending", SecretSnowmanState.giftStatus(null, false));
+        Assert.assertEquals("several games", "family#gifted", SecretSnowmanState.giftStatus("family", true));
+    }
+
+    @Test
+    public void testCreateTableRequest() throws InterruptedException {
+        TableSetup.create(fakeDynamoClient, "new-table", true);
+
+        final CreateTableRequest request = fakeDynamoClient.created("new-table");
+        Assert.assertNotNull("table is created", request);
+        Assert.assertEquals("group is the partition key", SecretSnowmanState.GROUP_KEY, request.keySchema().stream()
+                .filter(k -> k.keyType() == KeyType.HASH).findFirst().get().attributeName());
+        Assert.assertEquals(
+                "both indexes are created",
+                Arrays.asList(GroupDirectory.PHONE_INDEX, TableSetup.GIFT_STATUS_INDEX),
+                request.globalSecondaryIndexes().stream().map(GlobalSecondaryIndex::indexName).collect(Collectors.toList()));
+
+        Assert.assertEquals("a single game has no phone number index", 1,
+                TableSetup.createTableRequest("single", false).globalSecondaryIndexes().size());
+    }
+
+    @Test
+    public void testBackfillSetsMissingStatus() {
+        put(1, true, false);
+        put(20, false, false);
+
+        Assert.assertEquals("rows without a status are updated", 2, TableSetup.backfillGiftStatus(fakeDynamoClient, TABLE));
+        Assert.assertEquals("gifted", fakeDynamoClient.get(TABLE, AssignmentEngineTests.phone(1)).get(SecretSnowmanState.GIFT_STATUS_KEY).s());
+        Assert.assertEquals("pending", fakeDynamoClient.get(TABLE, AssignmentEngineTests.phone(20)).get(SecretSnowmanState.GIFT_STATUS_KEY).s());
+        Assert.assertEquals("a second run has nothing to do", 0, TableSetup.backfillGiftStatus(fakeDynamoClient, TABLE));
+    }
+}
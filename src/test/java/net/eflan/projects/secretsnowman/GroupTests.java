@@ -0,0 +1,137 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GroupTests {
+    static final String TABLE = "test-table";
+    static final String FAMILY_ADMIN = "+15555550010";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient(SecretSnowmanState.GROUP_KEY, SecretSnowmanState.PHONE_NUMBER_KEY);
+    LambdaHandler handler;
+
+    private void put(final String group, final String name, final String phone, final String assigned, final boolean gifted) {
+        final Map<String, AttributeValue> item = LambdaTests.makeItem(name, phone, name + " address", Arrays.asList(), assigned, gifted);
+        item.put(SecretSnowmanState.GROUP_KEY, AttributeValue.builder().s(group).build());
+        fakeDynamoClient.put(TABLE, item);
+    }
+
+    @Before
+    public void setup() {
+        put("family", "family 1", "+15555550002", "+15555550003", true);
+        put("family", "family 2", "+15555550003", "+15555550004", false);
+        put("family", "family 3", "+15555550004", "+15555550002", false);
+        put("work", "work 1", "+15555550002", "+15555550005", false);
+        put("work", "work 2", "+15555550005", "+15555550006", false);
+        put("work", "work 3", "+15555550006", "+15555550002", false);
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenReturn(GetSecretValueResponse.builder()
+                .secretString("{ \"TwilioAccountSID\":\"foo\", " +
+                        "\"TwilioAccountSecret\":\"bar\", " +
+                        "\"StateDynamoTable\":\"" + TABLE + "\", " +
+                        "\"AdminPhoneNumber\":\"+15555550000\", " +
+                        "\"AdminGroups\":\"" + FAMILY_ADMIN + "=family;+15555550011=work\", " +
+                        "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
+                .build());
+        handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+    }
+
+    private String text(final String from, final String body) {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", from.replace("+", "%2B"));
+        request.put("Body", body.replace(' ', '+'));
+        return handler.handleRequest(request, mock(Context.class));
+    }
+
+    @Test
+    public void testAdminGroupsAreParsed() {
+        final Map<String, List<String>> groups = SecretSnowmanConfig.parseAdminGroups("+1 555 555 0010=Family, Book-Club;+15555550011=work");
+        Assert.assertEquals("groups are lower-cased", Arrays.asList("family", "book-club"), groups.get("+15555550010"));
+        Assert.assertEquals("each admin has its own groups", Arrays.asList("work"), groups.get("+15555550011"));
+        Assert.assertTrue("no groups without the key", SecretSnowmanConfig.parseAdminGroups(null).isEmpty());
+    }
+
+    @Test
+    public void testReportsQueryOnlyTheAdminsGroup() {
+        final String response = text(FAMILY_ADMIN, "no gifts");
+
+        Assert.assertTrue("group members are listed", response.contains("family 2") && response.contains("family 3"));
+        Assert.assertFalse("gifted members are not", response.contains("family 1"));
+        Assert.assertFalse("other groups are not", response.contains("work"));
+        Assert.assertEquals("the group is queried", 1, fakeDynamoClient.calls("Query"));
+        Assert.assertEquals("the table is not scanned", 0, fakeDynamoClient.calls("Scan"));
+    }
+
+    @Test
+    public void testAdminOfSeveralGroupsNamesOne() {
+        Assert.assertEquals(
+                "group is required",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.ADMIN_GROUP_FORMAT, "family, work")),
+                text("+15555550000", "gifts"));
+
+        final String response = text("+15555550000", "gifts work");
+        Assert.assertFalse("nobody in work has gifted", response.contains("family"));
+
+        text("+15555550000", "assign gifts work");
+        for(final String phone : Arrays.asList("+15555550002", "+15555550005", "+15555550006")) {
+            final String assigned = fakeDynamoClient.get(TABLE, "work", phone).get(SecretSnowmanState.ASSIGNED_KEY).s();
+            Assert.assertNotNull("assignment stays within the group", fakeDynamoClient.get(TABLE, "work", assigned));
+        }
+        Assert.assertEquals("other groups are untouched", "+15555550003",
+                fakeDynamoClient.get(TABLE, "family", "+15555550002").get(SecretSnowmanState.ASSIGNED_KEY).s());
+    }
+
+    @Test
+    public void testAdminCannotRunAnotherGroup() {
+        Assert.assertEquals(
+                "other groups are refused",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.NOT_YOUR_GROUP_FORMAT, "work", "family")),
+                text(FAMILY_ADMIN, "assign gifts work"));
+        Assert.assertEquals("nothing is written", 0, fakeDynamoClient.calls("TransactWriteItems"));
+    }
+
+    @Test
+    public void testSenderResolvesToTheirGroup() {
+        Assert.assertEquals(
+                "reply comes from the sender's only group",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.ASSIGNMENT_FORMAT, "work 3")),
+                text("+15555550005", "assignment"));
+    }
+
+    @Test
+    public void testSenderInSeveralGroupsNamesOne() {
+        Assert.assertEquals(
+                "sender is asked for the group",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.CHOOSE_GROUP_FORMAT, "family, work", "gifted", "family")),
+                text("+15555550002", "gifted"));
+
+        text("+15555550002", "gifted work");
+        Assert.assertTrue("the named group is updated",
+                fakeDynamoClient.get(TABLE, "work", "+15555550002").get(SecretSnowmanState.GIFT_PURCHASE_KEY).bool());
+        Assert.assertEquals(
+                "reply is for the named group",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.ASSIGNMENT_FORMAT, "work 2")),
+                text("+15555550002", "assignment work"));
+    }
+
+    @Test
+    public void testStrangersAreNotRecognized() {
+        Assert.assertEquals(
+                "unknown numbers get no game",
+                LambdaHandler.toTWIML(LambdaHandler.UNRECOGNIZED_MESSAGE),
+                text("+15555559999", "intro"));
+    }
+}
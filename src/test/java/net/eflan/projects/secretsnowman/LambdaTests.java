@@ -11,6 +11,8 @@ import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
 import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
 import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
@@ -52,13 +54,13 @@ public class LambdaTests {
         return item;
     }
 
-    private static final Answer<GetSecretValueResponse> getSecretValueResponse() {
+    static final Answer<GetSecretValueResponse> getSecretValueResponse() {
         return new Answer<GetSecretValueResponse>() {
             public GetSecretValueResponse answer(final InvocationOnMock invocation) {
                 return GetSecretValueResponse.builder()
                         .secretString("{ \"TwilioAccountSID\":\"foo\", " +
                                 "\"TwilioAccountSecret\":\"bar\", " +
-                                "\"SecretSnowmanTable\":\"test-table\", " +
+                                "\"StateDynamoTable\":\"test-table\", " +
                                 "\"AdminPhoneNumber\":\"+15555550000\", " +
                                 "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
                         .build();
@@ -84,6 +86,7 @@ public class LambdaTests {
                 false);
 
         when(mockDynamoClient.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder().item(item).build());
+        when(mockDynamoClient.updateItem(any(UpdateItemRequest.class))).thenReturn(UpdateItemResponse.builder().attributes(item).build());
 
         when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(getSecretValueResponse());
 
@@ -0,0 +1,238 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.*;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class MetricsTests {
+    static final String TABLE = "test-table";
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+    final List<String> lines = new ArrayList<>();
+    final Metrics metrics = new Metrics(lines::add, () -> 1234L);
+    LambdaHandler handler;
+
+    @Before
+    public void setup() {
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 2", "+15555550003", "address 2", Arrays.asList(), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 3", "+15555550004", "address 3", Arrays.asList(), "+15555550002", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient, metrics);
+    }
+
+    private JsonNode text(final String from, final String body) throws IOException {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", from);
+        request.put("Body", body);
+        final Context context = mock(Context.class);
+        when(context.getAwsRequestId()).thenReturn("request-" + lines.size());
+        handler.handleRequest(request, context);
+
+        return MAPPER.readTree(lines.get(lines.size() - 1));
+    }
+
+    private static List<String> metricNames(final JsonNode line) {
+        final List<String> names = new ArrayList<>();
+        for(final JsonNode metric : line.get("_aws").get("CloudWatchMetrics").get(0).get("Metrics")) {
+            names.add(metric.get("Name").asText());
+        }
+        return names;
+    }
+
+    @Test
+    public void testOneLinePerRequest() throws IOException {
+        final JsonNode first = text("%2B15555550002", "assignment");
+        Assert.assertEquals(1, lines.size());
+        Assert.assertEquals(Metrics.NAMESPACE, first.get("_aws").get("CloudWatchMetrics").get(0).get("Namespace").asText());
+        Assert.assertEquals(1234L, first.get("_aws").get("Timestamp").asLong());
+        Assert.assertEquals("assignment", first.get(Metrics.COMMAND_DIMENSION).asText());
+        Assert.assertEquals("request-0", first.get("RequestId").asText());
+        Assert.assertEquals("cold start", 1, first.get(Metrics.COLD_START).asInt());
+        Assert.assertEquals(1, first.get(Metrics.SECRETS_CACHE_MISSES).asInt());
+        Assert.assertTrue(first.get(Metrics.PARTICIPANT_CACHE_MISSES).asInt() > 0);
+        Assert.assertTrue(metricNames(first).contains(Metrics.LATENCY));
+
+        final JsonNode second = text("%2B15555550002", "assignment");
+        Assert.assertEquals("warm start", 0, second.get(Metrics.COLD_START).asInt());
+        Assert.assertEquals(0, second.get(Metrics.SECRETS_CACHE_MISSES).asInt());
+        Assert.assertTrue(second.get(Metrics.SECRETS_CACHE_HITS).asInt() > 0);
+        Assert.assertEquals(0, second.get(Metrics.PARTICIPANT_CACHE_MISSES).asInt());
+    }
+
+    @Test
+    public void testConcurrentRequestsCountTheirOwnCacheUse() throws Exception {
+        // The first text is held at its first read until a second one has run start to finish
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread[] held = new Thread[1];
+        fakeDynamoClient.beforeOperation = op -> {
+            if(Thread.currentThread() == held[0] && reading.getCount() > 0) {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        held[0] = Thread.ofVirtual().unstarted(() -> {
+            try {
+                text("%2B15555550002", "assignment");
+            } catch(final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        held[0].start();
+        reading.await();
+        final JsonNode second = text("%2B15555550003", "assignment");
+        release.countDown();
+        held[0].join();
+
+        final JsonNode first = MAPPER.readTree(lines.get(1));
+        Assert.assertEquals("cold start", 1, first.get(Metrics.COLD_START).asInt());
+        Assert.assertEquals("warm start", 0, second.get(Metrics.COLD_START).asInt());
+        Assert.assertEquals(1, first.get(Metrics.SECRETS_CACHE_MISSES).asInt());
+        Assert.assertEquals(0, second.get(Metrics.SECRETS_CACHE_MISSES).asInt());
+        // Both look up a sender and a recipient, and neither is counted the other's lookups
+        Assert.assertEquals(
+                second.get(Metrics.PARTICIPANT_CACHE_HITS).asInt() + second.get(Metrics.PARTICIPANT_CACHE_MISSES).asInt(),
+                first.get(Metrics.PARTICIPANT_CACHE_HITS).asInt() + first.get(Metrics.PARTICIPANT_CACHE_MISSES).asInt());
+    }
+
+    @Test
+    public void testTextsAndDrawAreTimed() throws IOException {
+        final JsonNode draw = text("%2B15555550000", "assign+gifts");
+        Assert.assertEquals("assign gifts", draw.get(Metrics.COMMAND_DIMENSION).asText());
+        Assert.assertEquals("one send per person", 3, draw.get(Metrics.TWILIO_SEND).size());
+        Assert.assertTrue(draw.get(Metrics.ASSIGNMENT_STEPS).asLong() > 0);
+    }
+
+    @Test
+    public void testFreeTextIsNotADimension() throws IOException {
+        Assert.assertEquals(Metrics.NO_COMMAND, text("%2B15555550002", "hello+there").get(Metrics.COMMAND_DIMENSION).asText());
+    }
+
+    @Test
+    public void testErrorsAreLogged() throws IOException {
+        fakeDynamoClient.beforeOperation = op -> { throw new IllegalStateException("table is gone"); };
+        try {
+            text("%2B15555550002", "gifted");
+            Assert.fail("the failure is passed on");
+        } catch(final RuntimeException e) {
+            final JsonNode line = MAPPER.readTree(lines.get(0));
+            Assert.assertEquals(1, line.get(Metrics.ERRORS).asInt());
+            Assert.assertEquals(e.toString(), line.get("Error").asText());
+        }
+    }
+
+    @Test
+    public void testThrottlingIsLogged() throws IOException {
+        // One call's worth of capacity, and then none for the rest of the second
+        fakeDynamoClient.simulate(0, 1);
+        try {
+            text("%2B15555550002", "gifted");
+            Assert.fail("the throttled call is passed on");
+        } catch(final ProvisionedThroughputExceededException e) {
+            final JsonNode line = MAPPER.readTree(lines.get(0));
+            Assert.assertEquals(1, line.get(Metrics.ERRORS).asInt());
+            Assert.assertTrue(line.get("Error").asText().contains("ProvisionedThroughputExceededException"));
+        }
+    }
+
+    @Test
+    public void testRequestsInFlightTogetherKeepTheirOwnLines() throws IOException, InterruptedException {
+        metrics.begin();
+        metrics.command("gifted");
+        metrics.count(Metrics.ERRORS, 1);
+
+        // Another request starts and finishes on its own thread in the meantime
+        final Thread other = Thread.ofVirtual().start(() -> {
+            metrics.begin();
+            metrics.command("assignment");
+            metrics.count(Metrics.REPLAYS, 1);
+            metrics.flush();
+        });
+        other.join();
+        // Recorded off any request's thread, so it goes out with the next line
+        final Thread shared = new Thread(() -> metrics.count(Metrics.TWILIO_SEND, 1));
+        shared.start();
+        shared.join();
+        metrics.flush();
+
+        final JsonNode first = MAPPER.readTree(lines.get(0));
+        Assert.assertEquals("assignment", first.get(Metrics.COMMAND_DIMENSION).asText());
+        Assert.assertEquals(Arrays.asList(Metrics.REPLAYS), metricNames(first));
+
+        final JsonNode second = MAPPER.readTree(lines.get(1));
+        Assert.assertEquals("gifted", second.get(Metrics.COMMAND_DIMENSION).asText());
+        Assert.assertEquals(Arrays.asList(Metrics.ERRORS, Metrics.TWILIO_SEND), metricNames(second));
+    }
+
+    @Test
+    public void testLargeRequestsAreSplitAcrossLines() throws IOException {
+        metrics.begin();
+        metrics.command("remind");
+        for(int i = 0; i < 250; i++) {
+            metrics.put(Metrics.TWILIO_SEND, i, Metrics.MILLISECONDS);
+        }
+        metrics.count(Metrics.ERRORS, 1);
+        metrics.property("RequestId", "request-0");
+        metrics.flush();
+
+        Assert.assertEquals("no line carries more than 100 values of a metric", 3, lines.size());
+        final List<Double> sends = new ArrayList<>();
+        for(final String text : lines) {
+            final JsonNode line = MAPPER.readTree(text);
+            Assert.assertEquals("remind", line.get(Metrics.COMMAND_DIMENSION).asText());
+            Assert.assertEquals("request-0", line.get("RequestId").asText());
+            Assert.assertTrue(line.get(Metrics.TWILIO_SEND).size() <= Metrics.MAX_VALUES);
+            line.get(Metrics.TWILIO_SEND).forEach(v -> sends.add(v.asDouble()));
+        }
+        Assert.assertEquals("every value is written once", 250, sends.size());
+        Assert.assertEquals(249.0, sends.get(249), 0);
+        Assert.assertEquals("single values go out once",
+                Arrays.asList(Metrics.TWILIO_SEND, Metrics.ERRORS), metricNames(MAPPER.readTree(lines.get(0))));
+        Assert.assertEquals(Arrays.asList(Metrics.TWILIO_SEND), metricNames(MAPPER.readTree(lines.get(2))));
+    }
+
+    @Test
+    public void testInterceptorTimesEachOperation() throws IOException {
+        final ExecutionInterceptor interceptor = metrics.interceptor();
+        for(final String operation : Arrays.asList("GetItem", "UpdateItem")) {
+            final ExecutionAttributes attributes = new ExecutionAttributes();
+            attributes.putAttribute(SdkExecutionAttribute.SERVICE_NAME, "DynamoDb");
+            attributes.putAttribute(SdkExecutionAttribute.OPERATION_NAME, operation);
+            interceptor.beforeExecution(null, attributes);
+            interceptor.afterExecution(null, attributes);
+        }
+        metrics.flush();
+
+        final JsonNode line = MAPPER.readTree(lines.get(0));
+        Assert.assertEquals(Arrays.asList("DynamoDb.GetItem", "DynamoDb.UpdateItem"), metricNames(line));
+        Assert.assertEquals(Metrics.MILLISECONDS, line.get("_aws").get("CloudWatchMetrics").get(0).get("Metrics").get(0).get("Unit").asText());
+        Assert.assertTrue(line.get("DynamoDb.GetItem").asDouble() >= 0);
+    }
+}
@@ -0,0 +1,125 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ParticipantCacheTests {
+    static final String TABLE = "test-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+    final AtomicLong now = new AtomicLong(1000);
+
+    @Before
+    public void load() {
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 2", "+15555550003", "address 2", Arrays.asList(), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 3", "+15555550004", "address 3", Arrays.asList(), "+15555550002", false));
+    }
+
+    @Test
+    public void testRepeatedLookupsAreServedFromCache() {
+        final ParticipantCache cache = new ParticipantCache(fakeDynamoClient, 10, 60_000, true, now::get);
+
+        Assert.assertEquals("row is read", "unit test name 1", cache.lookup(TABLE, "+15555550002").name());
+        Assert.assertEquals("row is cached", "unit test name 1", cache.lookup(TABLE, "+15555550002").name());
+        Assert.assertEquals("one read", 1, fakeDynamoClient.calls("GetItem"));
+        Assert.assertEquals("one hit", 1, cache.hits());
+        Assert.assertEquals("one miss", 1, cache.misses());
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        final ParticipantCache cache = new ParticipantCache(fakeDynamoClient, 10, 60_000, true, now::get);
+
+        cache.lookup(TABLE, "+15555550002");
+        now.addAndGet(60_000);
+        cache.lookup(TABLE, "+15555550002");
+        Assert.assertEquals("expired row is read again", 2, fakeDynamoClient.calls("GetItem"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        final ParticipantCache cache = new ParticipantCache(fakeDynamoClient, 2, 60_000, true, now::get);
+
+        cache.lookup(TABLE, "+15555550002");
+        cache.lookup(TABLE, "+15555550003");
+        cache.lookup(TABLE, "+15555550002");
+        cache.lookup(TABLE, "+15555550004");
+        fakeDynamoClient.resetCalls();
+
+        cache.lookup(TABLE, "+15555550002");
+        Assert.assertEquals("recently used row is kept", 0, fakeDynamoClient.calls("GetItem"));
+        cache.lookup(TABLE, "+15555550003");
+        Assert.assertEquals("least recently used row was evicted", 1, fakeDynamoClient.calls("GetItem"));
+    }
+
+    @Test
+    public void testRefreshDuringReadIsNotOverwritten() {
+        final ParticipantCache cache = new ParticipantCache(fakeDynamoClient, 10, 60_000, true, now::get);
+        final SecretSnowmanState written = SecretSnowmanState.from(
+                LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", true));
+
+        // Another request writes the row and refreshes the cache while this read is still out
+        fakeDynamoClient.beforeOperation = op -> {
+            if("GetItem".equals(op)) {
+                fakeDynamoClient.beforeOperation = o -> {};
+                cache.refresh(null, "+15555550002", written);
+            }
+        };
+
+        Assert.assertFalse("the read returns what it read", cache.lookup(TABLE, "+15555550002").gifted());
+        Assert.assertSame("but leaves the newer row in the cache", written, cache.lookup(TABLE, "+15555550002"));
+        Assert.assertEquals(1, fakeDynamoClient.calls("GetItem"));
+    }
+
+    @Test
+    public void testReadConsistencyIsConfigurable() {
+        final DynamoDbClient mockDynamoClient = mock(DynamoDbClient.class);
+        when(mockDynamoClient.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder().item(
+                LambdaTests.makeItem("unit test name", "+15555550002", "address", Arrays.asList(), "+15555550003", false)).build());
+
+        new ParticipantCache(mockDynamoClient, 10, 60_000, false, now::get).lookup(TABLE, "+15555550002");
+        verify(mockDynamoClient).getItem(argThat(new org.mockito.ArgumentMatcher<GetItemRequest>() {
+            public boolean matches(final Object request) {
+                return Boolean.FALSE.equals(((GetItemRequest) request).consistentRead());
+            }
+        }));
+    }
+
+    @Test
+    public void testHandlerRepliesFromCacheAndRefreshesOnWrite() {
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        final LambdaHandler handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", "%2B15555550002");
+        request.put("Body", "assignment");
+
+        handler.handleRequest(request, mock(Context.class));
+        Assert.assertEquals("sender and recipient are read", 2, fakeDynamoClient.calls("GetItem"));
+
+        handler.handleRequest(request, mock(Context.class));
+        Assert.assertEquals("second reply is served from cache", 2, fakeDynamoClient.calls("GetItem"));
+
+        request.put("Body", "gifted");
+        handler.handleRequest(request, mock(Context.class));
+        request.put("Body", "assignment");
+        handler.handleRequest(request, mock(Context.class));
+        Assert.assertEquals("the sender's write returns the row, which replaces the cached one", 2, fakeDynamoClient.calls("GetItem"));
+        Assert.assertTrue("write is stored", fakeDynamoClient.get(TABLE, "+15555550002").get(SecretSnowmanState.GIFT_PURCHASE_KEY).bool());
+    }
+}
@@ -0,0 +1,84 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+public class ParticipantRosterTests {
+    private static SecretSnowmanState person(final int i, final int assigned, final String... cannot) {
+        return SecretSnowmanState.from(LambdaTests.makeItem(
+                "name " + i,
+                AssignmentEngineTests.phone(i),
+                "address " + i,
+                Arrays.asList(cannot),
+                AssignmentEngineTests.phone(assigned),
+                false));
+    }
+
+    @Test
+    public void testNumbersAreNormalized() {
+        Assert.assertEquals("formatting is stripped", "+15555550002", ParticipantRoster.e164("+1 (555) 555-0002"));
+        Assert.assertEquals("dots are stripped", "+15555550002", ParticipantRoster.e164("+1.555.555.0002"));
+        Assert.assertNull("missing number", ParticipantRoster.e164((String) null));
+    }
+
+    @Test
+    public void testLookups() {
+        final ParticipantRoster roster = new ParticipantRoster(Arrays.asList(
+                person(0, 1, "+1 555 000 0001"),
+                person(1, 2),
+                person(2, 7)));
+
+        Assert.assertEquals("indexed by phone", 1, roster.indexOf(AssignmentEngineTests.phone(1)));
+        Assert.assertEquals("absent phone", -1, roster.indexOf("+19999999999"));
+        Assert.assertEquals("recipient is found", "name 1", roster.recipientOf(0).name());
+        Assert.assertNull("recipient outside the roster", roster.recipientOf(2));
+
+        Assert.assertFalse("nobody buys for themselves", roster.canGive(1, 1));
+        Assert.assertFalse("formatted cannot-match still applies", roster.canGive(0, 1));
+        Assert.assertTrue("allowed pair", roster.canGive(0, 2));
+    }
+
+    // The reminder lookup as it was: a scan of everyone for each person still shopping
+    static List<SecretSnowmanState> streamLookup(final List<SecretSnowmanState> people) {
+        final List<SecretSnowmanState> assignments = new ArrayList<>();
+        for(final SecretSnowmanState person : people) {
+            final Optional<SecretSnowmanState> assignment = people.stream()
+                    .filter(p -> p.phone().equals(person.assigned()))
+                    .findFirst();
+            assignments.add(assignment.orElse(null));
+        }
+        return assignments;
+    }
+
+    static List<SecretSnowmanState> rosterLookup(final List<SecretSnowmanState> people) {
+        final ParticipantRoster roster = new ParticipantRoster(people);
+        final List<SecretSnowmanState> assignments = new ArrayList<>();
+        for(int i = 0; i < roster.size(); i++) {
+            assignments.add(roster.recipientOf(i));
+        }
+        return assignments;
+    }
+
+    // Shuffled people around one cycle, as the reminder reads them from a scan
+    static List<SecretSnowmanState> cycle(final int count) {
+        final List<SecretSnowmanState> people = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            people.add(person(i, (i + 1) % count));
+        }
+        Collections.shuffle(people, new Random(1));
+        return people;
+    }
+
+    // The timing of the two lookups is in RosterLookupBenchmark
+    @Test
+    public void testIndexedLookupMatchesStream() {
+        final List<SecretSnowmanState> people = cycle(1_000);
+        Assert.assertEquals("same recipients", streamLookup(people), rosterLookup(people));
+    }
+}
@@ -0,0 +1,93 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class RecipientSnapshotTests {
+    static final String TABLE = "test-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+    LambdaHandler handler;
+
+    @Before
+    public void setup() {
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 2", "+15555550003", "address 2", Arrays.asList(), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 3", "+15555550004", "address 3", Arrays.asList(), "+15555550002", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+    }
+
+    private String text(final String from, final String body) {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", from);
+        request.put("Body", body);
+        return handler.handleRequest(request, mock(Context.class));
+    }
+
+    @Test
+    public void testDrawStoresRecipientSnapshot() {
+        text("%2B15555550000", "assign+gifts");
+
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            final Map<String, AttributeValue> recipient = fakeDynamoClient.get(TABLE, item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+            Assert.assertEquals("recipient name is stored on the giver", recipient.get(SecretSnowmanState.GIFT_GIVER_NAME_KEY).s(), item.get(SecretSnowmanState.ASSIGNED_NAME_KEY).s());
+            Assert.assertEquals("recipient address is stored on the giver", recipient.get(SecretSnowmanState.ADDRESS_KEY).s(), item.get(SecretSnowmanState.ASSIGNED_ADDRESS_KEY).s());
+        }
+    }
+
+    @Test
+    public void testReplyNeedsOneReadWithSnapshot() {
+        text("%2B15555550000", "assign+gifts");
+        fakeDynamoClient.resetCalls();
+
+        final SecretSnowmanState sender = SecretSnowmanState.from(fakeDynamoClient.get(TABLE, "+15555550002"));
+        final String response = text("%2B15555550002", "intro");
+
+        Assert.assertEquals(
+                "reply comes from the snapshot",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.INTRO_FORMAT, "unit test name 1", sender.assignedName(), sender.assignedAddress())),
+                response);
+        Assert.assertEquals("only the sender is read", 1, fakeDynamoClient.calls("GetItem"));
+    }
+
+    @Test
+    public void testReplyFallsBackWithoutSnapshot() {
+        final String response = text("%2B15555550002", "assignment");
+
+        Assert.assertEquals(
+                "reply comes from the recipient's row",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.ASSIGNMENT_FORMAT, "unit test name 2")),
+                response);
+        Assert.assertEquals("sender and recipient are read", 2, fakeDynamoClient.calls("GetItem"));
+    }
+
+    @Test
+    public void testBackfillWritesMissingSnapshots() {
+        Assert.assertEquals(
+                "every row is backfilled",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.BACKFILL_FORMAT, 3)),
+                text("%2B15555550000", "backfill"));
+
+        final Map<String, AttributeValue> item = fakeDynamoClient.get(TABLE, "+15555550002");
+        Assert.assertEquals("assignment is unchanged", "+15555550003", item.get(SecretSnowmanState.ASSIGNED_KEY).s());
+        Assert.assertEquals("snapshot is stored", "unit test name 2", item.get(SecretSnowmanState.ASSIGNED_NAME_KEY).s());
+
+        Assert.assertEquals(
+                "nothing left to backfill",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.BACKFILL_FORMAT, 0)),
+                text("%2B15555550000", "backfill"));
+    }
+}
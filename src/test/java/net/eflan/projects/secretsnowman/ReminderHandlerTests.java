@@ -0,0 +1,145 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.twilio.exception.ApiException;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReminderHandlerTests {
+    static final String TABLE = "test-table";
+    static final String REQUESTS = "request-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient(SecretSnowmanState.PRIMARY_KEY, RequestDeduplicator.MESSAGE_SID_KEY);
+    final AtomicLong now = new AtomicLong(1_000 * ReminderHandler.DAY_MILLIS + 1000);
+    final List<String> texted = Collections.synchronizedList(new ArrayList<>());
+    final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+
+    @Before
+    public void setup() {
+        for(int i = 0; i < 10; i++) {
+            final String phone = String.format("+155555500%02d", i);
+            final String assigned = String.format("+155555500%02d", (i + 1) % 10);
+            fakeDynamoClient.put(TABLE, LambdaTests.makeItem("person " + i, phone, "address " + i, Arrays.asList(), assigned, i % 3 == 0));
+        }
+
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenReturn(GetSecretValueResponse.builder()
+                .secretString("{ \"TwilioAccountSID\":\"foo\", " +
+                        "\"TwilioAccountSecret\":\"bar\", " +
+                        "\"StateDynamoTable\":\"" + TABLE + "\", " +
+                        "\"RequestDynamoTable\":\"" + REQUESTS + "\", " +
+                        "\"AdminPhoneNumber\":\"+15555550000\", " +
+                        "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
+                .build());
+    }
+
+    private ReminderHandler handler(final LambdaHandler.SendSMS sendSMS) {
+        return new ReminderHandler(fakeDynamoClient, mockSecretsManagerClient, sendSMS, now::get, 3);
+    }
+
+    private ReminderHandler handler() {
+        return handler((ph, format, person, assignment) -> {
+            texted.add(person.phone().toString());
+            return "SID";
+        });
+    }
+
+    private static Context timeLeft(final Integer... millis) {
+        final Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn(millis[0], Arrays.copyOfRange(millis, 1, millis.length));
+        return context;
+    }
+
+    @Test
+    public void testRemindsUnpurchasedOncePerDay() {
+        final String status = handler().handleRequest(Collections.emptyMap(), null);
+        Assert.assertEquals("all: 6 reminded, 0 failed, done\n", status);
+        Assert.assertEquals("only people who haven't bought", 6, texted.size());
+        Assert.assertFalse(texted.contains("+15555550000"));
+
+        Assert.assertEquals("all: already done today\n", handler().handleRequest(Collections.emptyMap(), null));
+
+        // Even without the checkpoint, nobody is reminded twice in a day
+        for(final Map<String, AttributeValue> checkpoint : fakeDynamoClient.items(REQUESTS)) {
+            fakeDynamoClient.deleteItem(DeleteItemRequest.builder().tableName(REQUESTS).key(checkpoint).build());
+        }
+        Assert.assertEquals("all: 0 reminded, 0 failed, done\n", handler().handleRequest(Collections.emptyMap(), null));
+        Assert.assertEquals(6, texted.size());
+
+        now.addAndGet(ReminderHandler.DAY_MILLIS);
+        handler().handleRequest(Collections.emptyMap(), null);
+        Assert.assertEquals("again the next day", 12, texted.size());
+    }
+
+    @Test
+    public void testResumesAfterTimeout() {
+        // Time for one page, then the run stops before it would be cut off
+        final String first = handler().handleRequest(Collections.emptyMap(), timeLeft(60_000, 1_000));
+        Assert.assertTrue(first, first.endsWith("paused\n"));
+        final int afterFirst = texted.size();
+        Assert.assertTrue("one page was sent", afterFirst > 0 && afterFirst < 6);
+
+        final String second = handler().handleRequest(Collections.emptyMap(), timeLeft(60_000));
+        Assert.assertTrue(second, second.endsWith("done\n"));
+        Assert.assertEquals("everybody once", 6, texted.size());
+        Assert.assertEquals(6, texted.stream().distinct().count());
+    }
+
+    @Test
+    public void testFailedTextIsRetriedNextRun() {
+        handler((ph, format, person, assignment) -> {
+            if(person.phone().toString().equals("+15555550002")) {
+                throw new ApiException("invalid number", 21211, null, 400, null);
+            }
+            texted.add(person.phone().toString());
+            return "SID";
+        }).handleRequest(Collections.emptyMap(), null);
+
+        Assert.assertEquals(5, texted.size());
+        Assert.assertNull("the failure doesn't count as reminded",
+                fakeDynamoClient.get(TABLE, "+15555550002").get(SecretSnowmanState.REMINDED_ON_KEY));
+        Assert.assertNotNull(fakeDynamoClient.get(TABLE, "+15555550001").get(SecretSnowmanState.REMINDED_ON_KEY));
+    }
+
+    @Test
+    public void testUndrawnRosterIsNotReminded() {
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            final Map<String, AttributeValue> undrawn = new HashMap<>(item);
+            undrawn.remove(SecretSnowmanState.ASSIGNED_KEY);
+            fakeDynamoClient.put(TABLE, undrawn);
+        }
+
+        Assert.assertEquals("all: 0 reminded, 0 failed, done\n", handler().handleRequest(Collections.emptyMap(), null));
+        Assert.assertTrue(texted.isEmpty());
+        for(final Map<String, AttributeValue> item : fakeDynamoClient.items(TABLE)) {
+            Assert.assertNull("nobody is stamped", item.get(SecretSnowmanState.REMINDED_ON_KEY));
+        }
+    }
+
+    @Test
+    public void testRecipientWhoLeftIsSkipped() {
+        // +15555550002 buys for +15555550003, who has already bought and so is never reminded
+        fakeDynamoClient.deleteItem(DeleteItemRequest.builder()
+                .tableName(TABLE)
+                .key(Collections.singletonMap(SecretSnowmanState.PRIMARY_KEY, AttributeValue.builder().s("+15555550003").build()))
+                .build());
+
+        Assert.assertEquals("all: 5 reminded, 0 failed, done\n", handler().handleRequest(Collections.emptyMap(), null));
+        Assert.assertFalse(texted.contains("+15555550002"));
+        Assert.assertNull(fakeDynamoClient.get(TABLE, "+15555550002").get(SecretSnowmanState.REMINDED_ON_KEY));
+    }
+}
@@ -0,0 +1,110 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ReplyRendererTests {
+    static final List<String> FORMATS = Arrays.asList(
+            LambdaHandler.INTRO_FORMAT,
+            LambdaHandler.MENU_FORMAT,
+            LambdaHandler.GIFTED_FORMAT,
+            LambdaHandler.ASSIGNMENT_FORMAT,
+            LambdaHandler.RESET_FORMAT,
+            LambdaHandler.UNKNOWN_FORMAT,
+            LambdaHandler.REMINDER_FORMAT,
+            LambdaHandler.CHOOSE_GROUP_FORMAT);
+
+    // Names and addresses are whatever people typed into the sign-up sheet
+    static final List<String> USER_TEXT = Arrays.asList(
+            "Bob & Alice",
+            "<script>alert(\"hi\")</script>",
+            "O'Brien ]]> \"quoted\"",
+            "12 Main St.\r\nApt 4\tBack door",
+            "Zoë ☃ 🎄 \u0000\u0007\u007f\u0085",
+            "",
+            "%s %d");
+
+    @Test
+    public void testEveryCharacterMatchesTheSdk() {
+        // Every Latin character and control, then a sample of the rest of the plane (the SDK is slow)
+        for(int c = 0; c <= Character.MAX_VALUE; c += c < 0x400 ? 1 : 17) {
+            if(Character.isSurrogate((char) c)) {
+                continue;
+            }
+            final String text = "a" + (char) c + "b";
+            Assert.assertEquals(Integer.toHexString(c), sdkOrError(text), rendererOrError(text));
+        }
+
+        for(final int codePoint : new int[] { 0x10000, 0x1F381, 0x1F9E3, Character.MAX_CODE_POINT }) {
+            final String text = new String(Character.toChars(codePoint));
+            Assert.assertEquals(Integer.toHexString(codePoint), ReplyRenderer.sdkTWIML(text), ReplyRenderer.render(text));
+        }
+
+        for(final String unpaired : new String[] { "x\uD800", "x\uDC00y", "x\uD800y" }) {
+            Assert.assertEquals("unpaired surrogates", sdkOrError(unpaired), rendererOrError(unpaired));
+        }
+        Assert.assertEquals("empty body", ReplyRenderer.sdkTWIML(""), ReplyRenderer.render(""));
+    }
+
+    private static String sdkOrError(final String text) {
+        try {
+            return ReplyRenderer.sdkTWIML(text);
+        } catch(final RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private static String rendererOrError(final String text) {
+        try {
+            return ReplyRenderer.render(text);
+        } catch(final RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private static String templateOrError(final ReplyRenderer.Template template, final Object[] args) {
+        try {
+            return template.render(args);
+        } catch(final RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    @Test
+    public void testControlCharactersFailAsTheSdkDoes() {
+        final String text = "Zo\u0007\u0000e";
+        Assert.assertFalse("the SDK rejects them", sdkOrError(text).startsWith("<?xml"));
+        Assert.assertEquals("and so does the renderer, the same way", sdkOrError(text), rendererOrError(text));
+        Assert.assertTrue("tab and newline are kept", ReplyRenderer.render("a\tb\nc").contains("a\tb\nc"));
+    }
+
+    @Test
+    public void testTemplatesEscapeUserText() {
+        for(final String format : FORMATS) {
+            final ReplyRenderer.Template template = ReplyRenderer.Template.compile(format);
+            for(final String text : USER_TEXT) {
+                final Object[] args = new Object[template.arguments()];
+                Arrays.fill(args, text);
+                Assert.assertEquals(format + " / " + text,
+                        sdkOrError(String.format(format, args)),
+                        templateOrError(template, args));
+            }
+        }
+
+        Assert.assertTrue("markup in a name is escaped", ReplyRenderer.Template.compile(LambdaHandler.ASSIGNMENT_FORMAT)
+                .render("<b>Bob</b> & co").contains("&lt;b&gt;Bob&lt;/b&gt; &amp; co"));
+    }
+
+    @Test
+    public void testHandlerRepliesMatchTheSdk() {
+        final String reply = String.format(LambdaHandler.INTRO_FORMAT, "Bob & Alice", "Carol <3", "1 Elm St.\r\nApt 2");
+        Assert.assertEquals(ReplyRenderer.sdkTWIML(reply), LambdaHandler.toTWIML(reply));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyStringArgumentsCompile() {
+        ReplyRenderer.Template.compile(LambdaHandler.BACKFILL_FORMAT);
+    }
+}
@@ -0,0 +1,147 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.twilio.exception.ApiException;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RequestDeduplicatorTests {
+    static final String TABLE = "test-table";
+    static final String REQUESTS = "request-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient(SecretSnowmanState.PRIMARY_KEY, RequestDeduplicator.MESSAGE_SID_KEY);
+    final AtomicLong now = new AtomicLong(1_000_000_000L);
+    LambdaHandler handler;
+
+    @Before
+    public void setup() {
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 2", "+15555550003", "address 2", Arrays.asList(), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 3", "+15555550004", "address 3", Arrays.asList(), "+15555550002", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenReturn(GetSecretValueResponse.builder()
+                .secretString("{ \"TwilioAccountSID\":\"foo\", " +
+                        "\"TwilioAccountSecret\":\"bar\", " +
+                        "\"StateDynamoTable\":\"" + TABLE + "\", " +
+                        "\"RequestDynamoTable\":\"" + REQUESTS + "\", " +
+                        "\"AdminPhoneNumber\":\"+15555550000\", " +
+                        "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
+                .build());
+        handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+    }
+
+    private String text(final LambdaHandler handler, final String from, final String body, final String messageSid) {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", from);
+        request.put("Body", body);
+        request.put("MessageSid", messageSid);
+        return handler.handleRequest(request, mock(Context.class));
+    }
+
+    private RequestDeduplicator deduplicator() {
+        return new RequestDeduplicator(fakeDynamoClient, 10, 0, now::get);
+    }
+
+    @Test
+    public void testRetryReplaysTheDraw() {
+        final String first = text(handler, "%2B15555550000", "assign+gifts", "SM1");
+        final Map<String, AttributeValue> drawn = fakeDynamoClient.get(TABLE, "+15555550002");
+        fakeDynamoClient.resetCalls();
+
+        Assert.assertEquals("retry gets the same reply", first, text(handler, "%2B15555550000", "assign+gifts", "SM1"));
+        Assert.assertEquals("nothing is read or written again", 0, fakeDynamoClient.totalCalls());
+        Assert.assertEquals("assignment is unchanged", drawn, fakeDynamoClient.get(TABLE, "+15555550002"));
+
+        text(handler, "%2B15555550000", "assign+gifts", "SM2");
+        Assert.assertEquals("a new message runs", 1, fakeDynamoClient.calls("TransactWriteItems"));
+    }
+
+    @Test
+    public void testErrorReplyIsNotReplayed() {
+        // Anything the handler answers with an error reply, here a Twilio failure on the first read
+        final AtomicInteger reads = new AtomicInteger();
+        fakeDynamoClient.beforeOperation = op -> {
+            if("GetItem".equals(op) && reads.incrementAndGet() == 1) {
+                throw new ApiException("Service unavailable", 20003, null, 503, null);
+            }
+        };
+
+        Assert.assertEquals(LambdaHandler.toTWIML("\u2744Internal Server Error - 2\u2744"),
+                text(handler, "%2B15555550002", "assignment", "SM1"));
+        Assert.assertNull("the claim is released", fakeDynamoClient.get(REQUESTS, "SM1"));
+
+        Assert.assertEquals("the retry runs again",
+                LambdaHandler.toTWIML(String.format(LambdaHandler.ASSIGNMENT_FORMAT, "unit test name 2")),
+                text(handler, "%2B15555550002", "assignment", "SM1"));
+        Assert.assertNotNull("and its reply is kept", fakeDynamoClient.get(REQUESTS, "SM1").get(RequestDeduplicator.REPLY_KEY));
+    }
+
+    @Test
+    public void testReplyIsSharedAcrossContainers() {
+        final AtomicInteger runs = new AtomicInteger();
+        final String reply = deduplicator().handle(REQUESTS, "SM1", () -> "reply " + runs.incrementAndGet(), "busy");
+
+        Assert.assertEquals("another container replays the stored reply",
+                reply, deduplicator().handle(REQUESTS, "SM1", () -> "reply " + runs.incrementAndGet(), "busy"));
+        Assert.assertEquals("the handler ran once", 1, runs.get());
+        Assert.assertNotNull("the reply expires",
+                fakeDynamoClient.get(REQUESTS, "SM1").get(RequestDeduplicator.EXPIRES_AT_KEY));
+    }
+
+    @Test
+    public void testRetryWhileFirstIsRunning() {
+        final RequestDeduplicator other = deduplicator();
+        final String reply = deduplicator().handle(REQUESTS, "SM1",
+                () -> other.handle(REQUESTS, "SM1", () -> "ran twice", "busy"), "busy");
+
+        Assert.assertEquals("a retry during the first request does not run it", "busy", reply);
+    }
+
+    @Test
+    public void testAbandonedClaimIsTakenOver() {
+        try {
+            deduplicator().handle(REQUESTS, "SM1", () -> { throw new IllegalStateException(); }, "busy");
+            Assert.fail("failure is passed on");
+        } catch(final IllegalStateException e) {
+            Assert.assertNull("a failed request releases its claim", fakeDynamoClient.get(REQUESTS, "SM1"));
+        }
+
+        // A claim left by a container that died stops counting once it expires
+        fakeDynamoClient.put(REQUESTS, Map.of(
+                RequestDeduplicator.MESSAGE_SID_KEY, AttributeValue.builder().s("SM2").build(),
+                RequestDeduplicator.EXPIRES_AT_KEY, AttributeValue.builder().n(Long.toString(now.get() / 1000 + 10)).build()));
+        Assert.assertEquals("busy", deduplicator().handle(REQUESTS, "SM2", () -> "ran", "busy"));
+        now.addAndGet(RequestDeduplicator.PENDING_TTL_SECONDS * 1000);
+        Assert.assertEquals("ran", deduplicator().handle(REQUESTS, "SM2", () -> "ran", "busy"));
+    }
+
+    @Test
+    public void testWithoutTableOnlyTheContainerIsChecked() {
+        final RequestDeduplicator deduplicator = deduplicator();
+        Assert.assertEquals("first", deduplicator.handle(null, "SM1", () -> "first", "busy"));
+        Assert.assertEquals("first", deduplicator.handle(null, "SM1", () -> "second", "busy"));
+        Assert.assertEquals("one replay", 1, deduplicator.replays());
+        Assert.assertEquals("no table calls", 0, fakeDynamoClient.totalCalls());
+    }
+
+    @Test
+    public void testCreateRequestTable() throws InterruptedException {
+        TableSetup.createRequestTable(fakeDynamoClient, REQUESTS);
+        Assert.assertEquals("keyed by message sid", RequestDeduplicator.MESSAGE_SID_KEY,
+                fakeDynamoClient.created(REQUESTS).keySchema().get(0).attributeName());
+        Assert.assertEquals("records expire", RequestDeduplicator.EXPIRES_AT_KEY, fakeDynamoClient.timeToLiveAttribute(REQUESTS));
+    }
+}
@@ -0,0 +1,166 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class RosterImporterTests {
+    static final String TABLE = "test-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+    final RosterImporter importer = new RosterImporter(fakeDynamoClient, 4, 5, 0);
+
+    private RosterImporter.Result importCsv(final String csv) throws IOException, InterruptedException {
+        return importer.importRoster(TABLE, new StringReader(csv), false, null);
+    }
+
+    @Test
+    public void testCsv() throws IOException, InterruptedException {
+        final RosterImporter.Result result = importCsv(
+                "\uFEFFphone-number,gift-giver-name,address,cannot-match\r\n" +
+                "+1 (555) 555-0002,Alice,\"1 Main St, Springfield\",+15555550003\r\n" +
+                "+15555550003,Bob,\"2 \"\"Elm\"\" St\nApt 4\",+15555550002;+1-555-555-0004\r\n" +
+                "\r\n" +
+                "+15555550004,Carol,,\r\n");
+        Assert.assertTrue(result.errors().toString(), result.succeeded());
+        Assert.assertEquals(3, result.written());
+
+        final Map<String, AttributeValue> alice = fakeDynamoClient.get(TABLE, "+15555550002");
+        Assert.assertEquals("Alice", alice.get(SecretSnowmanState.GIFT_GIVER_NAME_KEY).s());
+        Assert.assertEquals("1 Main St, Springfield", alice.get(SecretSnowmanState.ADDRESS_KEY).s());
+        Assert.assertFalse(alice.get(SecretSnowmanState.GIFT_PURCHASE_KEY).bool());
+        Assert.assertEquals("pending", alice.get(SecretSnowmanState.GIFT_STATUS_KEY).s());
+
+        final SecretSnowmanState bob = SecretSnowmanState.from(fakeDynamoClient.get(TABLE, "+15555550003"));
+        Assert.assertEquals("2 \"Elm\" St\nApt 4", bob.address());
+        Assert.assertEquals(
+                Arrays.asList("+15555550002", "+15555550004"),
+                bob.cannot().stream().map(Object::toString).collect(Collectors.toList()));
+
+        Assert.assertFalse("no address is left out", fakeDynamoClient.get(TABLE, "+15555550004").containsKey(SecretSnowmanState.ADDRESS_KEY));
+    }
+
+    @Test
+    public void testJsonWithGroups() throws IOException, InterruptedException {
+        final FakeDynamoDbClient grouped = new FakeDynamoDbClient(SecretSnowmanState.GROUP_KEY, SecretSnowmanState.PRIMARY_KEY);
+        final RosterImporter.Result result = new RosterImporter(grouped, 2, 5, 0).importRoster(TABLE, new StringReader(
+                "[\n" +
+                "  { \"phone-number\": \"+15555550002\", \"gift-giver-name\": \"Alice\", \"cannot-match\": [\"+15555550003\"] },\n" +
+                "  { \"phone-number\": \"+15555550003\", \"gift-giver-name\": \"Bob\", \"cannot-match\": \"+15555550002\" },\n" +
+                "  { \"phone-number\": \"+15555550002\", \"gift-giver-name\": \"Alice\", \"group-id\": \"Work\", \"extra\": { \"a\": 1 } }\n" +
+                "]"), true, "family");
+        Assert.assertTrue(result.errors().toString(), result.succeeded());
+
+        Assert.assertEquals("family#pending", grouped.get(TABLE, "family", "+15555550002").get(SecretSnowmanState.GIFT_STATUS_KEY).s());
+        Assert.assertEquals("work#pending", grouped.get(TABLE, "work", "+15555550002").get(SecretSnowmanState.GIFT_STATUS_KEY).s());
+        Assert.assertEquals("+15555550002", grouped.get(TABLE, "family", "+15555550003").get(SecretSnowmanState.CANNOT_MATCH_KEY).l().get(0).s());
+    }
+
+    @Test
+    public void testInvalidRosterWritesNothing() throws IOException, InterruptedException {
+        final RosterImporter.Result result = importCsv(
+                "phone-number,gift-giver-name,cannot-match\n" +
+                "+15555550002,Alice,+15555550009\n" +
+                "555-0003,Bob,\n" +
+                "+15555550002,Alice again,\n" +
+                "+15555550004,,+15555550004\n");
+
+        Assert.assertEquals(Arrays.asList(
+                "line 3: \"5550003\" isn't a phone number",
+                "line 4: +15555550002 is listed more than once",
+                "line 5: no gift-giver-name",
+                "line 2: cannot-match +15555550009 isn't in the roster",
+                "line 5: +15555550004 is in their own cannot-match list"), result.errors());
+        Assert.assertEquals(0, result.written());
+        Assert.assertEquals(0, fakeDynamoClient.calls("PutItem") + fakeDynamoClient.calls("UpdateItem"));
+    }
+
+    @Test
+    public void testMissingColumn() throws IOException, InterruptedException {
+        final RosterImporter.Result result = importCsv("phone,name\n+15555550002,Alice\n");
+        Assert.assertEquals(Arrays.asList("line 1: no phone-number column"), result.errors());
+    }
+
+    @Test
+    public void testLargeRosterIsWritten() throws IOException, InterruptedException {
+        final StringBuilder csv = new StringBuilder("phone-number,gift-giver-name,address,cannot-match\n");
+        for(int i = 0; i < 10_000; i++) {
+            final int partner = i % 2 == 0 ? i + 1 : i - 1;
+            csv.append(AssignmentEngineTests.phone(i)).append(",person ").append(i).append(",address ").append(i)
+                    .append(',').append(AssignmentEngineTests.phone(partner)).append('\n');
+        }
+
+        final RosterImporter.Result result = importCsv(csv.toString());
+        Assert.assertTrue(result.errors().toString(), result.succeeded());
+        Assert.assertEquals(10_000, result.written());
+        Assert.assertEquals(10_000, fakeDynamoClient.items(TABLE).size());
+        Assert.assertEquals("one put per new row", 10_000, fakeDynamoClient.calls("PutItem"));
+        Assert.assertEquals(0, fakeDynamoClient.calls("UpdateItem"));
+    }
+
+    @Test
+    public void testReimportKeepsTheDraw() throws IOException, InterruptedException {
+        final Map<String, AttributeValue> drawn = LambdaTests.makeItem(
+                "Alice", "+15555550002", "1 Main St", Arrays.asList(), "+15555550003", true);
+        drawn.put(SecretSnowmanState.ASSIGNED_NAME_KEY, AttributeValue.builder().s("Bob").build());
+        drawn.put(SecretSnowmanState.ASSIGNED_ADDRESS_KEY, AttributeValue.builder().s("2 Elm St").build());
+        drawn.put(SecretSnowmanState.VERSION_KEY, AttributeValue.builder().n("3").build());
+        fakeDynamoClient.put(TABLE, drawn);
+
+        final RosterImporter.Result result = importCsv(
+                "phone-number,gift-giver-name,address,cannot-match\n" +
+                "+15555550002,Alice Smith,9 New Rd,+15555550004\n" +
+                "+15555550004,Carol,3 Oak St,\n");
+        Assert.assertTrue(result.errors().toString(), result.succeeded());
+        Assert.assertEquals(2, result.written());
+
+        final SecretSnowmanState alice = SecretSnowmanState.from(fakeDynamoClient.get(TABLE, "+15555550002"));
+        Assert.assertEquals("Alice Smith", alice.name());
+        Assert.assertEquals("9 New Rd", alice.address());
+        Assert.assertEquals("+15555550004", alice.cannot().get(0).toString());
+        Assert.assertTrue("the draw survives", alice.hasAssignment());
+        Assert.assertEquals("+15555550003", alice.assigned().toString());
+        Assert.assertEquals("Bob", alice.assignedName());
+        Assert.assertEquals("2 Elm St", alice.assignedAddress());
+        Assert.assertTrue("and so does the gift", alice.gifted());
+        Assert.assertEquals("the version still climbs", 4, alice.version());
+
+        final SecretSnowmanState carol = SecretSnowmanState.from(fakeDynamoClient.get(TABLE, "+15555550004"));
+        Assert.assertFalse(carol.hasAssignment());
+        Assert.assertFalse(carol.gifted());
+    }
+
+    @Test
+    public void testThrottledWritesAreRetried() throws IOException, InterruptedException {
+        final AtomicInteger throttled = new AtomicInteger(3);
+        fakeDynamoClient.beforeOperation = op -> {
+            if(throttled.getAndDecrement() > 0) {
+                throw ProvisionedThroughputExceededException.builder().message("throttled").build();
+            }
+        };
+        final RosterImporter.Result result = importCsv(
+                "phone-number,gift-giver-name\n+15555550002,Alice\n+15555550003,Bob\n+15555550004,Carol\n+15555550005,Dave\n");
+        Assert.assertTrue(result.succeeded());
+        Assert.assertEquals(4, fakeDynamoClient.items(TABLE).size());
+        Assert.assertEquals(7, fakeDynamoClient.calls("PutItem"));
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws IOException, InterruptedException {
+        fakeDynamoClient.beforeOperation = op -> {
+            throw ProvisionedThroughputExceededException.builder().message("throttled").build();
+        };
+        final RosterImporter.Result result = importCsv("phone-number,gift-giver-name\n+15555550002,Alice\n");
+        Assert.assertFalse(result.succeeded());
+        Assert.assertEquals(Arrays.asList("+15555550002"), result.unwritten());
+        Assert.assertEquals(0, result.written());
+        Assert.assertEquals(5, fakeDynamoClient.calls("PutItem"));
+    }
+}
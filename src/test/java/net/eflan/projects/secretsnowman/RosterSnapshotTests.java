@@ -0,0 +1,261 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.*;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RosterSnapshotTests {
+    static final String TABLE = "test-table";
+    static final String SNAPSHOTS = "snapshot-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient(SecretSnowmanState.PRIMARY_KEY, RosterSnapshot.SNAPSHOT_ID_KEY);
+    final AtomicLong now = new AtomicLong(1_000_000);
+    final RosterSnapshot snapshots = new RosterSnapshot(fakeDynamoClient, 60_000, now::get);
+
+    private LambdaHandler handler() {
+        return handler(new Metrics(line -> {}, now::get));
+    }
+
+    private LambdaHandler handler(final Metrics metrics) {
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenReturn(GetSecretValueResponse.builder()
+                .secretString("{ \"TwilioAccountSID\":\"foo\", " +
+                        "\"TwilioAccountSecret\":\"bar\", " +
+                        "\"StateDynamoTable\":\"" + TABLE + "\", " +
+                        "\"SnapshotDynamoTable\":\"" + SNAPSHOTS + "\", " +
+                        "\"AdminPhoneNumber\":\"+15555550000\", " +
+                        "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
+                .build());
+        return new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient, metrics);
+    }
+
+    private static String text(final LambdaHandler handler, final String from, final String body) {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", from);
+        request.put("Body", body);
+        return handler.handleRequest(request, mock(Context.class));
+    }
+
+    private void load() {
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("Alice", "+15555550002", "1 Main St", Arrays.asList("+15555550003"), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("Bob", "+15555550003", "2 Elm St", Collections.emptyList(), "+15555550002", true));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("Carol", "+15555550004", "3 Oak St", Collections.emptyList(), "+15555550003", false));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final Map<String, AttributeValue> alice = LambdaTests.makeItem(
+                "Alice", "+15555550002", "1 Main St", Arrays.asList("+15555550003", "+15555550099"), "+15555550003", true);
+        alice.put(SecretSnowmanState.GROUP_KEY, AttributeValue.builder().s("family").build());
+        alice.put(SecretSnowmanState.ASSIGNED_NAME_KEY, AttributeValue.builder().s("Bob").build());
+        alice.put(SecretSnowmanState.ASSIGNED_ADDRESS_KEY, AttributeValue.builder().s("2 Elm St").build());
+        alice.put(SecretSnowmanState.VERSION_KEY, AttributeValue.builder().n("7").build());
+        final Map<String, AttributeValue> bob = LambdaTests.makeItem(
+                "Bob", "+15555550003", "2 Elm St", Collections.emptyList(), "+12065550000", false);
+        bob.put(SecretSnowmanState.GROUP_KEY, AttributeValue.builder().s("family").build());
+        final List<SecretSnowmanState> people = Arrays.asList(SecretSnowmanState.from(alice), SecretSnowmanState.from(bob));
+
+        final List<SecretSnowmanState> decoded = RosterSnapshot.decode(RosterSnapshot.encode(people));
+        Assert.assertEquals(people.toString(), decoded.toString());
+        for(int i = 0; i < people.size(); i++) {
+            Assert.assertEquals(people.get(i).group(), decoded.get(i).group());
+            Assert.assertEquals(people.get(i).assignedName(), decoded.get(i).assignedName());
+            Assert.assertEquals(people.get(i).assignedAddress(), decoded.get(i).assignedAddress());
+            Assert.assertEquals(people.get(i).version(), decoded.get(i).version());
+        }
+        Assert.assertSame("a reference to somebody in the roster is their own number", decoded.get(1).phone(), decoded.get(0).assigned());
+        Assert.assertEquals("+15555550099", decoded.get(0).cannot().get(1).toString());
+    }
+
+    @Test
+    public void testLargeGroupFitsInOneItem() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(2000, 10);
+        final byte[] roster = RosterSnapshot.encode(people);
+        System.out.println(String.format("%d participants: %d byte snapshot", people.size(), roster.length));
+        Assert.assertTrue(roster.length < RosterSnapshot.MAX_SNAPSHOT_BYTES);
+    }
+
+    @Test
+    public void testStaleSnapshotIsNotUsed() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(3, 3);
+        Assert.assertFalse(snapshots.load(SNAPSHOTS, null).fresh());
+        Assert.assertTrue(snapshots.store(SNAPSHOTS, null, people, 0));
+        Assert.assertTrue(snapshots.load(SNAPSHOTS, null).fresh());
+
+        now.addAndGet(60_000);
+        final RosterSnapshot.Read stale = snapshots.load(SNAPSHOTS, null);
+        Assert.assertFalse("older than the max age", stale.fresh());
+        Assert.assertTrue(snapshots.store(SNAPSHOTS, null, people, stale.generation()));
+
+        snapshots.invalidate(SNAPSHOTS, null);
+        Assert.assertFalse(snapshots.load(SNAPSHOTS, null).fresh());
+    }
+
+    @Test
+    public void testRebuildDoesNotWriteOverAPatch() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(3, 3);
+        final RosterSnapshot.Read missed = snapshots.load(SNAPSHOTS, null);
+        Assert.assertTrue(snapshots.store(SNAPSHOTS, null, people, missed.generation()));
+        Assert.assertFalse("somebody else rebuilt it first", snapshots.store(SNAPSHOTS, null, people, missed.generation()));
+    }
+
+    @Test
+    public void testPatchOfMissingSnapshotStopsAnOlderRebuild() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(3, 3);
+        final RosterSnapshot.Read missed = snapshots.load(SNAPSHOTS, null);
+
+        // A text lands between the rebuild's read of the table and its store
+        snapshots.patch(SNAPSHOTS, null, people.get(0));
+        Assert.assertFalse("the rebuild read the table before the text", snapshots.store(SNAPSHOTS, null, people, missed.generation()));
+        Assert.assertFalse(snapshots.load(SNAPSHOTS, null).fresh());
+    }
+
+    @Test
+    public void testPatchOfStaleSnapshotStopsAnOlderRebuild() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(3, 3);
+        Assert.assertTrue(snapshots.store(SNAPSHOTS, null, people, 0));
+        now.addAndGet(60_000);
+        final RosterSnapshot.Read stale = snapshots.load(SNAPSHOTS, null);
+
+        snapshots.patch(SNAPSHOTS, null, people.get(0));
+        Assert.assertFalse(snapshots.store(SNAPSHOTS, null, people, stale.generation()));
+        final RosterSnapshot.Read after = snapshots.load(SNAPSHOTS, null);
+        Assert.assertTrue(snapshots.store(SNAPSHOTS, null, people, after.generation()));
+    }
+
+    @Test
+    public void testUnreachableSnapshotIsCounted() throws IOException {
+        load();
+        final List<String> lines = new ArrayList<>();
+        final LambdaHandler handler = handler(new Metrics(lines::add, now::get));
+
+        // The read of the snapshot right after the sender's row is written fails
+        final AtomicBoolean written = new AtomicBoolean();
+        fakeDynamoClient.beforeOperation = op -> {
+            if(op.equals("UpdateItem")) {
+                written.set(true);
+            } else if(op.equals("GetItem") && written.getAndSet(false)) {
+                throw SdkClientException.create("snapshot table unreachable");
+            }
+        };
+        final String response = text(handler, "%2B15555550002", "gifted");
+        Assert.assertFalse(response, response.contains("Internal Server Error"));
+        Assert.assertTrue(SecretSnowmanState.from(fakeDynamoClient.get(TABLE, "+15555550002")).gifted());
+
+        final JsonNode line = MetricsTests.MAPPER.readTree(lines.get(0));
+        Assert.assertEquals(1, line.get(Metrics.ERRORS).asInt());
+        Assert.assertTrue(line.get("Error").asText().contains("snapshot table unreachable"));
+    }
+
+    @Test
+    public void testUnreachableSnapshotDoesNotFailTheDraw() throws IOException {
+        load();
+        final List<String> lines = new ArrayList<>();
+        final LambdaHandler handler = handler(new Metrics(lines::add, now::get));
+
+        // Marking the snapshot stale right after the draw is written fails
+        final AtomicBoolean drawn = new AtomicBoolean();
+        fakeDynamoClient.beforeOperation = op -> {
+            if(op.equals("TransactWriteItems")) {
+                drawn.set(true);
+            } else if(op.equals("UpdateItem") && drawn.get()) {
+                throw SdkClientException.create("snapshot table unreachable");
+            }
+        };
+        final String response = text(handler, "%2B15555550000", "assign+gifts");
+        Assert.assertTrue(response, response.contains("Alice: SID"));
+        Assert.assertEquals(1, fakeDynamoClient.calls("TransactWriteItems"));
+
+        final JsonNode line = MetricsTests.MAPPER.readTree(lines.get(0));
+        Assert.assertEquals(1, line.get(Metrics.ERRORS).asInt());
+        Assert.assertTrue(line.get("Error").asText().contains("snapshot table unreachable"));
+    }
+
+    @Test
+    public void testAdminCommandsReadOneItem() {
+        load();
+        final LambdaHandler handler = handler();
+
+        final String gifts = text(handler, "%2B15555550000", "gifts");
+        Assert.assertEquals(LambdaHandler.toTWIML("Gift:\nBob (+15555550003)\n"), gifts);
+        Assert.assertEquals("the first read rebuilds the snapshot", 1, fakeDynamoClient.calls("Scan"));
+
+        fakeDynamoClient.resetCalls();
+        Assert.assertEquals(LambdaHandler.toTWIML("No Gift:\nAlice (+15555550002)\nCarol (+15555550004)\n"), text(handler, "%2B15555550000", "no+gifts"));
+        Assert.assertEquals(gifts, text(handler, "%2B15555550000", "gifts"));
+        Assert.assertEquals(0, fakeDynamoClient.calls("Scan") + fakeDynamoClient.calls("Query"));
+        Assert.assertEquals("one read per report", 2, fakeDynamoClient.calls("GetItem"));
+    }
+
+    @Test
+    public void testGiftedIsPatchedIn() {
+        load();
+        final LambdaHandler handler = handler();
+        text(handler, "%2B15555550000", "gifts");
+
+        text(handler, "%2B15555550002", "gifted");
+        fakeDynamoClient.resetCalls();
+        Assert.assertEquals(
+                LambdaHandler.toTWIML("Gift:\nAlice (+15555550002)\nBob (+15555550003)\n"),
+                text(handler, "%2B15555550000", "gifts"));
+        Assert.assertEquals(0, fakeDynamoClient.calls("Scan"));
+
+        final SecretSnowmanState alice = snapshots.load(SNAPSHOTS, null).people().get(0);
+        Assert.assertEquals("the snapshot holds the row's new version", 1, alice.version());
+    }
+
+    @Test
+    public void testDrawReadsTheTableAndLeavesSnapshotStale() {
+        load();
+        final LambdaHandler handler = handler();
+        text(handler, "%2B15555550000", "check");
+
+        fakeDynamoClient.resetCalls();
+        final String response = text(handler, "%2B15555550000", "assign+gifts");
+        Assert.assertTrue(response, response.contains("Alice: SID"));
+        Assert.assertEquals("the draw is worked out from the table, not the fresh snapshot", 1, fakeDynamoClient.calls("Scan"));
+        Assert.assertFalse(snapshots.load(SNAPSHOTS, null).fresh());
+
+        fakeDynamoClient.resetCalls();
+        text(handler, "%2B15555550000", "gifts");
+        Assert.assertEquals("and the next report rebuilds it", 1, fakeDynamoClient.calls("Scan"));
+        for(final SecretSnowmanState person : snapshots.load(SNAPSHOTS, null).people()) {
+            Assert.assertEquals("the rebuilt snapshot has the rows the draw wrote", 1, person.version());
+        }
+    }
+
+    @Test
+    public void testImportWithoutASnapshotStopsAnOlderRebuild() throws IOException, InterruptedException {
+        final RosterSnapshot.Read missed = snapshots.load(SNAPSHOTS, null);
+        new RosterImporter(fakeDynamoClient, 1, 3, 0, SNAPSHOTS).importRoster(
+                TABLE, new StringReader("phone-number,gift-giver-name\n+15555550002,Alice\n"), false, null);
+        Assert.assertFalse(snapshots.store(SNAPSHOTS, null, AssignmentEngineTests.makePeople(3, 3), missed.generation()));
+    }
+
+    @Test
+    public void testImportMarksSnapshotStale() throws IOException, InterruptedException {
+        Assert.assertTrue(snapshots.store(SNAPSHOTS, null, AssignmentEngineTests.makePeople(3, 3), 0));
+        new RosterImporter(fakeDynamoClient, 1, 3, 0, SNAPSHOTS).importRoster(
+                TABLE, new StringReader("phone-number,gift-giver-name\n+15555550002,Alice\n"), false, null);
+        Assert.assertFalse(snapshots.load(SNAPSHOTS, null).fresh());
+    }
+}
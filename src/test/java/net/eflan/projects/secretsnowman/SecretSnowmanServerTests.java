@@ -0,0 +1,116 @@
+package net.eflan.projects.secretsnowman;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class SecretSnowmanServerTests {
+    static final String TABLE = "test-table";
+
+    final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 64);
+    final HttpClient client = HttpClient.newHttpClient();
+    SecretSnowmanServer server;
+
+    @Before
+    public void setup() throws IOException {
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 1", "+15555550002", "address 1", Arrays.asList(), "+15555550003", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 2", "+15555550003", "address 2", Arrays.asList(), "+15555550004", false));
+        fakeDynamoClient.put(TABLE, LambdaTests.makeItem("unit test name 3", "+15555550004", "address 3", Arrays.asList(), "+15555550002", false));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        server = new SecretSnowmanServer(
+                new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient),
+                SecretSnowmanServer.executor(SecretSnowmanServer.VIRTUAL_EXECUTOR, 0),
+                limiter,
+                100,
+                new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+    }
+
+    private HttpRequest post(final String form) {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + "/"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+    }
+
+    @Test
+    public void testWebhookRepliesWithTwiml() throws IOException, InterruptedException {
+        final HttpResponse<String> response = client.send(
+                post("ToCountry=US&MessageSid=SM1&From=%2B15555550002&Body=assignment"), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(SecretSnowmanServer.TWIML_CONTENT_TYPE, response.headers().firstValue("Content-Type").get());
+        Assert.assertEquals(LambdaHandler.toTWIML(String.format(LambdaHandler.ASSIGNMENT_FORMAT, "unit test name 2")), response.body());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneHandler() {
+        final List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for(int i = 0; i < 50; i++) {
+            responses.add(client.sendAsync(post("MessageSid=SM" + i + "&From=%2B15555550003&Body=assignment"), HttpResponse.BodyHandlers.ofString()));
+        }
+        for(final CompletableFuture<HttpResponse<String>> response : responses) {
+            Assert.assertEquals(200, response.join().statusCode());
+            Assert.assertEquals(LambdaHandler.toTWIML(String.format(LambdaHandler.ASSIGNMENT_FORMAT, "unit test name 3")), response.join().body());
+        }
+        Assert.assertEquals("every slot is given back", 0, limiter.inFlight());
+    }
+
+    @Test
+    public void testThrottlingBacksOff() throws IOException, InterruptedException {
+        fakeDynamoClient.beforeOperation = op -> {
+            throw ProvisionedThroughputExceededException.builder().message("slow down").build();
+        };
+        final HttpResponse<String> response = client.send(post("From=%2B15555550002&Body=gifted"), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(503, response.statusCode());
+        Assert.assertEquals("1", response.headers().firstValue("Retry-After").get());
+        Assert.assertEquals("the limit is halved", 32, limiter.limit());
+    }
+
+    @Test
+    public void testHealth() throws IOException, InterruptedException {
+        final HttpResponse<String> response = client.send(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + SecretSnowmanServer.HEALTH_PATH)).build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+    }
+
+    @Test
+    public void testFormKeepsValuesEncoded() throws IOException {
+        final Map<String, Object> form = SecretSnowmanServer.form("From=%2B15555550002&Body=assign+gifts&Empty=&Flag");
+        Assert.assertEquals("%2B15555550002", form.get("From"));
+        Assert.assertEquals("assign+gifts", form.get("Body"));
+        Assert.assertEquals("", form.get("Empty"));
+        Assert.assertEquals("", form.get("Flag"));
+    }
+
+    @Test
+    public void testThrottledCauses() {
+        Assert.assertTrue(SecretSnowmanServer.throttled(new CompletionException(
+                ProvisionedThroughputExceededException.builder().message("slow down").build())));
+        Assert.assertFalse(SecretSnowmanServer.throttled(new IllegalStateException("broken")));
+    }
+}
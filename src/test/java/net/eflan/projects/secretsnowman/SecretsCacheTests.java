@@ -0,0 +1,85 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import org.junit.*;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueResponse;
+
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SecretsCacheTests {
+    final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+    final AtomicLong now = new AtomicLong(1000);
+    final SecretsCache cache = new SecretsCache(mockSecretsManagerClient, 60_000, now::get);
+
+    private static GetSecretValueResponse secret(final String versionId, final String table) {
+        return GetSecretValueResponse.builder()
+                .versionId(versionId)
+                .secretString("{ \"TwilioAccountSID\":\"foo\", " +
+                        "\"TwilioAccountSecret\":\"bar\", " +
+                        "\"StateDynamoTable\":\"" + table + "\", " +
+                        "\"AdminPhoneNumber\":\"+15555550000\", " +
+                        "\"SecretSnowmanPhoneNumber\":\"+15555550001\"}")
+                .build();
+    }
+
+    @Test
+    public void testCachedWithinTtl() throws Exception {
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenReturn(secret("v1", "table-1"));
+
+        Assert.assertEquals("config is parsed", "table-1", cache.get().table());
+        now.addAndGet(59_000);
+        Assert.assertEquals("config is still cached", "table-1", cache.get().table());
+        verify(mockSecretsManagerClient, times(1)).getSecretValue(any(GetSecretValueRequest.class));
+    }
+
+    @Test
+    public void testRefreshedAfterTtl() throws Exception {
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class)))
+                .thenReturn(secret("v1", "table-1"))
+                .thenReturn(secret("v2", "table-2"));
+
+        Assert.assertEquals("config is parsed", "table-1", cache.get().table());
+        now.addAndGet(60_000);
+        Assert.assertEquals("rotated config is picked up", "table-2", cache.get().table());
+        Assert.assertEquals("two fetches", 2, cache.fetches());
+    }
+
+    @Test
+    public void testSameVersionKeepsParsedConfig() throws Exception {
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenReturn(secret("v1", "table-1"));
+
+        final SecretSnowmanConfig first = cache.get();
+        now.addAndGet(60_000);
+        Assert.assertSame("unchanged version is not parsed again", first, cache.get());
+    }
+
+    @Test
+    public void testInvalidateForcesRefresh() throws Exception {
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class)))
+                .thenReturn(secret("v1", "table-1"))
+                .thenReturn(secret("v2", "table-2"));
+
+        Assert.assertEquals("config is parsed", "table-1", cache.get().table());
+        cache.invalidate();
+        Assert.assertEquals("rotation forces a refresh", "table-2", cache.get().table());
+    }
+
+    @Test
+    public void testHandlerFetchesSecretsOncePerContainer() {
+        final LambdaTests tests = new LambdaTests();
+        final DynamoDbClient mockDynamoClient = tests.mockDynamoClient;
+        final LambdaHandler handler = new LambdaHandler(mockDynamoClient, tests.mockSecretsManagerClient);
+
+        handler.handleRequest(tests.setupTest("menu"), mock(Context.class));
+        handler.handleRequest(tests.setupTest("menu"), mock(Context.class));
+        handler.handleRequest(tests.setupTest("assignment"), mock(Context.class));
+
+        verify(tests.mockSecretsManagerClient, times(1)).getSecretValue(any(GetSecretValueRequest.class));
+    }
+}
@@ -0,0 +1,188 @@
+package net.eflan.projects.secretsnowman;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.twilio.exception.ApiConnectionException;
+import com.twilio.exception.ApiException;
+import com.twilio.type.PhoneNumber;
+
+import org.junit.*;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.model.GetSecretValueRequest;
+
+import static org.mockito.Mockito.*;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SmsDispatcherTests {
+    final PhoneNumber secretSnowmanPhoneNumber = new PhoneNumber("+15555550001");
+
+    private static LambdaHandler.SendSMS slowSMS(final long latencyMillis) {
+        return (ph, format, person, assignment) -> {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "SID-" + person.phone();
+        };
+    }
+
+    private static List<SecretSnowmanState> rotate(final List<SecretSnowmanState> people) {
+        final List<SecretSnowmanState> assignments = new ArrayList<>(people.subList(1, people.size()));
+        assignments.add(people.get(0));
+        return assignments;
+    }
+
+    // How much faster that makes a batch is measured by DispatchBenchmark; here the fake only
+    // records how many sends were under way at once.
+    @Test
+    public void testSendsInParallel() {
+        final int count = 32;
+        final int parallelism = 8;
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(count, 4);
+        final List<SecretSnowmanState> assignments = rotate(people);
+
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final LambdaHandler.SendSMS slow = slowSMS(50);
+        final LambdaHandler.SendSMS sendSMS = (ph, format, person, assignment) -> {
+            peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                return slow.send(ph, format, person, assignment);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        };
+
+        final SmsDispatcher dispatcher = new SmsDispatcher(sendSMS, parallelism, 1000, 3, 10);
+        final List<SmsDispatcher.Delivery> deliveries =
+                dispatcher.dispatch(secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, people, assignments);
+
+        Assert.assertEquals("every text is accounted for", count, deliveries.size());
+        for(int i = 0; i < count; i++) {
+            Assert.assertTrue("text is delivered", deliveries.get(i).delivered());
+            Assert.assertSame("results keep the input order", people.get(i), deliveries.get(i).person());
+        }
+        Assert.assertTrue("sends overlap, peak " + peak.get(), peak.get() > 1);
+        Assert.assertTrue("never more than the pool at once, peak " + peak.get(), peak.get() <= parallelism);
+    }
+
+    @Test
+    public void testRateLimited() {
+        final int count = 100;
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(count, 4);
+        final SmsDispatcher dispatcher = new SmsDispatcher(slowSMS(0), 8, 50, 3, 10);
+
+        final long start = System.nanoTime();
+        dispatcher.dispatch(secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, people, rotate(people));
+        final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // A burst of 50 goes out right away, the other 50 are held to 50 per second
+        Assert.assertTrue("sends are held to the configured rate", elapsedMillis >= 900);
+    }
+
+    @Test
+    public void testServerErrorsAreRetried() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(4, 4);
+        final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        final LambdaHandler.SendSMS flaky = (ph, format, person, assignment) -> {
+            if(attempts.computeIfAbsent(person.name(), n -> new AtomicInteger()).incrementAndGet() == 1) {
+                throw new ApiException("Service unavailable", 20003, null, 503, null);
+            }
+            return "SID";
+        };
+
+        final List<SmsDispatcher.Delivery> deliveries = new SmsDispatcher(flaky, 2, 1000, 3, 1)
+                .dispatch(secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, people, rotate(people));
+
+        for(final SmsDispatcher.Delivery d : deliveries) {
+            Assert.assertTrue("text is delivered on retry", d.delivered());
+            Assert.assertEquals("second attempt", 2, d.attempts());
+        }
+    }
+
+    @Test
+    public void testRejectedMessagesAreNotRetried() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(2, 2);
+        final LambdaHandler.SendSMS rejecting = (ph, format, person, assignment) -> {
+            throw new ApiException("Invalid 'To' number", 21211, null, 400, null);
+        };
+
+        final List<SmsDispatcher.Delivery> deliveries = new SmsDispatcher(rejecting, 2, 1000, 3, 1)
+                .dispatch(secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, people, rotate(people));
+
+        for(final SmsDispatcher.Delivery d : deliveries) {
+            Assert.assertFalse("text is not delivered", d.delivered());
+            Assert.assertEquals("only one attempt", 1, d.attempts());
+        }
+    }
+
+    @Test
+    public void testConnectFailuresAreRetried() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(2, 2);
+        final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        final LambdaHandler.SendSMS unreachable = (ph, format, person, assignment) -> {
+            if(attempts.computeIfAbsent(person.name(), n -> new AtomicInteger()).incrementAndGet() == 1) {
+                throw new ApiConnectionException("Connection Error", new ConnectException("Connection refused"));
+            }
+            return "SID";
+        };
+
+        final List<SmsDispatcher.Delivery> deliveries = new SmsDispatcher(unreachable, 2, 1000, 3, 1)
+                .dispatch(secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, people, rotate(people));
+
+        for(final SmsDispatcher.Delivery d : deliveries) {
+            Assert.assertTrue("text is delivered on retry", d.delivered());
+            Assert.assertEquals("second attempt", 2, d.attempts());
+        }
+    }
+
+    @Test
+    public void testTimeoutsAfterSendingAreNotRetried() {
+        final List<SecretSnowmanState> people = AssignmentEngineTests.makePeople(2, 2);
+        final AtomicInteger sends = new AtomicInteger();
+        final LambdaHandler.SendSMS slowToAnswer = (ph, format, person, assignment) -> {
+            sends.incrementAndGet();
+            throw new ApiConnectionException("Connection Error", new SocketTimeoutException("Read timed out"));
+        };
+
+        final List<SmsDispatcher.Delivery> deliveries = new SmsDispatcher(slowToAnswer, 2, 1000, 3, 1)
+                .dispatch(secretSnowmanPhoneNumber, LambdaHandler.REMINDER_FORMAT, people, rotate(people));
+
+        Assert.assertEquals("Twilio may already have the text, so nobody gets it twice", 2, sends.get());
+        for(final SmsDispatcher.Delivery d : deliveries) {
+            Assert.assertFalse(d.delivered());
+        }
+        Assert.assertFalse(SmsDispatcher.retryable(new ApiException("Internal error", 20500, null, 500, null)));
+        Assert.assertFalse(SmsDispatcher.retryable(new IllegalStateException("unexpected")));
+    }
+
+    @Test
+    public void testRemindReportsEveryRecipient() {
+        final FakeDynamoDbClient fakeDynamoClient = new FakeDynamoDbClient();
+        fakeDynamoClient.put("test-table", LambdaTests.makeItem("unit test name 1", "+15555550002", "address", Arrays.asList(), "+15555550003", false));
+        fakeDynamoClient.put("test-table", LambdaTests.makeItem("unit test name 2", "+15555550003", "address", Arrays.asList(), "+15555550009", false));
+        fakeDynamoClient.put("test-table", LambdaTests.makeItem("unit test name 3", "+15555550004", "address", Arrays.asList(), "+15555550002", true));
+
+        final SecretsManagerClient mockSecretsManagerClient = mock(SecretsManagerClient.class);
+        when(mockSecretsManagerClient.getSecretValue(any(GetSecretValueRequest.class))).thenAnswer(LambdaTests.getSecretValueResponse());
+        final LambdaHandler handler = new LambdaHandler(fakeDynamoClient, mockSecretsManagerClient);
+
+        final Map<String, Object> request = new HashMap<>();
+        request.put("From", "%2B15555550000");
+        request.put("Body", "remind");
+        final String response = handler.handleRequest(request, mock(Context.class));
+
+        Assert.assertTrue("assigned person is reminded", response.contains("unit test name 1: success"));
+        Assert.assertTrue("missing assignment is reported", response.contains("unit test name 2: failure"));
+        Assert.assertFalse("people who bought a gift are skipped", response.contains("unit test name 3"));
+    }
+}